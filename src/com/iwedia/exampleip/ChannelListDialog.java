@@ -22,6 +22,8 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.CheckBox;
@@ -34,6 +36,7 @@ import com.iwedia.custom.EnterPinDialog.PinCheckedCallback;
 import com.iwedia.dtv.types.InternalException;
 import com.iwedia.exampleip.adapters.ChannelListAdapter;
 import com.iwedia.exampleip.dtv.DVBManager;
+import com.iwedia.exampleip.ip.StreamProber;
 import com.iwedia.four.R;
 
 /**
@@ -45,6 +48,25 @@ public class ChannelListDialog extends Dialog implements OnItemClickListener,
     private GridView mChannelList;
     private Activity mActivity;
     private PopupMenu mPopup;
+    /** Redraws channel list when IP channel turns out to be unreachable. */
+    private final Runnable mRefreshList = new Runnable() {
+        @Override
+        public void run() {
+            if (mChannelList.getAdapter() != null) {
+                ((ChannelListAdapter) mChannelList.getAdapter())
+                        .notifyDataSetChanged();
+            }
+        }
+    };
+    private final StreamProber.Listener mProbeListener = new StreamProber.Listener() {
+        @Override
+        public void onProbed(String url, StreamProber.Result result) {
+            if (!result.isReachable() && !result.isUnknown()) {
+                mChannelList.removeCallbacks(mRefreshList);
+                mChannelList.post(mRefreshList);
+            }
+        }
+    };
 
     public ChannelListDialog(Activity activity, int width, int height) {
         super(activity, R.style.DialogTransparent);
@@ -73,6 +95,23 @@ public class ChannelListDialog extends Dialog implements OnItemClickListener,
     private void initializeChannelList(Context context) {
         mChannelList = (GridView) findViewById(R.id.gridview_channellist);
         mChannelList.setOnItemClickListener(this);
+        /** EPG of visible channels is refreshed in background. */
+        mChannelList.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view,
+                    int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem,
+                    int visibleItemCount, int totalItemCount) {
+                if (visibleItemCount > 0) {
+                    DVBManager.getInstance().setVisibleChannels(
+                            firstVisibleItem,
+                            firstVisibleItem + visibleItemCount - 1);
+                }
+            }
+        });
     }
 
     /** Listener for menu button click */
@@ -142,6 +181,20 @@ public class ChannelListDialog extends Dialog implements OnItemClickListener,
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        DVBManager.getInstance().getStreamProber().addListener(mProbeListener);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        DVBManager.getInstance().getStreamProber()
+                .removeListener(mProbeListener);
+        mChannelList.removeCallbacks(mRefreshList);
+    }
+
     @Override
     public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
         if (((ChannelListAdapter) parent.getAdapter()).isInChannelLockedState()) {
@@ -156,12 +209,8 @@ public class ChannelListDialog extends Dialog implements OnItemClickListener,
             checkBox.setChecked(!checkBox.isChecked());
             v.invalidate();
         } else {
-            try {
-                DVBManager.getInstance().changeChannelByNumber(position);
-                cancel();
-            } catch (InternalException e) {
-                e.printStackTrace();
-            }
+            DVBManager.getInstance().changeChannelByNumberAsync(position);
+            cancel();
         }
     }
 }
@@ -11,13 +11,16 @@
 package com.iwedia.exampleip;
 
 import android.app.Activity;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.graphics.PixelFormat;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.util.Log;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Toast;
@@ -27,16 +30,18 @@ import com.iwedia.exampleip.dtv.ChannelInfo;
 import com.iwedia.exampleip.dtv.DVBManager;
 import com.iwedia.exampleip.dtv.DVBManager.DVBStatus;
 import com.iwedia.exampleip.dtv.IPService;
+import com.iwedia.exampleip.dtv.ZapLatencyTracker.Stage;
+import com.iwedia.exampleip.ip.ExternalStorageListSource;
+import com.iwedia.exampleip.ip.ExternalStorageScanner;
+import com.iwedia.exampleip.ip.PlaylistParser;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Parent class off all activities. This class contains connection to dtv
@@ -47,13 +52,18 @@ public abstract class DTVActivity extends Activity {
     private static final String LAST_WATCHED_CHANNEL_INDEX = "last_watched";
     public static final String EXTERNAL_MEDIA_PATH = "/mnt/media/";
     public static final String IP_CHANNELS = "ip_service_list.txt";
+    /** Compiled form of IP channel list, kept in cache directory. */
+    public static final String IP_CHANNELS_COMPILED = "ip_service_list.bin";
+    /** File with EPG data saved between runs. */
+    public static final String EPG_SNAPSHOT = "epg_snapshot.bin";
     private static final int MESSAGE_UPDATE_NOW_NEXT = 1,
-            MESSAGE_AGE_LOCKED = 2, MESSAGE_CHANNEL_LOCKED = 3;
+            MESSAGE_AGE_LOCKED = 2, MESSAGE_CHANNEL_LOCKED = 3,
+            MESSAGE_ZAP_FAILED = 4, MESSAGE_ZAP_FINISHED = 5;
     private static DTVActivity instance;
     /** DTV manager instance. */
     protected DVBManager mDVBManager = null;
-    /** List of IP channels */
-    public static ArrayList<IPService> sIpChannels = null;
+    /** Scan of external storages in progress, null if there is none. */
+    private ExternalStorageScanner mExternalStorageScanner = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -73,17 +83,25 @@ public abstract class DTVActivity extends Activity {
         /** Creates dtv manager object and connects it to service. */
         mDVBManager = DVBManager.getInstance();
         mDVBManager.registerEpgCallback();
+        mDVBManager.registerServiceCallback();
         mDVBManager.setDVBStatus(mDvbStatusCallBack);
+        mDVBManager.loadEpgSnapshot(new File(getFilesDir(), EPG_SNAPSHOT));
         initializeIpChannels();
     }
 
+    @Override
+    protected void onDestroy() {
+        cancelExternalStorageScan();
+        super.onDestroy();
+    }
+
     public static SharedPreferences getSharedPreferences() {
         return instance.getSharedPreferences(TAG, MODE_PRIVATE);
     }
 
     public static void setLastWatchedChannelIndex(int index) {
         getSharedPreferences().edit().putInt(LAST_WATCHED_CHANNEL_INDEX, index)
-                .commit();
+                .apply();
     }
 
     public static int getLastWatchedChannelIndex() {
@@ -144,74 +162,125 @@ public abstract class DTVActivity extends Activity {
 
     /**
      * Read the configuration file with built-in application which will be
-     * displayed in Content list.
+     * displayed in Content list. Both M3U playlists and "name#url" lines are
+     * accepted, malformed lines are logged and skipped.
      */
-    public static void readFile(Context ctx, String filePath,
-            ArrayList<IPService> arrayList) {
-        File file = new File(filePath);
-        BufferedReader br;
+    public static void readFile(Context ctx, final String filePath,
+            final ArrayList<IPService> arrayList) {
         try {
-            br = new BufferedReader(new FileReader(file));
-            String line;
-            String[] separated = new String[2];
-            while ((line = br.readLine()) != null) {
-                separated = line.split("#");
-                arrayList.add(new IPService(separated[0], separated[1]));
-            }
-            br.close();
+            PlaylistParser.Result result = PlaylistParser.parse(new File(
+                    filePath), new PlaylistParser.Listener() {
+                @Override
+                public void onService(IPService service) {
+                    arrayList.add(service);
+                }
+
+                @Override
+                public void onMalformedLine(int lineNumber, String line,
+                        String reason) {
+                    Log.w(TAG, filePath + ":" + lineNumber + " " + reason
+                            + ": " + line);
+                }
+            });
+            Log.d(TAG, filePath + ": " + result.getServiceCount()
+                    + " services, " + result.getMalformedCount()
+                    + " malformed lines");
         } catch (IOException e) {
             e.printStackTrace();
         }
-        br = null;
     }
 
     /**
-     * Load list of IP channels from external storage.
-     * 
-     * @param ipChannels
-     *        List to populate with IP channels.
+     * Scan external storages for IP channel lists in background. Services
+     * of all found lists replace current IP channels.
      */
-    public void loadIPChannelsFromExternalStorage(
-            ArrayList<IPService> ipChannels) {
-        ArrayList<File> ipServiceListFiles = new ArrayList<File>();
-        File[] storages = new File(EXTERNAL_MEDIA_PATH).listFiles();
-        if (storages != null) {
-            /**
-             * Loop through storages
-             */
-            for (File storage : storages) {
-                File[] foundIpFiles = storage.listFiles(new FileFilter() {
+    public void scanExternalStorage() {
+        cancelExternalStorageScan();
+        final ExternalStorageScanner scanner = new ExternalStorageScanner(
+                IP_CHANNELS, ExternalStorageScanner.DEFAULT_MAX_DEPTH);
+        mExternalStorageScanner = scanner;
+        final ProgressDialog progressDialog = new ProgressDialog(this);
+        progressDialog.setTitle("Searching for IP channel lists");
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        /** Message set before show, so later updates are displayed. */
+        progressDialog.setMessage("Directories: 0, lists found: 0");
+        progressDialog.setCancelable(true);
+        progressDialog.setCanceledOnTouchOutside(false);
+        progressDialog.setOnCancelListener(
+                new DialogInterface.OnCancelListener() {
                     @Override
-                    public boolean accept(File pathname) {
-                        if (pathname.getName().equalsIgnoreCase(IP_CHANNELS)) {
-                            return true;
-                        }
-                        return false;
+                    public void onCancel(DialogInterface dialog) {
+                        cancelExternalStorageScan();
                     }
                 });
-                /**
-                 * Files with given name are found in this array
-                 */
-                if (foundIpFiles != null) {
-                    for (File ip : foundIpFiles) {
-                        ipServiceListFiles.add(ip);
+        progressDialog.show();
+        scanner.scan(new File(EXTERNAL_MEDIA_PATH),
+                new ExternalStorageScanner.Listener() {
+                    @Override
+                    public void onProgress(final int scannedCount,
+                            final int storageCount, final int directoryCount,
+                            final int listCount) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                progressDialog.setMax(storageCount);
+                                progressDialog.setProgress(scannedCount);
+                                progressDialog.setMessage("Directories: "
+                                        + directoryCount + ", lists found: "
+                                        + listCount);
+                            }
+                        });
                     }
-                }
-            }
-            /**
-             * Loop through found files and add it to IP service list
-             */
-            for (File ipFile : ipServiceListFiles) {
-                readFile(this, ipFile.getPath(), ipChannels);
-            }
-            /**
-             * No files found
-             */
-            if (ipServiceListFiles.size() == 0) {
-                Toast.makeText(this,
-                        "No files found with name: " + IP_CHANNELS,
-                        Toast.LENGTH_LONG).show();
-            }
+
+                    @Override
+                    public void onFinished(final List<IPService> services,
+                            final List<File> lists,
+                            final List<File> directories) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                progressDialog.dismiss();
+                                externalStorageScanned(scanner, services,
+                                        lists, directories);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Services of finished scan replace current IP channels. Results of
+     * cancelled scan are incomplete and dropped.
+     */
+    private void externalStorageScanned(ExternalStorageScanner scanner,
+            List<IPService> services, List<File> lists,
+            List<File> directories) {
+        if (isFinishing() || mExternalStorageScanner != scanner) {
+            return;
+        }
+        mExternalStorageScanner = null;
+        mDVBManager.setIpChannelSource(new ExternalStorageListSource(new File(
+                EXTERNAL_MEDIA_PATH), IP_CHANNELS,
+                ExternalStorageScanner.DEFAULT_MAX_DEPTH, lists, directories),
+                services);
+        if (lists.isEmpty()) {
+            Toast.makeText(DTVActivity.this,
+                    "No files found with name: " + IP_CHANNELS,
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(DTVActivity.this,
+                    "IP channels found: " + services.size(),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Stop scan of external storages, its results are dropped.
+     */
+    private void cancelExternalStorageScan() {
+        if (mExternalStorageScanner != null) {
+            mExternalStorageScanner.cancel();
+            mExternalStorageScanner = null;
         }
     }
 
@@ -266,6 +335,22 @@ public abstract class DTVActivity extends Activity {
                     showChannelLockedInfo((Boolean) msg.obj);
                     break;
                 }
+                case MESSAGE_ZAP_FAILED: {
+                    Toast.makeText(DTVActivity.this,
+                            "Cant play service with index: " + msg.arg1,
+                            Toast.LENGTH_SHORT).show();
+                    break;
+                }
+                case MESSAGE_ZAP_FINISHED: {
+                    /** Info of channel that was zapped meanwhile is shown. */
+                    if (msg.arg1 != mDVBManager.getRequestedChannelNumber()) {
+                        break;
+                    }
+                    setChannelInfo(mDVBManager.getChannelInfo(msg.arg1, false));
+                    mDVBManager.getZapLatencyTracker().mark(Stage.OSD_RENDER,
+                            msg.arg1);
+                    break;
+                }
                 default:
                     break;
             }
@@ -277,6 +362,8 @@ public abstract class DTVActivity extends Activity {
     private DVBStatus mDvbStatusCallBack = new DVBStatus() {
         @Override
         public void updateNowNext() {
+            /** Only latest update is needed. */
+            mHandler.removeMessages(MESSAGE_UPDATE_NOW_NEXT);
             Message.obtain(mHandler, MESSAGE_UPDATE_NOW_NEXT).sendToTarget();
         }
 
@@ -290,5 +377,17 @@ public abstract class DTVActivity extends Activity {
             Message.obtain(mHandler, MESSAGE_CHANNEL_LOCKED, locked)
                     .sendToTarget();
         }
+
+        @Override
+        public void zapFailed(int channelNumber) {
+            Message.obtain(mHandler, MESSAGE_ZAP_FAILED, channelNumber, 0)
+                    .sendToTarget();
+        }
+
+        @Override
+        public void zapFinished(int channelNumber) {
+            Message.obtain(mHandler, MESSAGE_ZAP_FINISHED, channelNumber, 0)
+                    .sendToTarget();
+        }
     };
 }
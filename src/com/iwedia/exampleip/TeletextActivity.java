@@ -35,6 +35,7 @@ import android.view.SubMenu;
 import android.view.SurfaceView;
 import android.view.View;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.PopupMenu;
 import android.widget.PopupMenu.OnMenuItemClickListener;
 import android.widget.ProgressBar;
@@ -52,17 +53,21 @@ import com.iwedia.dtv.subtitle.SubtitleMode;
 import com.iwedia.dtv.subtitle.SubtitleTrack;
 import com.iwedia.dtv.teletext.TeletextTrack;
 import com.iwedia.dtv.types.InternalException;
-import com.iwedia.dtv.types.TimeDate;
 import com.iwedia.exampleip.callbacks.ParentalCallback;
 import com.iwedia.exampleip.dtv.ChannelInfo;
 import com.iwedia.exampleip.dtv.DVBManager;
 import com.iwedia.exampleip.dtv.IPService;
 import com.iwedia.exampleip.dtv.TeletextSubtitleAudioManager;
+import com.iwedia.exampleip.epg.EpgTitleIndex;
+import com.iwedia.exampleip.ip.IpChannelListCache;
+import com.iwedia.exampleip.ip.IpChannelSource;
 import com.iwedia.four.R;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 public class TeletextActivity extends DTVActivity implements
         OnMenuItemClickListener {
@@ -71,6 +76,10 @@ public class TeletextActivity extends DTVActivity implements
     public static final String TV_URI = "tv://";
     /** Channel Number/Name View Duration in Milliseconds. */
     public static final int CHANNEL_VIEW_DURATION = 5000;
+    /** Time after last digit when entered channel number is zapped. */
+    public static final int DIGIT_ENTRY_TIMEOUT = 2000;
+    /** Maximum number of EPG search results. */
+    public static final int EPG_SEARCH_LIMIT = 100;
     /** Views needed in activity. */
     private RelativeLayout mChannelContainer = null;
     private RelativeLayout mNowNextContainer = null;
@@ -86,6 +95,8 @@ public class TeletextActivity extends DTVActivity implements
     private ProgressBar mProgressBarNow = null;
     private TextView mAgeLockedContainer, mChannelLockedContainer;
     private PopupMenu mPopup;
+    /** Menu item ID of first service list, parental rates use 0..N. */
+    private static final int SERVICE_LIST_ITEM_ID = 1000;
     /** Handler for sending action messages to update UI. */
     private UiHandler mHandler = null;
     /** Subtitle and teletext views */
@@ -93,6 +104,14 @@ public class TeletextActivity extends DTVActivity implements
     /** Time and Date Format */
     private SimpleDateFormat mTimeFormat = new SimpleDateFormat("HH:mm");
     private SimpleDateFormat mDateFormat = new SimpleDateFormat("dd/MM/yyyy");
+    /** Channel number entered with digit keys, 0 if nothing is entered. */
+    private int mEnteredNumber = 0;
+    private final Runnable mDigitEntryTimeout = new Runnable() {
+        @Override
+        public void run() {
+            finishDigitEntry();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -106,26 +125,14 @@ public class TeletextActivity extends DTVActivity implements
         initializeEPGNowNextView();
         /** Initialize subtitle and teletext surface view */
         initializeSurfaceView();
-        /** Load default IP channel list */
+        /** Load default IP channel list, it is parsed in background. */
         initIpChannels();
         /** Initialize Handler. */
         mHandler = new UiHandler(mChannelContainer, mSurfaceView);
-        /** Start DTV. */
-        try {
-            mDVBManager.changeChannelByNumber(getLastWatchedChannelIndex());
-        } catch (IllegalArgumentException e) {
-            Toast.makeText(
-                    this,
-                    "Cant play service with index: "
-                            + getLastWatchedChannelIndex(), Toast.LENGTH_SHORT)
-                    .show();
-        } catch (InternalException e) {
-            /** Error with service connection. */
-            finishActivity();
-        }
-        /** Register parental callback. */
-        mDVBManager.getParentalManager().registerCallback(
-                ParentalCallback.getInstance(this));
+        /** Start DTV, zap is done as soon as route is discovered. */
+        mDVBManager.changeChannelByNumberAsync(getLastWatchedChannelIndex());
+        /** Parental callback is registered when parental manager is used. */
+        mDVBManager.setParentalCallback(ParentalCallback.getInstance(this));
     }
 
     @Override
@@ -155,12 +162,12 @@ public class TeletextActivity extends DTVActivity implements
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mHandler.removeCallbacks(mDigitEntryTimeout);
         try {
             mDVBManager.stopDTV();
         } catch (InternalException e) {
             e.printStackTrace();
         }
-        sIpChannels = null;
     }
 
     /** Listener for menu button click */
@@ -188,6 +195,15 @@ public class TeletextActivity extends DTVActivity implements
                 MenuItem item = subMenu.add(Menu.NONE, i, Menu.NONE, text);
                 item.setCheckable(true);
             }
+            subMenu = mPopup.getMenu().findItem(R.id.menu_service_list)
+                    .getSubMenu();
+            for (int i = 0; i < DVBManager.SERVICE_LIST_COUNT; i++) {
+                subMenu.add(R.id.group_service_list,
+                        SERVICE_LIST_ITEM_ID + i, Menu.NONE,
+                        getString(R.string.service_list_item, i + 1))
+                        .setCheckable(true);
+            }
+            subMenu.setGroupCheckable(R.id.group_service_list, true, true);
         }
         /**
          * Set states of menu elements.
@@ -199,6 +215,19 @@ public class TeletextActivity extends DTVActivity implements
                 R.id.menu_subtitles_automatic);
         checkable.setChecked(mDVBManager.getTeletextSubtitleAudioManager()
                 .isSubtitleAutomatic());
+        /**
+         * Multicast relay
+         */
+        checkable = mPopup.getMenu().findItem(R.id.menu_ip_relay);
+        checkable.setChecked(mDVBManager.isMulticastRelayEnabled());
+        /**
+         * Service list
+         */
+        checkable = mPopup.getMenu().findItem(
+                SERVICE_LIST_ITEM_ID + mDVBManager.getActiveListIndex());
+        if (checkable != null) {
+            checkable.setChecked(true);
+        }
         /**
          * Subtitles mode
          */
@@ -227,9 +256,40 @@ public class TeletextActivity extends DTVActivity implements
         // Handle item selection
         switch (item.getItemId()) {
             case R.id.menu_scan_usb: {
-                ArrayList<IPService> ipChannels = new ArrayList<IPService>();
-                loadIPChannelsFromExternalStorage(ipChannels);
-                sIpChannels = ipChannels;
+                scanExternalStorage();
+                return true;
+            }
+            case R.id.menu_zap_statistics: {
+                AlertDialog.Builder builder = new AlertDialog.Builder(this);
+                builder.setTitle(item.getTitle());
+                builder.setMessage(mDVBManager.getZapLatencyTracker().dump()
+                        + "\n" + mDVBManager.getStartupTrace().dump() + "\n"
+                        + mDVBManager.getEpgUpdateCoalescer() + "\n"
+                        + mDVBManager.getEpgScheduler() + "\n"
+                        + mDVBManager.getStreamProber() + "\n"
+                        + mDVBManager.getSourceRacer() + "\n"
+                        + mDVBManager.getPlaybackWatchdog() + "\n"
+                        + mDVBManager.getReceptionStatsTap() + "\n"
+                        + mDVBManager.getHlsManifestCache() + "\n"
+                        + (mDVBManager.isMulticastRelayEnabled() ? mDVBManager
+                                .getMulticastRelay() : "IP relay: off"));
+                builder.show();
+                return true;
+            }
+            case R.id.menu_epg_search: {
+                showEpgSearchDialog();
+                return true;
+            }
+            case R.id.menu_service_list: {
+                /** Lists are read while user chooses, submenu is opened. */
+                for (int i = 0; i < DVBManager.SERVICE_LIST_COUNT; i++) {
+                    mDVBManager.prefetchServiceList(i);
+                }
+                return false;
+            }
+            case R.id.menu_ip_relay: {
+                item.setChecked(mDVBManager.setMulticastRelayEnabled(!item
+                        .isChecked()));
                 return true;
             }
             case R.id.menu_subtitles_automatic: {
@@ -273,6 +333,13 @@ public class TeletextActivity extends DTVActivity implements
                 return true;
             }
         }
+        /** Check for service lists. */
+        if (item.getGroupId() == R.id.group_service_list) {
+            item.setChecked(true);
+            mDVBManager.setActiveServiceList(item.getItemId()
+                    - SERVICE_LIST_ITEM_ID);
+            return true;
+        }
         /** Check for parental rate values. */
         if (item.getItemId() >= 0
                 && item.getItemId() < ParentalLockAge.values().length) {
@@ -294,15 +361,77 @@ public class TeletextActivity extends DTVActivity implements
         return true;
     }
 
+    /**
+     * Ask for words of event name and show matching events. Selecting event
+     * changes channel.
+     */
+    private void showEpgSearchDialog() {
+        final EditText query = new EditText(this);
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.epg_search);
+        builder.setView(query);
+        builder.setPositiveButton(android.R.string.search_go,
+                new OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showEpgSearchResults(query.getText().toString());
+                    }
+                });
+        builder.show();
+    }
+
+    private void showEpgSearchResults(String query) {
+        final List<EpgTitleIndex.Result> results = mDVBManager.searchEpg(
+                query, EPG_SEARCH_LIMIT);
+        if (results.isEmpty()) {
+            Toast.makeText(this, "No events found", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ArrayAdapter<String> arrayAdapter = new ArrayAdapter<String>(this,
+                android.R.layout.simple_list_item_1);
+        for (EpgTitleIndex.Result result : results) {
+            ChannelInfo channelInfo = mDVBManager.getChannelInfo(
+                    result.getChannelNumber(), true);
+            arrayAdapter.add(getDate(result.getEvent().getStartTime()) + " "
+                    + getTime(result.getEvent().getStartTime()) + "  "
+                    + (channelInfo == null ? "" : channelInfo.getName())
+                    + "  " + result.getEvent().getName());
+        }
+        createListDIalog(query, arrayAdapter, new OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                mDVBManager.changeChannelByNumberAsync(results.get(which)
+                        .getChannelNumber());
+            }
+        });
+    }
+
     /**
      * Initialize IP
      */
     private void initIpChannels() {
         ContextWrapper contextWrapper = new ContextWrapper(this);
-        String path = contextWrapper.getFilesDir() + "/"
-                + DTVActivity.IP_CHANNELS;
-        sIpChannels = new ArrayList<IPService>();
-        DTVActivity.readFile(this, path, sIpChannels);
+        final File list = new File(contextWrapper.getFilesDir(),
+                DTVActivity.IP_CHANNELS);
+        final File compiled = new File(contextWrapper.getCacheDir(),
+                IP_CHANNELS_COMPILED);
+        mDVBManager.setIpChannelSource(new IpChannelSource() {
+            @Override
+            public List<File> getFiles() {
+                return Collections.singletonList(list);
+            }
+
+            @Override
+            public List<File> getDirectories() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public List<IPService> load() {
+                /** Text is parsed only if it changed since it was compiled. */
+                return IpChannelListCache.load(list, compiled);
+            }
+        }, null);
     }
 
     /**
@@ -380,11 +509,13 @@ public class TeletextActivity extends DTVActivity implements
                         R.string.parental, channelInfo.getParental()));
                 mEPGParental.setVisibility(View.VISIBLE);
             }
+            long currentTime = mDVBManager.getCurrentTimeMillis();
             if (!channelInfo.getEPGNow().equals("")
                     || !channelInfo.getEPGNext().equals("")) {
-                if (channelInfo.getProgressPercentPassed() != -1) {
-                    mProgressBarNow.setProgress(channelInfo
-                            .getProgressPercentPassed());
+                int progress = channelInfo
+                        .getProgressPercentPassed(currentTime);
+                if (progress != -1) {
+                    mProgressBarNow.setProgress(progress);
                     mProgressBarNow.setVisibility(View.VISIBLE);
                 } else {
                     mProgressBarNow.setVisibility(View.INVISIBLE);
@@ -399,10 +530,8 @@ public class TeletextActivity extends DTVActivity implements
             } else {
                 mNowNextContainer.setVisibility(View.INVISIBLE);
             }
-            TimeDate lCurrentTime = DVBManager.getInstance()
-                    .getCurrentTimeDate();
-            mEPGDate.setText(getDate(lCurrentTime.getCalendar().getTime()));
-            mEPGTime.setText(getTime(lCurrentTime.getCalendar().getTime()));
+            mEPGDate.setText(getDate(currentTime));
+            mEPGTime.setText(getTime(currentTime));
         } else {
             mChannelContainer.setVisibility(View.INVISIBLE);
             mHandler.removeMessages(UiHandler.HIDE_CHANNEL_INFO_VIEW_MESSAGE);
@@ -412,9 +541,9 @@ public class TeletextActivity extends DTVActivity implements
     /**
      * Convert Formated Time in String.
      */
-    private String getTime(Date date) {
-        if (date != null) {
-            return mTimeFormat.format(date);
+    private String getTime(long time) {
+        if (time != -1) {
+            return mTimeFormat.format(new Date(time));
         }
         return "";
     }
@@ -422,9 +551,9 @@ public class TeletextActivity extends DTVActivity implements
     /**
      * Convert Formated Date in String.
      */
-    private String getDate(Date date) {
-        if (date != null) {
-            return mDateFormat.format(date);
+    private String getDate(long time) {
+        if (time != -1) {
+            return mDateFormat.format(new Date(time));
         }
         return "";
     }
@@ -493,6 +622,11 @@ public class TeletextActivity extends DTVActivity implements
                             .sendTeletextInputCommand(keyCode);
                     return true;
                 }
+                if (keyCode >= KeyEvent.KEYCODE_0
+                        && keyCode <= KeyEvent.KEYCODE_9) {
+                    enterDigit(keyCode - KeyEvent.KEYCODE_0);
+                    return true;
+                }
                 break;
             }
             /** TELETEXT KEY */
@@ -700,14 +834,9 @@ public class TeletextActivity extends DTVActivity implements
              */
             case KeyEvent.KEYCODE_F4:
             case KeyEvent.KEYCODE_CHANNEL_UP: {
-                try {
-                    setChannelInfo(mDVBManager.changeChannelUp());
-                    showChannelInfo();
-                } catch (IllegalArgumentException e) {
-                    e.printStackTrace();
-                } catch (InternalException e) {
-                    e.printStackTrace();
-                }
+                cancelDigitEntry();
+                setChannelInfo(mDVBManager.changeChannelUp());
+                showChannelInfo();
                 return true;
             }
             /**
@@ -717,14 +846,9 @@ public class TeletextActivity extends DTVActivity implements
              */
             case KeyEvent.KEYCODE_F3:
             case KeyEvent.KEYCODE_CHANNEL_DOWN: {
-                try {
-                    setChannelInfo(mDVBManager.changeChannelDown());
-                    showChannelInfo();
-                } catch (IllegalArgumentException e) {
-                    e.printStackTrace();
-                } catch (InternalException e) {
-                    e.printStackTrace();
-                }
+                cancelDigitEntry();
+                setChannelInfo(mDVBManager.changeChannelDown());
+                showChannelInfo();
                 return true;
             }
             /**
@@ -747,6 +871,57 @@ public class TeletextActivity extends DTVActivity implements
         return super.onKeyDown(keyCode, event);
     }
 
+    /**
+     * Add digit to entered channel number. Channel is changed when timeout
+     * expires or when no channel with longer number can exist.
+     */
+    private void enterDigit(int digit) {
+        mHandler.removeCallbacks(mDigitEntryTimeout);
+        mEnteredNumber = mEnteredNumber * 10 + digit;
+        mChannelNumber.setText(String.valueOf(mEnteredNumber));
+        int channelNumber = mDVBManager
+                .findChannelByDisplayNumber(mEnteredNumber);
+        mChannelName.setText(channelNumber == -1 ? "" : mDVBManager
+                .getChannelInfo(channelNumber, true).getName());
+        mNowNextContainer.setVisibility(View.INVISIBLE);
+        mEPGParental.setVisibility(View.INVISIBLE);
+        showChannelInfo();
+        if ((long) mEnteredNumber * 10 > mDVBManager.getMaxDisplayNumber()) {
+            finishDigitEntry();
+        } else {
+            mHandler.postDelayed(mDigitEntryTimeout, DIGIT_ENTRY_TIMEOUT);
+        }
+    }
+
+    /**
+     * Drop entered number without changing channel.
+     */
+    private void cancelDigitEntry() {
+        mHandler.removeCallbacks(mDigitEntryTimeout);
+        mEnteredNumber = 0;
+    }
+
+    /**
+     * Change channel to entered number.
+     */
+    private void finishDigitEntry() {
+        int enteredNumber = mEnteredNumber;
+        cancelDigitEntry();
+        if (enteredNumber == 0) {
+            return;
+        }
+        ChannelInfo channelInfo = mDVBManager
+                .changeChannelByDisplayNumber(enteredNumber);
+        if (channelInfo == null) {
+            Toast.makeText(this, "No channel with number " + enteredNumber,
+                    Toast.LENGTH_SHORT).show();
+            setChannelInfo(null);
+            return;
+        }
+        setChannelInfo(channelInfo);
+        showChannelInfo();
+    }
+
     /**
      * Clear surface view with transparency.
      * 
@@ -20,6 +20,7 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 
 import com.iwedia.dtv.types.InternalException;
+import com.iwedia.exampleip.dtv.ChannelLineup;
 import com.iwedia.exampleip.dtv.DVBManager;
 import com.iwedia.four.R;
 
@@ -30,6 +31,8 @@ import java.util.ArrayList;
  */
 public class ChannelListAdapter extends BaseAdapter {
     private final String TAG = "ChannelListAdapter";
+    /** Alpha of names of channels that could not be reached. */
+    private static final float UNREACHABLE_ALPHA = 0.4f;
     private LayoutInflater mLayoutInflater = null;
     private ArrayList<String> mChannelNames = null;
     private boolean inChannelLockedState = false;
@@ -80,7 +83,14 @@ public class ChannelListAdapter extends BaseAdapter {
      */
     private void setChannelItemView(int position, ChannelHolder holder) {
         holder.getItemChannelName().setText(mChannelNames.get(position));
-        holder.getItemChannelNumber().setText(String.valueOf(position + 1));
+        ChannelLineup lineup = DVBManager.getInstance().getChannelLineup();
+        holder.getItemChannelNumber().setText(
+                String.valueOf(position < lineup.size() ? lineup
+                        .getDisplayNumber(position) : position + 1));
+        /** IP channels that could not be reached are dimmed. */
+        holder.getItemChannelName().setAlpha(
+                DVBManager.getInstance().isChannelUnreachable(position) ? UNREACHABLE_ALPHA
+                        : 1f);
         if (inChannelLockedState) {
             holder.getCheckBoxLock().setVisibility(View.VISIBLE);
             try {
@@ -2,6 +2,7 @@ package com.iwedia.exampleip.callbacks;
 
 import com.iwedia.dtv.epg.IEpgCallback;
 import com.iwedia.exampleip.dtv.DVBManager;
+import com.iwedia.exampleip.dtv.ZapLatencyTracker.Stage;
 
 public class EPGCallBack implements IEpgCallback {
     private static final String TAG = "EPGCallBack";
@@ -20,24 +21,48 @@ public class EPGCallBack implements IEpgCallback {
     }
 
     @Override
-    public void pfAcquisitionFinished(int arg0, int arg1) {
-        if (mDVBManager != null) {
-            mDVBManager.updateNowNext();
+    public void pfAcquisitionFinished(int filterID, int serviceIndex) {
+        int channelNumber = getChannelNumber(serviceIndex);
+        if (channelNumber != -1) {
+            /** Event of other service does not end stage of zap. */
+            mDVBManager.getZapLatencyTracker().mark(Stage.FIRST_PF_EVENT,
+                    channelNumber);
+            mDVBManager.presentFollowingChanged(channelNumber);
         }
     }
 
     @Override
-    public void pfEventChanged(int arg0, int arg1) {
-        if (mDVBManager != null) {
-            mDVBManager.updateNowNext();
+    public void pfEventChanged(int filterID, int serviceIndex) {
+        int channelNumber = getChannelNumber(serviceIndex);
+        if (channelNumber != -1) {
+            mDVBManager.presentFollowingChanged(channelNumber);
         }
     }
 
     @Override
-    public void scAcquisitionFinished(int arg0, int arg1) {
+    public void scAcquisitionFinished(int filterID, int serviceIndex) {
+        int channelNumber = getChannelNumber(serviceIndex);
+        if (channelNumber != -1) {
+            mDVBManager.scheduleChanged(channelNumber, true);
+        }
     }
 
     @Override
-    public void scEventChanged(int arg0, int arg1) {
+    public void scEventChanged(int filterID, int serviceIndex) {
+        int channelNumber = getChannelNumber(serviceIndex);
+        if (channelNumber != -1) {
+            mDVBManager.scheduleChanged(channelNumber, false);
+        }
+    }
+
+    /**
+     * Get channel number of middleware service, -1 if service is not in
+     * lineup.
+     */
+    private int getChannelNumber(int serviceIndex) {
+        if (mDVBManager == null) {
+            return -1;
+        }
+        return mDVBManager.getChannelLineup().getChannelNumber(serviceIndex);
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.callbacks;
+
+import android.util.Log;
+
+import com.iwedia.dtv.service.IServiceCallback;
+import com.iwedia.dtv.service.ServiceListUpdateData;
+import com.iwedia.exampleip.dtv.DVBManager;
+
+/**
+ * Service callback, channel lineup is refreshed when middleware service
+ * list is changed.
+ */
+public class ServiceCallback implements IServiceCallback {
+    private static final String TAG = "ServiceCallback";
+    private DVBManager mDVBManager = null;
+    private static ServiceCallback sInstance = null;
+
+    public static ServiceCallback getInstance() {
+        if (sInstance == null) {
+            sInstance = new ServiceCallback();
+        }
+        return sInstance;
+    }
+
+    private ServiceCallback() {
+        mDVBManager = DVBManager.getInstance();
+    }
+
+    @Override
+    public void channelChangeStatus(int routeId, boolean channelChanged) {
+    }
+
+    @Override
+    public void safeToUnblank(int routeId) {
+    }
+
+    @Override
+    public void serviceScrambledStatus(int routeId, boolean serviceScrambled) {
+    }
+
+    @Override
+    public void serviceStopped(int routeId, boolean serviceStopped) {
+    }
+
+    @Override
+    public void signalStatus(int routeId, boolean signalAvailable) {
+    }
+
+    @Override
+    public void updateServiceList(ServiceListUpdateData serviceListUpdateData) {
+        Log.d(TAG, "Service list updated");
+        if (mDVBManager != null) {
+            mDVBManager.serviceListChanged();
+        }
+    }
+}
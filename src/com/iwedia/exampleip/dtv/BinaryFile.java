@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary cache files. File is written to temporary file that replaces it
+ * only when it is written completely, and read through memory mapping.
+ * Truncated or corrupted file is reported as not readable.
+ */
+public class BinaryFile {
+    private static final String TAG = "BinaryFile";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes content of file.
+     */
+    public interface Writer {
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads content of file.
+     */
+    public interface Reader<T> {
+        /**
+         * @return Content or null if file belongs to other version.
+         */
+        public T read(MappedByteBuffer buffer) throws IOException;
+    }
+
+    private BinaryFile() {
+    }
+
+    /**
+     * Write file, it is replaced only when it is written completely.
+     *
+     * @return True if file is written.
+     */
+    public static boolean write(File file, Writer writer) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempFile), BUFFER_SIZE));
+            writer.write(out);
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "Unable to replace " + file);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Read file through memory mapping.
+     *
+     * @return Content, or null if file does not exist, can not be read or is
+     *         truncated or corrupted.
+     */
+    public static <T> T read(File file, Reader<T> reader) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return reader.read(buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "File is truncated " + file);
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "File is corrupted " + file);
+            return null;
+        } catch (NegativeArraySizeException e) {
+            Log.w(TAG, "File is corrupted " + file);
+            return null;
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
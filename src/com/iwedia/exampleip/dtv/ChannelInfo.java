@@ -12,10 +12,8 @@ package com.iwedia.exampleip.dtv;
 
 import android.util.Log;
 
-import com.iwedia.dtv.epg.EpgEvent;
 import com.iwedia.dtv.types.InternalException;
-
-import java.util.Date;
+import com.iwedia.exampleip.epg.EpgEventInfo;
 
 /**
  * Class for Holding Channel Name and Number.
@@ -26,18 +24,20 @@ public class ChannelInfo {
     private String mName = "";
     private String mEPGNow = "";
     private String mEPGNext = "";
-    private Date mStartTime = null;
-    private Date mEndTime = null;
+    /** Start time of present event in milliseconds, -1 if not known. */
+    private long mStartTime = -1;
+    /** End time of present event in milliseconds, -1 if not known. */
+    private long mEndTime = -1;
     private String mParental = "";
 
-    public ChannelInfo(int channelNumber, String channelName, EpgEvent now,
-            EpgEvent next) {
+    public ChannelInfo(int channelNumber, String channelName,
+            EpgEventInfo now, EpgEventInfo next) {
         mNumber = channelNumber;
         mName = channelName;
         if (now != null) {
             mEPGNow = now.getName();
-            mStartTime = now.getStartTime().getCalendar().getTime();
-            mEndTime = now.getEndTime().getCalendar().getTime();
+            mStartTime = now.getStartTime();
+            mEndTime = now.getEndTime();
             mParental = getParentalRating(now.getParentalRate());
         }
         if (next != null) {
@@ -56,13 +56,22 @@ public class ChannelInfo {
     }
 
     public int getProgressPercentPassed() {
+        return getProgressPercentPassed(DVBManager.getInstance()
+                .getCurrentTimeMillis());
+    }
+
+    /**
+     * Get progress of present event at given time.
+     * 
+     * @param currentTime
+     *        Middleware time in milliseconds.
+     * @return Percent passed or -1 if event is not running.
+     */
+    public int getProgressPercentPassed(long currentTime) {
         int returnValue = -1;
-        Date currentDate = DVBManager.getInstance().getCurrentTimeDate()
-                .getCalendar().getTime();
-        if (mStartTime != null && mEndTime != null && currentDate != null) {
-            long startTime = mStartTime.getTime();
-            long endTime = mEndTime.getTime();
-            long currentTime = currentDate.getTime();
+        if (mStartTime != -1 && mEndTime > mStartTime) {
+            long startTime = mStartTime;
+            long endTime = mEndTime;
             if (currentTime < startTime || currentTime > endTime) {
                 return -1;
             }
@@ -92,11 +101,17 @@ public class ChannelInfo {
         return mEPGNext;
     }
 
-    public Date getStartTime() {
+    /**
+     * Get start time of present event in milliseconds, -1 if not known.
+     */
+    public long getStartTime() {
         return mStartTime;
     }
 
-    public Date getEndTime() {
+    /**
+     * Get end time of present event in milliseconds, -1 if not known.
+     */
+    public long getEndTime() {
         return mEndTime;
     }
 
@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import android.util.SparseIntArray;
+
+import com.iwedia.dtv.service.IServiceControl;
+import com.iwedia.dtv.service.ServiceDescriptor;
+import com.iwedia.dtv.service.SourceType;
+import com.iwedia.exampleip.ip.IpChannelSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Immutable table of all channels shown to the user. DVB services from the
+ * middleware list come first, followed by IP services. Channel numbers used
+ * by the application are indexes into this table, the middleware index of a
+ * DVB service (including the dummy first entry that exists when IP and some
+ * other tuner type are both present) is kept per channel. Number shown to
+ * the user is logical channel number (LCN) of DVB service. Services without
+ * LCN, services whose LCN is already taken and IP services are numbered in
+ * lineup order after the highest LCN, so without any LCN number shown is
+ * channel number + 1.
+ */
+public class ChannelLineup {
+    /** Lineup with no channels. */
+    public static final ChannelLineup EMPTY = new ChannelLineup(0,
+            new String[0], new SourceType[0], new int[0], new int[0], 0, 0,
+            IpChannelSnapshot.EMPTY);
+    /** Middleware service list this lineup is built from. */
+    private final int mListIndex;
+    private final String[] mNames;
+    private final SourceType[] mSourceTypes;
+    /** Middleware index for DVB, index in IP list for IP channels. */
+    private final int[] mServiceIndexes;
+    /** LCN of DVB channels, 0 if service has none and for IP channels. */
+    private final int[] mLcns;
+    private final int mDvbCount;
+    /** Offset of first real service in middleware list. */
+    private final int mServiceIndexOffset;
+    private final IpChannelSnapshot mIpChannels;
+    /** Numbers shown to the user, built on first use. */
+    private volatile DisplayNumbers mDisplayNumbers = null;
+
+    /**
+     * Numbers shown to the user and channels by number.
+     */
+    private static class DisplayNumbers {
+        final int[] mNumbers;
+        final SparseIntArray mChannels;
+
+        DisplayNumbers(int[] numbers, SparseIntArray channels) {
+            mNumbers = numbers;
+            mChannels = channels;
+        }
+    }
+
+    private ChannelLineup(int listIndex, String[] names,
+            SourceType[] sourceTypes, int[] serviceIndexes, int[] lcns,
+            int dvbCount, int serviceIndexOffset, IpChannelSnapshot ipChannels) {
+        mListIndex = listIndex;
+        mNames = names;
+        mSourceTypes = sourceTypes;
+        mServiceIndexes = serviceIndexes;
+        mLcns = lcns;
+        mDvbCount = dvbCount;
+        mServiceIndexOffset = serviceIndexOffset;
+        mIpChannels = ipChannels;
+    }
+
+    /**
+     * Build lineup by enumerating middleware service list.
+     *
+     * @param serviceControl
+     *        Service control to read descriptors from, can be null if DVB
+     *        services should not be part of lineup.
+     * @param listIndex
+     *        Middleware service list index.
+     * @param dummyFirstEntry
+     *        True if first entry of middleware list is a dummy one.
+     * @param ipChannels
+     *        IP channels to append, can be null.
+     */
+    public static ChannelLineup build(IServiceControl serviceControl,
+            int listIndex, boolean dummyFirstEntry,
+            IpChannelSnapshot ipChannels) {
+        int offset = dummyFirstEntry ? 1 : 0;
+        String[] names = new String[0];
+        SourceType[] sourceTypes = new SourceType[0];
+        int[] serviceIndexes = new int[0];
+        int[] lcns = new int[0];
+        if (serviceControl != null) {
+            int count = Math.max(
+                    serviceControl.getServiceListCount(listIndex) - offset, 0);
+            names = new String[count];
+            sourceTypes = new SourceType[count];
+            serviceIndexes = new int[count];
+            lcns = new int[count];
+            fillDvb(serviceControl, listIndex, offset, names, sourceTypes,
+                    serviceIndexes, lcns, 0, count);
+        }
+        return new ChannelLineup(listIndex, names, sourceTypes,
+                serviceIndexes, lcns, names.length, offset,
+                IpChannelSnapshot.EMPTY).withIpServices(ipChannels);
+    }
+
+    /**
+     * Build lineup in which only descriptor of one channel is read. Startup
+     * zap uses it so it does not wait for all descriptors. Other DVB
+     * channels have empty names and no source type, so the lineup is not
+     * published.
+     *
+     * @param channelNumber
+     *        Channel whose descriptor is read, -1 for last channel.
+     * @see #build(IServiceControl, int, boolean, IpChannelSnapshot)
+     */
+    public static ChannelLineup buildSingle(IServiceControl serviceControl,
+            int listIndex, boolean dummyFirstEntry,
+            IpChannelSnapshot ipChannels, int channelNumber) {
+        int offset = dummyFirstEntry ? 1 : 0;
+        int count = serviceControl == null ? 0 : Math.max(
+                serviceControl.getServiceListCount(listIndex) - offset, 0);
+        String[] names = new String[count];
+        SourceType[] sourceTypes = new SourceType[count];
+        int[] serviceIndexes = new int[count];
+        int[] lcns = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "";
+            serviceIndexes[i] = i + offset;
+        }
+        int size = count + (ipChannels == null ? 0 : ipChannels.size());
+        if (size != 0) {
+            int target = (channelNumber + size) % size;
+            if (target < count) {
+                fillDvb(serviceControl, listIndex, offset, names, sourceTypes,
+                        serviceIndexes, lcns, target, target + 1);
+            }
+        }
+        return new ChannelLineup(listIndex, names, sourceTypes,
+                serviceIndexes, lcns, count, offset, IpChannelSnapshot.EMPTY)
+                .withIpServices(ipChannels);
+    }
+
+    /**
+     * Read descriptors for DVB channels in range [from, to).
+     */
+    private static void fillDvb(IServiceControl serviceControl,
+            int listIndex, int offset, String[] names,
+            SourceType[] sourceTypes, int[] serviceIndexes, int[] lcns,
+            int from, int to) {
+        for (int i = from; i < to; i++) {
+            ServiceDescriptor descriptor = serviceControl.getServiceDescriptor(
+                    listIndex, i + offset);
+            names[i] = descriptor.getName();
+            sourceTypes[i] = descriptor.getSourceType();
+            serviceIndexes[i] = i + offset;
+            lcns[i] = Math.max(descriptor.getLCN(), 0);
+        }
+    }
+
+    /**
+     * Return lineup with same DVB part and new IP part. Middleware is not
+     * accessed, same lineup is returned if IP channels are not changed.
+     *
+     * @param ipChannels
+     *        New IP channels, can be null.
+     */
+    public ChannelLineup withIpServices(IpChannelSnapshot ipChannels) {
+        IpChannelSnapshot ip = ipChannels == null ? IpChannelSnapshot.EMPTY
+                : ipChannels;
+        if (ip == mIpChannels) {
+            return this;
+        }
+        int size = mDvbCount + ip.size();
+        String[] names = new String[size];
+        SourceType[] sourceTypes = new SourceType[size];
+        int[] serviceIndexes = new int[size];
+        int[] lcns = new int[size];
+        System.arraycopy(mNames, 0, names, 0, mDvbCount);
+        System.arraycopy(mSourceTypes, 0, sourceTypes, 0, mDvbCount);
+        System.arraycopy(mServiceIndexes, 0, serviceIndexes, 0, mDvbCount);
+        System.arraycopy(mLcns, 0, lcns, 0, mDvbCount);
+        for (int i = 0; i < ip.size(); i++) {
+            names[mDvbCount + i] = ip.get(i).getName();
+            sourceTypes[mDvbCount + i] = SourceType.IP;
+            serviceIndexes[mDvbCount + i] = i;
+        }
+        ChannelLineup lineup = new ChannelLineup(mListIndex, names,
+                sourceTypes, serviceIndexes, lcns, mDvbCount,
+                mServiceIndexOffset, ip);
+        DisplayNumbers displayNumbers = mDisplayNumbers;
+        if (displayNumbers != null) {
+            lineup.mDisplayNumbers = withIpNumbers(displayNumbers, size);
+        }
+        return lineup;
+    }
+
+    /**
+     * Get display numbers with same DVB part and IP part numbered again.
+     * IP channels are numbered last, so DVB numbers do not depend on them.
+     */
+    private DisplayNumbers withIpNumbers(DisplayNumbers displayNumbers,
+            int size) {
+        int[] numbers = new int[size];
+        System.arraycopy(displayNumbers.mNumbers, 0, numbers, 0, mDvbCount);
+        SparseIntArray channels = new SparseIntArray(size);
+        int next = 1;
+        for (int i = 0; i < displayNumbers.mChannels.size(); i++) {
+            if (displayNumbers.mChannels.valueAt(i) < mDvbCount) {
+                int number = displayNumbers.mChannels.keyAt(i);
+                channels.append(number, displayNumbers.mChannels.valueAt(i));
+                next = number + 1;
+            }
+        }
+        for (int i = mDvbCount; i < size; i++) {
+            numbers[i] = next;
+            channels.append(next, i);
+            next++;
+        }
+        return new DisplayNumbers(numbers, channels);
+    }
+
+    /**
+     * Return lineup refreshed against middleware list. All descriptors are
+     * read again, because middleware does not report which services changed
+     * and a list of same size can have services renamed or moved. Same
+     * lineup is returned if no service is added, removed, renamed, moved or
+     * renumbered.
+     *
+     * @param serviceControl
+     *        Service control to read descriptors from.
+     */
+    public ChannelLineup refreshDvbServices(IServiceControl serviceControl) {
+        int count = Math.max(serviceControl.getServiceListCount(mListIndex)
+                - mServiceIndexOffset, 0);
+        String[] names = new String[count];
+        SourceType[] sourceTypes = new SourceType[count];
+        int[] serviceIndexes = new int[count];
+        int[] lcns = new int[count];
+        fillDvb(serviceControl, mListIndex, mServiceIndexOffset, names,
+                sourceTypes, serviceIndexes, lcns, 0, count);
+        if (isSameDvb(names, sourceTypes, lcns)) {
+            return this;
+        }
+        return new ChannelLineup(mListIndex, names, sourceTypes,
+                serviceIndexes, lcns, count, mServiceIndexOffset,
+                IpChannelSnapshot.EMPTY).withIpServices(mIpChannels);
+    }
+
+    private boolean isSameDvb(String[] names, SourceType[] sourceTypes,
+            int[] lcns) {
+        if (names.length != mDvbCount) {
+            return false;
+        }
+        for (int i = 0; i < mDvbCount; i++) {
+            if (!equal(names[i], mNames[i])
+                    || sourceTypes[i] != mSourceTypes[i]
+                    || lcns[i] != mLcns[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * Return lineup with a single DVB channel re-read from middleware.
+     *
+     * @param serviceControl
+     *        Service control to read descriptor from.
+     * @param channelNumber
+     *        DVB channel to refresh.
+     */
+    public ChannelLineup refreshDvbService(IServiceControl serviceControl,
+            int channelNumber) {
+        if (channelNumber < 0 || channelNumber >= mDvbCount) {
+            return this;
+        }
+        String[] names = mNames.clone();
+        SourceType[] sourceTypes = mSourceTypes.clone();
+        int[] serviceIndexes = mServiceIndexes.clone();
+        int[] lcns = mLcns.clone();
+        fillDvb(serviceControl, mListIndex, mServiceIndexOffset, names,
+                sourceTypes, serviceIndexes, lcns, channelNumber,
+                channelNumber + 1);
+        return new ChannelLineup(mListIndex, names, sourceTypes,
+                serviceIndexes, lcns, mDvbCount, mServiceIndexOffset,
+                mIpChannels);
+    }
+
+    /**
+     * Get middleware service list index.
+     */
+    public int getListIndex() {
+        return mListIndex;
+    }
+
+    /**
+     * Get number of channels.
+     */
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * Get number of DVB channels, IP channels start from this index.
+     */
+    public int getDvbCount() {
+        return mDvbCount;
+    }
+
+    public int getIpCount() {
+        return mIpChannels.size();
+    }
+
+    /**
+     * Get generation of IP channel list this lineup is built with.
+     */
+    public long getIpGeneration() {
+        return mIpChannels.getGeneration();
+    }
+
+    public String getName(int channelNumber) {
+        return mNames[channelNumber];
+    }
+
+    public SourceType getSourceType(int channelNumber) {
+        return mSourceTypes[channelNumber];
+    }
+
+    public boolean isIp(int channelNumber) {
+        return channelNumber >= mDvbCount;
+    }
+
+    /**
+     * Get middleware service index of DVB channel or index in IP list for IP
+     * channel.
+     */
+    public int getServiceIndex(int channelNumber) {
+        return mServiceIndexes[channelNumber];
+    }
+
+    /**
+     * Get IP service of IP channel.
+     */
+    public IPService getIpService(int channelNumber) {
+        return mIpChannels.get(channelNumber - mDvbCount);
+    }
+
+    /**
+     * Get channel number from middleware service index.
+     *
+     * @return Channel number or -1 if it is not part of lineup.
+     */
+    public int getChannelNumber(int serviceIndex) {
+        int channelNumber = serviceIndex - mServiceIndexOffset;
+        if (channelNumber < 0 || channelNumber >= mDvbCount) {
+            return -1;
+        }
+        return channelNumber;
+    }
+
+    /**
+     * Get key that identifies service of channel independently of its
+     * position in lineup.
+     */
+    public String getServiceKey(int channelNumber) {
+        if (isIp(channelNumber)) {
+            return "ip:" + getIpService(channelNumber).getUrl();
+        }
+        return "dvb:" + mSourceTypes[channelNumber] + ":"
+                + mLcns[channelNumber] + ":" + mNames[channelNumber];
+    }
+
+    /**
+     * Get hash of list index and services of all channels in lineup order.
+     * Lineups with same fingerprint number their services the same way.
+     */
+    public long getFingerprint() {
+        long fingerprint = mListIndex;
+        for (int i = 0; i < mNames.length; i++) {
+            fingerprint = fingerprint * 31 + getServiceKey(i).hashCode();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Get number shown to the user for channel.
+     */
+    public int getDisplayNumber(int channelNumber) {
+        return getDisplayNumbers().mNumbers[channelNumber];
+    }
+
+    /**
+     * Get channel number from number shown to the user.
+     *
+     * @return Channel number or -1 if no channel has that number.
+     */
+    public int findByDisplayNumber(int displayNumber) {
+        return getDisplayNumbers().mChannels.get(displayNumber, -1);
+    }
+
+    /**
+     * Get highest number shown to the user, 0 if lineup is empty.
+     */
+    public int getMaxDisplayNumber() {
+        SparseIntArray channels = getDisplayNumbers().mChannels;
+        int size = channels.size();
+        return size == 0 ? 0 : channels.keyAt(size - 1);
+    }
+
+    /**
+     * Get numbers shown to the user, they are assigned on first call.
+     * Concurrent first calls assign same numbers.
+     */
+    private DisplayNumbers getDisplayNumbers() {
+        DisplayNumbers displayNumbers = mDisplayNumbers;
+        if (displayNumbers != null) {
+            return displayNumbers;
+        }
+        int[] numbers = new int[mNames.length];
+        SparseIntArray channels = new SparseIntArray(mNames.length);
+        int maxLcn = 0;
+        for (int i = 0; i < mDvbCount; i++) {
+            int lcn = mLcns[i];
+            if (lcn > 0 && channels.get(lcn, -1) == -1) {
+                numbers[i] = lcn;
+                channels.put(lcn, i);
+                maxLcn = Math.max(maxLcn, lcn);
+            }
+        }
+        int next = maxLcn + 1;
+        for (int i = 0; i < numbers.length; i++) {
+            if (numbers[i] == 0) {
+                numbers[i] = next;
+                channels.append(next, i);
+                next++;
+            }
+        }
+        displayNumbers = new DisplayNumbers(numbers, channels);
+        mDisplayNumbers = displayNumbers;
+        return displayNumbers;
+    }
+
+    /**
+     * Get Channel Names.
+     */
+    public ArrayList<String> getNames() {
+        ArrayList<String> names = new ArrayList<String>(mNames.length);
+        Collections.addAll(names, mNames);
+        return names;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copy of middleware clock. Offset between middleware time and
+ * {@link SystemClock#elapsedRealtime()} is read at intervals, current
+ * middleware time is then computed without IPC.
+ */
+public class ClockMirror {
+    private static final String TAG = "ClockMirror";
+    /** Interval between synchronizations with middleware. */
+    public static final long SYNC_INTERVAL_MILLIS = 30000;
+
+    /**
+     * Source of middleware time.
+     */
+    public interface TimeSource {
+        /** Get middleware time in milliseconds, this is an IPC. */
+        public long getTimeMillis();
+    }
+
+    private final TimeSource mTimeSource;
+    /** Middleware time minus elapsed realtime. */
+    private volatile long mOffsetMillis;
+    private volatile boolean mSynced = false;
+
+    public ClockMirror(TimeSource timeSource) {
+        mTimeSource = timeSource;
+    }
+
+    /**
+     * Synchronize with middleware at fixed interval on given executor.
+     */
+    public void start(ScheduledExecutorService executor) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Clock sync failed", e);
+                }
+            }
+        }, 0, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Read middleware time and update offset. Time of IPC is split in half
+     * to estimate moment when middleware time was taken.
+     */
+    public void sync() {
+        long before = SystemClock.elapsedRealtime();
+        long timeMillis = mTimeSource.getTimeMillis();
+        long after = SystemClock.elapsedRealtime();
+        long offset = timeMillis - (before + after) / 2;
+        if (mSynced && Math.abs(offset - mOffsetMillis) > 1000) {
+            Log.d(TAG, "Middleware clock jumped by "
+                    + (offset - mOffsetMillis) + "ms");
+        }
+        mOffsetMillis = offset;
+        mSynced = true;
+    }
+
+    /**
+     * Get current middleware time in milliseconds. Middleware is asked only
+     * if clock was never synchronized.
+     */
+    public long currentTimeMillis() {
+        if (!mSynced) {
+            sync();
+        }
+        return SystemClock.elapsedRealtime() + mOffsetMillis;
+    }
+
+    public boolean isSynced() {
+        return mSynced;
+    }
+}
@@ -10,30 +10,60 @@
  */
 package com.iwedia.exampleip.dtv;
 
-import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.iwedia.dtv.dtvmanager.DTVManager;
 import com.iwedia.dtv.dtvmanager.IDTVManager;
 import com.iwedia.dtv.epg.EpgEventType;
+import com.iwedia.dtv.epg.EpgTimeFilter;
+import com.iwedia.dtv.epg.IEpgControl;
+import com.iwedia.dtv.parental.dvb.IParentalCallbackDvb;
 import com.iwedia.dtv.route.broadcast.IBroadcastRouteControl;
-import com.iwedia.dtv.route.broadcast.RouteDemuxDescriptor;
-import com.iwedia.dtv.route.broadcast.RouteFrontendDescriptor;
 import com.iwedia.dtv.route.broadcast.RouteFrontendType;
-import com.iwedia.dtv.route.broadcast.RouteMassStorageDescriptor;
 import com.iwedia.dtv.route.common.ICommonRouteControl;
-import com.iwedia.dtv.route.common.RouteDecoderDescriptor;
-import com.iwedia.dtv.route.common.RouteInputOutputDescriptor;
-import com.iwedia.dtv.service.IServiceControl;
-import com.iwedia.dtv.service.ServiceDescriptor;
 import com.iwedia.dtv.service.SourceType;
 import com.iwedia.dtv.types.InternalException;
 import com.iwedia.dtv.types.TimeDate;
 import com.iwedia.exampleip.DTVActivity;
 import com.iwedia.exampleip.callbacks.EPGCallBack;
+import com.iwedia.exampleip.callbacks.ServiceCallback;
+import com.iwedia.exampleip.dtv.RouteTable.RouteEntry;
+import com.iwedia.exampleip.epg.EpgAcquisitionScheduler;
+import com.iwedia.exampleip.epg.EpgEventInfo;
+import com.iwedia.exampleip.epg.EpgSnapshot;
+import com.iwedia.exampleip.epg.EpgTitleIndex;
+import com.iwedia.exampleip.epg.EpgUpdateCoalescer;
+import com.iwedia.exampleip.epg.PresentFollowingCache;
+import com.iwedia.exampleip.epg.ScheduleStore;
+import com.iwedia.exampleip.ip.HlsManifestCache;
+import com.iwedia.exampleip.ip.IpChannelDiff;
+import com.iwedia.exampleip.ip.IpChannelListWatcher;
+import com.iwedia.exampleip.ip.IpChannelSnapshot;
+import com.iwedia.exampleip.ip.IpChannelSource;
+import com.iwedia.exampleip.ip.IpPlaybackWatchdog;
+import com.iwedia.exampleip.ip.MulticastRelay;
+import com.iwedia.exampleip.ip.ReceptionStatsTap;
+import com.iwedia.exampleip.ip.SourceRacer;
+import com.iwedia.exampleip.ip.StreamProber;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.EnumSet;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * DVBManager - Class For Handling MW Components.
@@ -42,31 +72,180 @@ public class DVBManager {
     public static final String TAG = "DVBManager";
     /** DTV Service Intent Action. */
     private IDTVManager mDTVManager = null;
-    private int mCurrentLiveRoute = -1;
-    private int mLiveRouteSat = -1;
-    private int mLiveRouteTer = -1;
-    private int mLiveRouteCab = -1;
-    private int mLiveRouteIp = -1;
-    private int mPlaybackRouteIDMain = -1;
-    private int mRecordRouteTer = -1;
-    private int mRecordRouteCab = -1;
-    private int mRecordRouteSat = -1;
-    private int mRecordRouteIp = -1;
-    private int mCurrentRecordRoute = -1;
+    private volatile int mCurrentLiveRoute = -1;
+    /** Live route acquired for current channel. */
+    private volatile RouteEntry mCurrentLiveEntry = null;
+    /** Live and record routes of all frontends. */
+    private RouteTable mRouteTable = null;
+    private volatile int mPlaybackRouteIDMain = -1;
+    /** Record route a recording of current channel would get, not acquired. */
+    private volatile int mCurrentRecordRoute = -1;
     /** EPG Filter ID */
     private int mEPGFilterID = -1;
+    /** EPG event lists of running schedule acquisitions by channel. */
+    private final LinkedHashMap<Integer, Integer> mScheduleFilterIDs = new LinkedHashMap<Integer, Integer>();
+    /** Number of schedule acquisitions that can run at once. */
+    private static final int MAX_SCHEDULE_ACQUISITIONS = 8;
+    /** File where EPG data is kept between application runs. */
+    private volatile File mEpgSnapshotFile = null;
+    /** Length of schedule that is acquired. */
+    private static final long SCHEDULE_WINDOW_MILLIS = 7 * 24 * 60 * 60 * 1000L;
     /** Currently active list in comedia. */
-    private static final int CURRENT_LIST_INDEX = 0;
+    private volatile int mActiveListIndex = 0;
+    /** Number of service lists user can choose from. */
+    public static final int SERVICE_LIST_COUNT = 4;
+    /** Cached lineups of service lists that were already used. */
+    private final SparseArray<ChannelLineup> mListLineups = new SparseArray<ChannelLineup>();
+    /** True while refresh of service list is queued and not started. */
+    private final AtomicBoolean mServiceListRefreshQueued = new AtomicBoolean();
+    /** Builds lineups of service lists in background. */
+    private final ExecutorService mListLoader = Executors
+            .newSingleThreadExecutor(new NamedThreadFactory("ServiceListLoader"));
     /** IP stuff */
-    private int mCurrentChannelNumberIp = -1;
-    private boolean ipAndSomeOtherTunerType = false;
+    private volatile int mCurrentChannelNumberIp = -1;
+    /** IP channels read from list files, replaced as a whole. */
+    private final AtomicReference<IpChannelSnapshot> mIpChannels = new AtomicReference<IpChannelSnapshot>(
+            IpChannelSnapshot.EMPTY);
+    /** Files IP channels are read from. */
+    private volatile IpChannelSource mIpChannelSource = null;
+    /** Background load of IP channel list, null if none was started. */
+    private volatile Future<?> mIpChannelLoad = null;
+    /** Reads IP channels again when their files change. */
+    private final IpChannelListWatcher mIpListWatcher = new IpChannelListWatcher(
+            new IpChannelListWatcher.Listener() {
+                @Override
+                public void onListsChanged() {
+                    IpChannelSource source = mIpChannelSource;
+                    if (source != null) {
+                        setIpChannels(source.load());
+                        watchIpChannelSource(source);
+                    }
+                }
+            });
+    /** Locked info is shown for IP channel that is not started. */
+    private volatile boolean mIpLockShown = false;
+    /** Channel started by last zap, -1 if it should be read from middleware. */
+    private volatile int mCurrentChannelNumber = -1;
+    /** Number of threads used for route discovery. */
+    private static final int STARTUP_THREADS = 4;
     /** Teletext and subtitle */
     private TeletextSubtitleAudioManager mTeletextSubtitleAudioManager;
     /** Parental control manager. */
     private ParentalManager mParentalManager = null;
+    /** Registered when parental manager is created. */
+    private IParentalCallbackDvb mParentalCallback = null;
     private static DVBManager instance;
     /** EPG CallBack. */
     private EPGCallBack mEpgCallBack = null;
+    /** Service Callback. */
+    private ServiceCallback mServiceCallback = null;
+    /** Cached channel lineup, built on first use. */
+    private volatile ChannelLineup mChannelLineup = null;
+    /** Held while first lineup is read from middleware. */
+    private final Object mLineupBuildLock = new Object();
+    /** Executor for channel changes. */
+    private final ZapExecutor mZapExecutor = new ZapExecutor();
+    /** Channel of latest zap request, -1 if nothing is requested yet. */
+    private volatile int mRequestedChannelNumber = -1;
+    /** Zap time statistics. */
+    private final ZapLatencyTracker mZapLatencyTracker = new ZapLatencyTracker();
+    /** Startup milestones. */
+    private final StartupTrace mStartupTrace = new StartupTrace();
+    /** Present/following events by channel. */
+    private final PresentFollowingCache mPresentFollowingCache = new PresentFollowingCache();
+    /** Schedule events by channel. */
+    private final ScheduleStore mScheduleStore = new ScheduleStore();
+    /** Orders EPG refreshes by what the user is looking at. */
+    private final EpgAcquisitionScheduler mEpgScheduler = new EpgAcquisitionScheduler(
+            new EpgAcquisitionScheduler.Refresher() {
+                @Override
+                public boolean refresh(int channelNumber) {
+                    ChannelLineup lineup = mChannelLineup;
+                    if (lineup == null || channelNumber >= lineup.size()
+                            || lineup.isIp(channelNumber)) {
+                        return false;
+                    }
+                    refreshPresentFollowing(channelNumber);
+                    if (!mScheduleStore.hasSchedule(channelNumber)) {
+                        acquireSchedule(channelNumber);
+                    }
+                    return true;
+                }
+            });
+    /** Reachability of IP services. */
+    private final StreamProber mStreamProber = new StreamProber();
+    /** Picks fastest source of IP services with several URLs. */
+    private final SourceRacer mSourceRacer = new SourceRacer(mStreamProber);
+    /** Time for which probe result of played stream is used. */
+    private static final long WATCHDOG_PROBE_TTL_MILLIS = 10000;
+    /** Probes of played stream that is neither relayed nor tapped. */
+    private final StreamProber mWatchdogProber = new StreamProber(1,
+            WATCHDOG_PROBE_TTL_MILLIS,
+            (int) IpPlaybackWatchdog.CHECK_INTERVAL_MILLIS);
+    /** Retries IP channels whose stream stopped. */
+    private final IpPlaybackWatchdog mPlaybackWatchdog = new IpPlaybackWatchdog(
+            mSourceRacer, new IpPlaybackWatchdog.Player() {
+                @Override
+                public boolean isReceiving(String url) {
+                    return isIpSourceReceiving(url);
+                }
+
+                @Override
+                public void retry(int channelNumber, String url) {
+                    retryIpChannel(channelNumber, url);
+                }
+
+                @Override
+                public void gaveUp(int channelNumber) {
+                    if (mDVBStatus != null) {
+                        mDVBStatus.zapFailed(channelNumber);
+                    }
+                }
+            });
+    /** Reception statistics of multicast channel that is played. */
+    private final ReceptionStatsTap mReceptionStatsTap = new ReceptionStatsTap();
+    /** HLS playlists of current channel and its neighbours. */
+    private final HlsManifestCache mHlsManifestCache = new HlsManifestCache();
+    /** Number of IP channels on each side of current one to prefetch. */
+    private static final int IP_PREFETCH_NEIGHBOURS = 1;
+    /** Number of channels around current or visible ones to probe. */
+    private static final int IP_PROBE_NEIGHBOURS = 3;
+    /** Relay for multicast IP channels, null when it is disabled. */
+    private volatile MulticastRelay mMulticastRelay = null;
+    /** Words of event names. */
+    private final EpgTitleIndex mEpgTitleIndex = new EpgTitleIndex();
+    /** Middleware time without IPC. */
+    private final ClockMirror mClockMirror = new ClockMirror(
+            new ClockMirror.TimeSource() {
+                @Override
+                public long getTimeMillis() {
+                    return getCurrentTimeDate().getCalendar()
+                            .getTimeInMillis();
+                }
+            });
+    /** Merges present/following notifications before UI is updated. */
+    private final EpgUpdateCoalescer mEpgUpdateCoalescer = new EpgUpdateCoalescer(
+            new EpgUpdateCoalescer.Listener() {
+                @Override
+                public boolean isDisplayed(int channelNumber) {
+                    return channelNumber == getRequestedChannelNumber();
+                }
+
+                @Override
+                public void applyChange(int channelNumber) {
+                    refreshPresentFollowing(channelNumber);
+                }
+
+                @Override
+                public void markStale(int channelNumber) {
+                    mPresentFollowingCache.invalidate(channelNumber);
+                }
+
+                @Override
+                public void changesApplied(int appliedCount) {
+                    updateNowNext();
+                }
+            });
 
     /**
      * CallBack for currently DVB status.
@@ -80,6 +259,12 @@ public class DVBManager {
 
         /** channel is locked. */
         public void channelLocked(boolean locked);
+
+        /** Asynchronous zap failed. */
+        public void zapFailed(int channelNumber);
+
+        /** Asynchronous zap is done, channel info can be shown. */
+        public void zapFinished(int channelNumber);
     }
 
     /** CallBack for UI. */
@@ -93,6 +278,7 @@ public class DVBManager {
     }
 
     private DVBManager() {
+        mStartupTrace.mark(StartupTrace.DVB_MANAGER_CREATED);
         mDTVManager = new DTVManager();
         try {
             initializeDTVService();
@@ -102,19 +288,27 @@ public class DVBManager {
     }
 
     /**
-     * Initialize Service.
+     * Initialize Service. Routes are discovered in background, parental and
+     * teletext/subtitle/audio managers are created on first use.
      * 
      * @throws InternalException
      */
     private void initializeDTVService() throws InternalException {
         initializeRouteId();
-        mParentalManager = ParentalManager.getInstance(mDTVManager);
-        mTeletextSubtitleAudioManager = TeletextSubtitleAudioManager
-                .getInstance(mDTVManager.getTeletextControl(),
-                        mDTVManager.getSubtitleControl(),
-                        mDTVManager.getAudioControl(),
-                        mDTVManager.getDisplayControl());
+        mClockMirror.start(Executors
+                .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                        "ClockMirror")));
         mEPGFilterID = mDTVManager.getEpgControl().createEventList();
+        mStartupTrace.mark(StartupTrace.EVENT_LIST_CREATED);
+    }
+
+    /**
+     * Registers service callback, lineup is refreshed when middleware
+     * service list changes.
+     */
+    public void registerServiceCallback() {
+        mServiceCallback = ServiceCallback.getInstance();
+        mDTVManager.getServiceControl().registerCallback(mServiceCallback);
     }
 
     /**
@@ -127,163 +321,58 @@ public class DVBManager {
     }
 
     /**
-     * Initialize Descriptors For Live Route.
-     * 
-     * @throws RemoteException
+     * Initialize Route Table For Live and Record Routes.
      */
     private void initializeRouteId() {
-        IBroadcastRouteControl broadcastRouteControl = mDTVManager
+        final IBroadcastRouteControl broadcastRouteControl = mDTVManager
                 .getBroadcastRouteControl();
-        ICommonRouteControl commonRouteControl = mDTVManager
+        final ICommonRouteControl commonRouteControl = mDTVManager
                 .getCommonRouteControl();
+        ExecutorService startupExecutor = Executors.newFixedThreadPool(
+                STARTUP_THREADS, new NamedThreadFactory("RouteDiscovery"));
         /**
-         * RETRIEVE DEMUX DESCRIPTOR.
-         */
-        RouteDemuxDescriptor demuxDescriptor = broadcastRouteControl
-                .getDemuxDescriptor(0);
-        /**
-         * RETRIEVE DECODER DESCRIPTOR.
-         */
-        RouteDecoderDescriptor decoderDescriptor = commonRouteControl
-                .getDecoderDescriptor(0);
-        /**
-         * RETRIEVING OUTPUT DESCRIPTOR.
+         * RETRIEVE LIVE AND RECORD ROUTES OF ALL FRONTENDS, EVERY FRONTEND
+         * IN ITS OWN TASK.
          */
-        RouteInputOutputDescriptor outputDescriptor = commonRouteControl
-                .getInputOutputDescriptor(0);
+        mRouteTable = RouteTable.discover(broadcastRouteControl,
+                commonRouteControl, startupExecutor);
         /**
-         * RETRIEVING MASS STORAGE DESCRIPTOR.
-         */
-        RouteMassStorageDescriptor massStorageDescriptor = new RouteMassStorageDescriptor();
-        massStorageDescriptor = broadcastRouteControl
-                .getMassStorageDescriptor(0);
-        /**
-         * GET NUMBER OF FRONTENDS.
-         */
-        int numberOfFrontends = broadcastRouteControl.getFrontendNumber();
-        /**
-         * FIND DVB and IP front-end descriptors.
+         * RETRIEVE PLAYBACK ROUTE
          */
-        EnumSet<RouteFrontendType> frontendTypes = null;
-        for (int i = 0; i < numberOfFrontends; i++) {
-            RouteFrontendDescriptor frontendDescriptor = broadcastRouteControl
-                    .getFrontendDescriptor(i);
-            frontendTypes = frontendDescriptor.getFrontendType();
-            for (RouteFrontendType frontendType : frontendTypes) {
-                switch (frontendType) {
-                    case SAT: {
-                        if (mLiveRouteSat == -1) {
-                            mLiveRouteSat = getLiveRouteId(frontendDescriptor,
-                                    demuxDescriptor, decoderDescriptor,
-                                    outputDescriptor, broadcastRouteControl);
-                        }
-                        /**
-                         * RETRIEVE RECORD ROUTES
-                         */
-                        if (mRecordRouteSat == -1) {
-                            mRecordRouteSat = broadcastRouteControl
-                                    .getRecordRoute(frontendDescriptor
-                                            .getFrontendId(), demuxDescriptor
-                                            .getDemuxId(),
-                                            massStorageDescriptor
-                                                    .getMassStorageId());
-                        }
-                        break;
-                    }
-                    case CAB: {
-                        if (mLiveRouteCab == -1) {
-                            mLiveRouteCab = getLiveRouteId(frontendDescriptor,
-                                    demuxDescriptor, decoderDescriptor,
-                                    outputDescriptor, broadcastRouteControl);
-                        }
-                        /**
-                         * RETRIEVE RECORD ROUTES
-                         */
-                        if (mRecordRouteCab == -1) {
-                            mRecordRouteCab = broadcastRouteControl
-                                    .getRecordRoute(frontendDescriptor
-                                            .getFrontendId(), demuxDescriptor
-                                            .getDemuxId(),
-                                            massStorageDescriptor
-                                                    .getMassStorageId());
-                        }
-                        break;
-                    }
-                    case TER: {
-                        if (mLiveRouteTer == -1) {
-                            mLiveRouteTer = getLiveRouteId(frontendDescriptor,
-                                    demuxDescriptor, decoderDescriptor,
-                                    outputDescriptor, broadcastRouteControl);
-                        }
-                        /**
-                         * RETRIEVE RECORD ROUTES
-                         */
-                        if (mRecordRouteTer == -1) {
-                            mRecordRouteTer = broadcastRouteControl
-                                    .getRecordRoute(frontendDescriptor
-                                            .getFrontendId(), demuxDescriptor
-                                            .getDemuxId(),
-                                            massStorageDescriptor
-                                                    .getMassStorageId());
-                        }
-                        break;
-                    }
-                    case IP: {
-                        if (mLiveRouteIp == -1) {
-                            mLiveRouteIp = getLiveRouteId(frontendDescriptor,
-                                    demuxDescriptor, decoderDescriptor,
-                                    outputDescriptor, broadcastRouteControl);
-                        }
-                        /**
-                         * RETRIEVE RECORD ROUTES
-                         */
-                        if (mRecordRouteIp == -1) {
-                            mRecordRouteIp = broadcastRouteControl
-                                    .getRecordRoute(frontendDescriptor
-                                            .getFrontendId(), demuxDescriptor
-                                            .getDemuxId(),
-                                            massStorageDescriptor
-                                                    .getMassStorageId());
-                        }
-                        break;
-                    }
-                    default:
-                        break;
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPlaybackRouteIDMain = broadcastRouteControl.getPlaybackRoute(
+                        broadcastRouteControl.getMassStorageDescriptor(0)
+                                .getMassStorageId(), broadcastRouteControl
+                                .getDemuxDescriptor(0).getDemuxId(),
+                        commonRouteControl.getDecoderDescriptor(0)
+                                .getDecoderId());
+            }
+        });
+        startupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "IP and other tuner type: "
+                        + isIpAndSomeOtherTunerType());
+                mStartupTrace.mark(StartupTrace.FRONTEND_TYPES_KNOWN);
+                /** Publish lineup, UI sees empty lineup until now. */
+                awaitChannelLineup();
+                DVBStatus status = mDVBStatus;
+                if (status != null) {
+                    status.updateNowNext();
                 }
             }
-        }
-        /**
-         * RETRIEVE PLAYBACK ROUTE
-         */
-        mPlaybackRouteIDMain = broadcastRouteControl.getPlaybackRoute(
-                massStorageDescriptor.getMassStorageId(),
-                demuxDescriptor.getDemuxId(), decoderDescriptor.getDecoderId());
-        if (mLiveRouteIp != -1
-                && (mLiveRouteCab != -1 || mLiveRouteSat != -1 || mLiveRouteTer != -1)) {
-            ipAndSomeOtherTunerType = true;
-        }
-        Log.d(TAG, "mLiveRouteTer=" + mLiveRouteTer + ", mLiveRouteCab="
-                + mLiveRouteCab + ", mLiveRouteIp=" + mLiveRouteIp);
-        Log.d(TAG, "mRecordRouteTer=" + mRecordRouteTer + ", mRecordRouteCab="
-                + mRecordRouteCab + ", mRecordRouteIp=" + mRecordRouteIp);
+        });
+        /** Threads end when discovery tasks are done. */
+        startupExecutor.shutdown();
     }
 
     /**
-     * Get Live Route From Descriptors.
-     * 
-     * @param fDescriptor
-     * @param mDemuxDescriptor
-     * @param mDecoderDescriptor
-     * @param mOutputDescriptor
+     * Check if there is a frontend for IP services.
      */
-    private int getLiveRouteId(RouteFrontendDescriptor fDescriptor,
-            RouteDemuxDescriptor mDemuxDescriptor,
-            RouteDecoderDescriptor mDecoderDescriptor,
-            RouteInputOutputDescriptor mOutputDescriptor,
-            IBroadcastRouteControl routeControl) {
-        return routeControl.getLiveRoute(fDescriptor.getFrontendId(),
-                mDemuxDescriptor.getDemuxId(),
-                mDecoderDescriptor.getDecoderId());
+    private boolean hasIpRoute() {
+        return mRouteTable.hasFrontendType(RouteFrontendType.IP);
     }
 
     /**
@@ -292,62 +381,249 @@ public class DVBManager {
      * @throws InternalException
      */
     public void stopDTV() throws InternalException {
-        if (mTeletextSubtitleAudioManager.isTeletextActive()) {
-            mTeletextSubtitleAudioManager.hideTeletext();
-        }
-        if (mTeletextSubtitleAudioManager.isSubtitleActive()) {
-            mTeletextSubtitleAudioManager.hideSubtitles();
+        synchronized (this) {
+            if (mTeletextSubtitleAudioManager != null) {
+                if (mTeletextSubtitleAudioManager.isTeletextActive()) {
+                    mTeletextSubtitleAudioManager.hideTeletext();
+                }
+                if (mTeletextSubtitleAudioManager.isSubtitleActive()) {
+                    mTeletextSubtitleAudioManager.hideSubtitles();
+                }
+            }
+            if (mParentalManager != null) {
+                mParentalManager.unregisterCallback();
+                ParentalManager.destroyInstance();
+                mParentalManager = null;
+            }
         }
-        mParentalManager.unregisterCallback();
-        ParentalManager.destroyInstance();
+        mZapExecutor.cancelPending();
+        mZapLatencyTracker.discardAll();
+        mPlaybackWatchdog.stop();
+        mReceptionStatsTap.stop();
         mDTVManager.getVideoControl().videoBlank(mPlaybackRouteIDMain, false);
         mDTVManager.getServiceControl().stopService(mCurrentLiveRoute);
+        mRouteTable.release(mCurrentLiveEntry);
+        mCurrentLiveEntry = null;
+        mCurrentRecordRoute = -1;
+        mCurrentChannelNumber = -1;
         mDTVManager.getEpgControl().releaseEventList(mEPGFilterID);
         mDTVManager.getEpgControl().unregisterCallback(mEpgCallBack,
                 mEPGFilterID);
+        releaseScheduleFilters();
+        if (mServiceCallback != null) {
+            mDTVManager.getServiceControl().unregisterCallback(
+                    mServiceCallback);
+            mServiceCallback = null;
+        }
+        saveEpgSnapshot();
+        mEpgTitleIndex.clear();
+        mEpgScheduler.reset();
+        /** Lineup keeps old list until IP channels are set again. */
+        setIpChannelSource(null, null);
+        setMulticastRelayEnabled(false);
+        IpChannelSnapshot.publish(mIpChannels, null);
     }
 
     /**
-     * Change Channel Up.
-     * 
-     * @return Channel Info Object.
-     * @throws InternalException
-     * @throws IllegalArgumentException
+     * Get channel that should be treated as current for channel up/down. It
+     * is the target of latest zap request, even if that zap is not finished
+     * yet.
      */
-    public ChannelInfo changeChannelUp() throws InternalException {
-        int currentChannel = 0;
+    public int getRequestedChannelNumber() {
+        int requested = mRequestedChannelNumber;
+        if (requested != -1) {
+            return requested;
+        }
         try {
-            currentChannel = getCurrentChannelNumber();
+            return getCurrentChannelNumber();
         } catch (InternalException e) {
-            currentChannel = DTVActivity.getLastWatchedChannelIndex();
+            return DTVActivity.getLastWatchedChannelIndex();
         }
+    }
+
+    /**
+     * Change Channel Up. Zap is executed asynchronously.
+     * 
+     * @return Channel Info Object of requested channel.
+     */
+    public ChannelInfo changeChannelUp() {
         int listSize = getChannelListSize();
         if (listSize == 0) {
             return null;
         }
-        return changeChannelByNumber((currentChannel + 1) % listSize);
+        int channelNumber = findAvailableChannel(getRequestedChannelNumber(),
+                1);
+        changeChannelByNumberAsync(channelNumber);
+        return getChannelInfo(channelNumber, true);
     }
 
     /**
-     * Change Channel Down.
+     * Change Channel Down. Zap is executed asynchronously.
      * 
-     * @return Channel Info Object
-     * @throws InternalException
-     * @throws IllegalArgumentException
+     * @return Channel Info Object of requested channel.
      */
-    public ChannelInfo changeChannelDown() throws InternalException {
-        int currentChannelNumber = 0;
-        try {
-            currentChannelNumber = getCurrentChannelNumber();
-        } catch (InternalException e) {
-            currentChannelNumber = DTVActivity.getLastWatchedChannelIndex();
-        }
+    public ChannelInfo changeChannelDown() {
         int listSize = getChannelListSize();
         if (listSize == 0) {
             return null;
         }
-        return changeChannelByNumber((--currentChannelNumber + listSize)
-                % listSize);
+        int channelNumber = findAvailableChannel(getRequestedChannelNumber(),
+                -1);
+        changeChannelByNumberAsync(channelNumber);
+        return getChannelInfo(channelNumber, true);
+    }
+
+    /**
+     * Find next channel in direction that is not known to be unreachable. If
+     * all other channels are unreachable, neighbour channel is returned.
+     * 
+     * @param channelNumber
+     *        Channel to start from.
+     * @param step
+     *        1 for channel up, -1 for channel down.
+     */
+    private int findAvailableChannel(int channelNumber, int step) {
+        ChannelLineup lineup = getChannelLineup();
+        int listSize = lineup.size();
+        int first = ((channelNumber + step) % listSize + listSize) % listSize;
+        int candidate = first;
+        for (int i = 1; i < listSize; i++) {
+            if (!isChannelUnreachable(lineup, candidate)) {
+                return candidate;
+            }
+            candidate = ((candidate + step) % listSize + listSize) % listSize;
+        }
+        return first;
+    }
+
+    /**
+     * Check if channel is IP channel whose stream could not be reached by
+     * last probe.
+     */
+    public boolean isChannelUnreachable(int channelNumber) {
+        ChannelLineup lineup = getChannelLineup();
+        return channelNumber >= 0 && channelNumber < lineup.size()
+                && isChannelUnreachable(lineup, channelNumber);
+    }
+
+    /**
+     * IP channel is unreachable if all its sources are.
+     */
+    private boolean isChannelUnreachable(ChannelLineup lineup,
+            int channelNumber) {
+        if (!lineup.isIp(channelNumber)) {
+            return false;
+        }
+        for (String url : lineup.getIpService(channelNumber).getUrls()) {
+            if (!mStreamProber.isDead(url)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public StreamProber getStreamProber() {
+        return mStreamProber;
+    }
+
+    public SourceRacer getSourceRacer() {
+        return mSourceRacer;
+    }
+
+    public IpPlaybackWatchdog getPlaybackWatchdog() {
+        return mPlaybackWatchdog;
+    }
+
+    public ReceptionStatsTap getReceptionStatsTap() {
+        return mReceptionStatsTap;
+    }
+
+    /**
+     * Change channel to number entered by the user. Zap is executed
+     * asynchronously.
+     * 
+     * @param displayNumber
+     *        Number shown to the user.
+     * @return Channel Info Object of requested channel or null if no channel
+     *         has that number.
+     */
+    public ChannelInfo changeChannelByDisplayNumber(int displayNumber) {
+        int channelNumber = findChannelByDisplayNumber(displayNumber);
+        if (channelNumber == -1) {
+            return null;
+        }
+        changeChannelByNumberAsync(channelNumber);
+        return getChannelInfo(channelNumber, true);
+    }
+
+    /**
+     * Get channel number from number shown to the user.
+     * 
+     * @return Channel number or -1 if no channel has that number.
+     */
+    public int findChannelByDisplayNumber(int displayNumber) {
+        return getChannelLineup().findByDisplayNumber(displayNumber);
+    }
+
+    /**
+     * Get highest number shown to the user.
+     */
+    public int getMaxDisplayNumber() {
+        return getChannelLineup().getMaxDisplayNumber();
+    }
+
+    /**
+     * Change Channel by Number on zap thread. Zaps that are queued and not
+     * yet started are dropped.
+     * 
+     * @return Future with Channel Info Object or null if error occurred.
+     */
+    public Future<ChannelInfo> changeChannelByNumberAsync(
+            final int channelNumber) {
+        /** Lineup that is not built yet is built on zap thread. */
+        ChannelLineup lineup = mChannelLineup;
+        if (lineup != null && lineup.size() != 0) {
+            int listSize = lineup.size();
+            mRequestedChannelNumber = (channelNumber + listSize) % listSize;
+            mZapLatencyTracker.startZap(mRequestedChannelNumber,
+                    lineup.getSourceType(mRequestedChannelNumber));
+        }
+        /** Source race of older zap would delay this one. */
+        mSourceRacer.abandonRaces();
+        /** EPG refreshes wait until zap is done or dropped. */
+        mEpgScheduler.zapQueued();
+        return mZapExecutor.submit(new Callable<ChannelInfo>() {
+            @Override
+            public ChannelInfo call() throws InternalException {
+                /** Channel number as normalized by changeChannel. */
+                ChannelLineup lineup = getZapLineup(channelNumber);
+                int listSize = lineup.size();
+                int target = listSize == 0 ? channelNumber
+                        : (channelNumber + listSize) % listSize;
+                try {
+                    ChannelInfo channelInfo = changeChannel(lineup,
+                            channelNumber);
+                    if (channelInfo == null) {
+                        mZapLatencyTracker.discard(target);
+                    } else if (mDVBStatus != null) {
+                        mDVBStatus.zapFinished(target);
+                    }
+                    return channelInfo;
+                } catch (InternalException e) {
+                    Log.e(TAG, "Zap to channel " + channelNumber + " failed", e);
+                    mZapLatencyTracker.discard(target);
+                    if (mDVBStatus != null) {
+                        mDVBStatus.zapFailed(channelNumber);
+                    }
+                    throw e;
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                mEpgScheduler.zapDone();
+            }
+        });
     }
 
     /**
@@ -359,141 +635,809 @@ public class DVBManager {
      */
     public ChannelInfo changeChannelByNumber(int channelNumber)
             throws InternalException {
-        int listSize = getChannelListSize();
+        return changeChannel(getZapLineup(channelNumber), channelNumber);
+    }
+
+    /**
+     * Get lineup zap to channel is done with. Until lineup is built, only
+     * descriptor of the zapped service is read, so startup zap does not wait
+     * for the whole service list. Lineup is built after it.
+     */
+    private ChannelLineup getZapLineup(int channelNumber) {
+        /** Last watched channel number counts IP channels too. */
+        awaitIpChannelLoad();
+        ChannelLineup lineup = mChannelLineup;
+        if (lineup != null) {
+            return lineup;
+        }
+        lineup = ChannelLineup.buildSingle(
+                hasDvbChannels() ? mDTVManager.getServiceControl() : null,
+                mActiveListIndex, isIpAndSomeOtherTunerType(),
+                getIpChannels(), channelNumber);
+        mStartupTrace.mark(StartupTrace.STARTUP_SERVICE_READ);
+        return lineup;
+    }
+
+    private ChannelInfo changeChannel(ChannelLineup lineup, int channelNumber)
+            throws InternalException {
+        int listSize = lineup.size();
         if (listSize == 0) {
             return null;
         }
         channelNumber = (channelNumber + listSize) % listSize;
-        int numberOfDtvChannels = listSize
-                - (mLiveRouteIp == -1 ? 0 : DTVActivity.sIpChannels.size());
+        mRequestedChannelNumber = channelNumber;
+        SourceType sourceType = lineup.getSourceType(channelNumber);
+        if (!mZapLatencyTracker.isTracking(channelNumber)) {
+            mZapLatencyTracker.startZap(channelNumber, sourceType);
+        }
+        mZapLatencyTracker.mark(ZapLatencyTracker.Stage.DESCRIPTOR_LOOKUP,
+                channelNumber);
+        RouteFrontendType frontendType = lineup.isIp(channelNumber) ? RouteFrontendType.IP
+                : getFrontendTypeBySourceType(sourceType);
+        RouteEntry liveEntry = acquireLiveRoute(frontendType);
+        if (liveEntry == null) {
+            return null;
+        }
+        int route = liveEntry.getRouteId();
+        mCurrentLiveRoute = route;
+        /** Record route is acquired only when recording starts. */
+        RouteEntry recordEntry = mRouteTable.peek(frontendType, true);
+        mCurrentRecordRoute = recordEntry == null ? -1 : recordEntry
+                .getRouteId();
+        mZapLatencyTracker.mark(ZapLatencyTracker.Stage.ROUTE_SELECTION,
+                channelNumber);
+        /** Middleware reports lock only to registered parental callback. */
+        getParentalManager();
         /** For regular DVB channel */
-        if (channelNumber < numberOfDtvChannels) {
-            ServiceDescriptor desiredService = mDTVManager.getServiceControl()
-                    .getServiceDescriptor(
-                            CURRENT_LIST_INDEX,
-                            ipAndSomeOtherTunerType ? channelNumber + 1
-                                    : channelNumber);
-            int route = getActiveRouteByServiceType(desiredService
-                    .getSourceType());
-            if (route == -1) {
-                return null;
+        if (!lineup.isIp(channelNumber)) {
+            mPlaybackWatchdog.stop();
+            mReceptionStatsTap.stop();
+            /** Middleware reports lock of DVB channels itself. */
+            if (mIpLockShown) {
+                mIpLockShown = false;
+                updateChannelLocked(false);
             }
-            mCurrentLiveRoute = route;
-            mCurrentRecordRoute = getActiveRecordRouteByServiceType(desiredService
-                    .getSourceType());
-            mDTVManager.getServiceControl()
-                    .startService(
-                            route,
-                            CURRENT_LIST_INDEX,
-                            ipAndSomeOtherTunerType ? channelNumber + 1
-                                    : channelNumber);
+            mDTVManager.getServiceControl().startService(route,
+                    lineup.getListIndex(),
+                    lineup.getServiceIndex(channelNumber));
+        }
+        /** Locked IP channel, middleware does not know IP services. */
+        else if (getParentalManager().isIpServiceLocked(
+                lineup.getIpService(channelNumber))) {
+            mCurrentChannelNumberIp = channelNumber;
+            mPlaybackWatchdog.stop();
+            mReceptionStatsTap.stop();
+            mDTVManager.getServiceControl().stopService(route);
+            mIpLockShown = true;
+            updateChannelLocked(true);
         }
         /** For IP */
         else {
-            mCurrentLiveRoute = mLiveRouteIp;
-            mCurrentRecordRoute = mRecordRouteIp;
             mCurrentChannelNumberIp = channelNumber;
-            mDTVManager.getServiceControl().zapURL(
-                    mLiveRouteIp,
-                    DTVActivity.sIpChannels.get(
-                            channelNumber - numberOfDtvChannels).getUrl());
-        }
-        if (mDVBStatus != null) {
-            mDVBStatus.ageLocked(false);
+            if (mIpLockShown) {
+                mIpLockShown = false;
+                updateChannelLocked(false);
+            }
+            IPService service = lineup.getIpService(channelNumber);
+            String url = selectSource(service);
+            zapIpSource(route, url);
+            mPlaybackWatchdog.watch(channelNumber, service, url);
+            mReceptionStatsTap.start(channelNumber, url);
+            prefetchNeighbours(lineup, channelNumber, url);
         }
+        mCurrentChannelNumber = channelNumber;
+        mEpgScheduler.channelChanged(channelNumber, listSize);
+        probeIpChannels(lineup, channelNumber - IP_PROBE_NEIGHBOURS,
+                channelNumber + IP_PROBE_NEIGHBOURS);
+        mZapLatencyTracker.mark(ZapLatencyTracker.Stage.START_SERVICE,
+                channelNumber);
+        mStartupTrace.mark(StartupTrace.FIRST_ZAP);
         if (mDVBStatus != null) {
             mDVBStatus.ageLocked(false);
         }
         DTVActivity.setLastWatchedChannelIndex(channelNumber);
-        return getChannelInfo(channelNumber, true);
+        if (lineup != mChannelLineup) {
+            /** Startup zap is done, rest of service list is read now. */
+            lineup = awaitChannelLineup();
+        }
+        return getChannelInfo(lineup, channelNumber, true);
+    }
+
+    /**
+     * Zap route to source of IP service. Relayed group starts from last
+     * I-frame, cached master playlist is replaced by media playlist.
+     */
+    private void zapIpSource(int route, String url) {
+        MulticastRelay relay = mMulticastRelay;
+        String localUrl = relay == null ? null : relay.getLocalUrl(url);
+        mDTVManager.getServiceControl().zapURL(route,
+                localUrl != null ? localUrl : mHlsManifestCache.resolve(url));
+    }
+
+    /**
+     * Zap IP channel again on zap thread after its stream stopped. Retry is
+     * dropped if user zapped meanwhile.
+     */
+    private void retryIpChannel(final int channelNumber, final String url) {
+        mZapExecutor.append(new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (mRequestedChannelNumber != channelNumber
+                        || mCurrentChannelNumberIp != channelNumber) {
+                    return null;
+                }
+                /** Playlist and probe of stopped stream may be stale. */
+                mHlsManifestCache.invalidate(url);
+                mWatchdogProber.invalidate(url);
+                zapIpSource(mCurrentLiveRoute, url);
+                mReceptionStatsTap.start(channelNumber, url);
+                prefetchNeighbours(getChannelLineup(), channelNumber, url);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Check if stream of IP source is received. Group joined by relay or
+     * tapped for reception statistics is checked by its last datagram.
+     * Other sources are probed in background at most once per
+     * {@link #WATCHDOG_PROBE_TTL_MILLIS}, they are received until probe
+     * fails.
+     */
+    private boolean isIpSourceReceiving(String url) {
+        MulticastRelay relay = mMulticastRelay;
+        long receiveTime = relay == null ? -1 : relay.getReceiveTime(url);
+        if (receiveTime < 0) {
+            receiveTime = mReceptionStatsTap.getReceiveTime(url);
+        }
+        if (receiveTime >= 0) {
+            long silence = SystemClock.elapsedRealtime() - receiveTime;
+            return receiveTime > 0
+                    && silence < IpPlaybackWatchdog.CHECK_INTERVAL_MILLIS;
+        }
+        mWatchdogProber.probe(url);
+        return !mWatchdogProber.isDead(url);
     }
 
     /**
-     * Return route by service type.
+     * Get URL of IP service to play. Source that is already relayed is used
+     * at once, sources of service with several URLs are raced.
+     */
+    private String selectSource(IPService service) {
+        List<String> urls = service.getUrls();
+        MulticastRelay relay = mMulticastRelay;
+        if (relay != null) {
+            for (String url : urls) {
+                if (relay.getLocalUrl(url) != null) {
+                    return url;
+                }
+            }
+        }
+        if (urls.size() == 1) {
+            return urls.get(0);
+        }
+        String winner = mSourceRacer.race(urls);
+        return winner != null ? winner : mSourceRacer.getPreferred(urls);
+    }
+
+    /**
+     * Fetch HLS playlists of IP channels next to channel in background and
+     * keep relay joined to groups of channel and its neighbours.
      * 
-     * @param serviceType
+     * @param currentUrl
+     *        Source of channel that is played.
+     */
+    private void prefetchNeighbours(ChannelLineup lineup, int channelNumber,
+            String currentUrl) {
+        int listSize = lineup.size();
+        ArrayList<String> relayUrls = new ArrayList<String>();
+        relayUrls.add(currentUrl);
+        for (int distance = 1; distance <= IP_PREFETCH_NEIGHBOURS; distance++) {
+            int up = (channelNumber + distance) % listSize;
+            int down = (channelNumber - distance + listSize) % listSize;
+            if (lineup.isIp(up)) {
+                String url = mSourceRacer.getPreferred(lineup.getIpService(up)
+                        .getUrls());
+                mHlsManifestCache.prefetch(url);
+                relayUrls.add(url);
+            }
+            if (lineup.isIp(down)) {
+                String url = mSourceRacer.getPreferred(lineup.getIpService(
+                        down).getUrls());
+                mHlsManifestCache.prefetch(url);
+                relayUrls.add(url);
+            }
+        }
+        MulticastRelay relay = mMulticastRelay;
+        if (relay != null) {
+            relay.setGroups(relayUrls);
+        }
+    }
+
+    /**
+     * Start or stop local relay for multicast IP channels.
+     * 
+     * @return True if relay is running.
+     */
+    public synchronized boolean setMulticastRelayEnabled(boolean enabled) {
+        if (enabled == (mMulticastRelay != null)) {
+            return enabled;
+        }
+        if (!enabled) {
+            mMulticastRelay.stop();
+            mMulticastRelay = null;
+            return false;
+        }
+        MulticastRelay relay = new MulticastRelay();
+        try {
+            relay.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Relay could not be started", e);
+            return false;
+        }
+        mMulticastRelay = relay;
+        ChannelLineup lineup = mChannelLineup;
+        int current = mCurrentChannelNumberIp;
+        if (lineup != null && current >= 0 && current < lineup.size()
+                && lineup.isIp(current)) {
+            prefetchNeighbours(lineup, current, mSourceRacer
+                    .getPreferred(lineup.getIpService(current).getUrls()));
+        }
+        return true;
+    }
+
+    public boolean isMulticastRelayEnabled() {
+        return mMulticastRelay != null;
+    }
+
+    /**
+     * Get multicast relay, null if it is not enabled.
+     */
+    public MulticastRelay getMulticastRelay() {
+        return mMulticastRelay;
+    }
+
+    public HlsManifestCache getHlsManifestCache() {
+        return mHlsManifestCache;
+    }
+
+    /**
+     * Return frontend type by service type.
+     * 
+     * @param sourceType
      *        Service type to check.
-     * @return Desired route, or 0 if service type is undefined.
+     * @return Frontend type, or null if service type is undefined.
      */
-    private int getActiveRouteByServiceType(SourceType sourceType) {
+    private static RouteFrontendType getFrontendTypeBySourceType(
+            SourceType sourceType) {
         switch (sourceType) {
             case CAB: {
-                return mLiveRouteCab;
+                return RouteFrontendType.CAB;
             }
             case TER: {
-                return mLiveRouteTer;
+                return RouteFrontendType.TER;
             }
             case SAT: {
-                return mLiveRouteSat;
+                return RouteFrontendType.SAT;
             }
             case IP: {
-                return mLiveRouteIp;
+                return RouteFrontendType.IP;
             }
             default:
-                return -1;
+                return null;
         }
     }
 
-    private int getActiveRecordRouteByServiceType(SourceType sourceType) {
-        switch (sourceType) {
-            case CAB: {
-                return mRecordRouteCab;
+    /**
+     * Release live route of current channel and acquire live route on least
+     * busy frontend of given type.
+     * 
+     * @return Acquired route, or null if there is no route for type.
+     */
+    private RouteEntry acquireLiveRoute(RouteFrontendType frontendType) {
+        if (frontendType == null || !mRouteTable.awaitLiveRoute(frontendType)) {
+            return null;
+        }
+        mStartupTrace.mark(StartupTrace.LIVE_ROUTE_READY);
+        return swapLiveRoute(frontendType);
+    }
+
+    private synchronized RouteEntry swapLiveRoute(
+            RouteFrontendType frontendType) {
+        mRouteTable.release(mCurrentLiveEntry);
+        mCurrentLiveEntry = mRouteTable.acquire(frontendType, false);
+        return mCurrentLiveEntry;
+    }
+
+    /**
+     * Acquire record route for channel on least busy frontend of its type.
+     * Call when recording starts and release the route when it stops.
+     * 
+     * @return Record route, or null if there is none.
+     */
+    public RouteEntry acquireRecordRoute(int channelNumber) {
+        ChannelLineup lineup = getChannelLineup();
+        if (channelNumber < 0 || channelNumber >= lineup.size()) {
+            return null;
+        }
+        RouteFrontendType frontendType = lineup.isIp(channelNumber) ? RouteFrontendType.IP
+                : getFrontendTypeBySourceType(lineup
+                        .getSourceType(channelNumber));
+        return frontendType == null ? null : mRouteTable.acquire(
+                frontendType, true);
+    }
+
+    /**
+     * Release record route acquired with {@link #acquireRecordRoute(int)}.
+     */
+    public void releaseRecordRoute(RouteEntry recordEntry) {
+        mRouteTable.release(recordEntry);
+    }
+
+    /**
+     * Get cached channel lineup without waiting. Lineup is published when
+     * route discovery finds frontend types, empty lineup is returned until
+     * then.
+     */
+    public ChannelLineup getChannelLineup() {
+        ChannelLineup lineup = mChannelLineup;
+        return lineup == null ? ChannelLineup.EMPTY : lineup;
+    }
+
+    /**
+     * Get channel lineup, it is built from middleware on first call after
+     * frontend types are known. Waits for route discovery, so it is not
+     * called on UI thread.
+     */
+    private ChannelLineup awaitChannelLineup() {
+        ChannelLineup lineup = mChannelLineup;
+        if (lineup != null) {
+            return lineup;
+        }
+        /** Descriptors are read without DVBManager lock. */
+        synchronized (mLineupBuildLock) {
+            lineup = mChannelLineup;
+            if (lineup != null) {
+                return lineup;
             }
-            case TER: {
-                return mRecordRouteTer;
+            int listIndex = mActiveListIndex;
+            lineup = buildLineup(listIndex);
+            synchronized (this) {
+                /** IP list could be changed while DVB services were read. */
+                lineup = lineup.withIpServices(getIpChannels());
+                mListLineups.put(listIndex, lineup);
+                if (mChannelLineup == null) {
+                    mChannelLineup = lineup;
+                    mStartupTrace.mark(StartupTrace.LINEUP_BUILT);
+                }
+                return mChannelLineup;
             }
-            case SAT: {
-                return mRecordRouteSat;
+        }
+    }
+
+    private ChannelLineup buildLineup(int listIndex) {
+        return ChannelLineup.build(
+                hasDvbChannels() ? mDTVManager.getServiceControl() : null,
+                listIndex, isIpAndSomeOtherTunerType(), getIpChannels());
+    }
+
+    /**
+     * Get index of active service list.
+     */
+    public int getActiveListIndex() {
+        return mActiveListIndex;
+    }
+
+    /**
+     * Make service list active. Lineup of list that was already used is taken
+     * from cache, other lists are read from middleware in background and
+     * activated when ready. Played service is not changed, current DVB
+     * channel is forgotten because its number belongs to the old list.
+     * 
+     * @param listIndex
+     *        Middleware service list index.
+     * @return Future with lineup of activated list, or null if newer list was
+     *         requested before this one was read.
+     */
+    public Future<ChannelLineup> setActiveServiceList(final int listIndex) {
+        synchronized (this) {
+            mActiveListIndex = listIndex;
+            ChannelLineup cached = mListLineups.get(listIndex);
+            if (cached != null) {
+                final ChannelLineup lineup = cached
+                        .withIpServices(getIpChannels());
+                mListLineups.put(listIndex, lineup);
+                activateLineup(lineup);
+                FutureTask<ChannelLineup> done = new FutureTask<ChannelLineup>(
+                        new Callable<ChannelLineup>() {
+                            @Override
+                            public ChannelLineup call() {
+                                return lineup;
+                            }
+                        });
+                done.run();
+                return done;
             }
-            case IP: {
-                return mRecordRouteIp;
+        }
+        return mListLoader.submit(new Callable<ChannelLineup>() {
+            @Override
+            public ChannelLineup call() {
+                return loadServiceList(listIndex);
             }
-            default:
-                return -1;
+        });
+    }
+
+    /**
+     * Read lineup of service list in background so it can be activated
+     * without delay.
+     */
+    public void prefetchServiceList(final int listIndex) {
+        mListLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DVBManager.this) {
+                    if (mListLineups.get(listIndex) != null) {
+                        return;
+                    }
+                }
+                ChannelLineup lineup = buildLineup(listIndex);
+                synchronized (DVBManager.this) {
+                    mListLineups.put(listIndex, lineup);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on list loader thread.
+     */
+    private ChannelLineup loadServiceList(int listIndex) {
+        ChannelLineup lineup;
+        synchronized (this) {
+            lineup = mListLineups.get(listIndex);
         }
+        /** Descriptors are read without lock, UI keeps using current list. */
+        if (lineup == null) {
+            lineup = buildLineup(listIndex);
+        }
+        synchronized (this) {
+            /** IP list could be changed while DVB services were read. */
+            lineup = lineup.withIpServices(getIpChannels());
+            mListLineups.put(listIndex, lineup);
+            if (mActiveListIndex != listIndex) {
+                return null;
+            }
+            activateLineup(lineup);
+        }
+        return lineup;
     }
 
     /**
-     * Get Size of Channel List.
+     * Make lineup of other list current. Guarded by this.
      */
-    public int getChannelListSize() {
-        int serviceCount = mDTVManager.getServiceControl().getServiceListCount(
-                CURRENT_LIST_INDEX);
-        if (ipAndSomeOtherTunerType) {
-            serviceCount += DTVActivity.sIpChannels.size();
-            serviceCount--;
-        } else
-        /** Only IP */
-        if (mLiveRouteIp != -1) {
-            serviceCount = DTVActivity.sIpChannels.size();
+    private void activateLineup(ChannelLineup lineup) {
+        ChannelLineup current = mChannelLineup;
+        if (current != null && current != lineup) {
+            remapAfterDvbChange(current, lineup);
         }
-        return serviceCount;
+        mChannelLineup = lineup;
     }
 
     /**
-     * Get Channel Names.
+     * Refresh channel lineups after IP channel list is changed. DVB services
+     * are not read again from middleware.
      */
-    public ArrayList<String> getChannelNames() {
-        ArrayList<String> channelNames = new ArrayList<String>();
-        String channelName = "";
-        int channelListSize = getChannelListSize()
-                - (mLiveRouteIp == -1 ? 0 : DTVActivity.sIpChannels.size());
-        IServiceControl serviceControl = mDTVManager.getServiceControl();
-        /** If there is IP first element in service list is DUMMY */
-        channelListSize = ipAndSomeOtherTunerType ? channelListSize + 1
-                : channelListSize;
-        for (int i = ipAndSomeOtherTunerType ? 1 : 0; i < channelListSize; i++) {
-            channelName = serviceControl.getServiceDescriptor(
-                    CURRENT_LIST_INDEX, i).getName();
-            channelNames.add(channelName);
+    public synchronized void refreshChannelLineup() {
+        ChannelLineup lineup = mChannelLineup;
+        /** Lineup that is not built yet will be built with latest lists. */
+        if (lineup == null) {
+            return;
+        }
+        IpChannelSnapshot ipChannels = getIpChannels();
+        mChannelLineup = lineup.withIpServices(ipChannels);
+        for (int i = 0; i < mListLineups.size(); i++) {
+            mListLineups.setValueAt(i,
+                    mListLineups.valueAt(i).withIpServices(ipChannels));
+        }
+        mListLineups.put(lineup.getListIndex(), mChannelLineup);
+    }
+
+    /**
+     * Middleware service list is changed. Lineup of active list is read
+     * again in background, cached lineups of other lists are dropped and
+     * read when they are activated. Called from service callback.
+     */
+    public void serviceListChanged() {
+        /** Refresh that is queued and not started yet sees this change too. */
+        if (!mServiceListRefreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        mListLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                mServiceListRefreshQueued.set(false);
+                if (!hasDvbChannels()) {
+                    return;
+                }
+                int listIndex;
+                synchronized (DVBManager.this) {
+                    listIndex = mActiveListIndex;
+                    for (int i = mListLineups.size() - 1; i >= 0; i--) {
+                        if (mListLineups.keyAt(i) != listIndex) {
+                            mListLineups.removeAt(i);
+                        }
+                    }
+                }
+                refreshCachedList(listIndex);
+            }
+        });
+    }
+
+    /**
+     * Read DVB services of cached list again, runs on list loader thread.
+     * Descriptors are read without lock, UI keeps using current lineup.
+     */
+    private void refreshCachedList(int listIndex) {
+        ChannelLineup lineup;
+        synchronized (this) {
+            lineup = mListLineups.get(listIndex);
         }
-        /** Add IP */
-        if (mLiveRouteIp != -1) {
-            for (int i = 0; i < DTVActivity.sIpChannels.size(); i++) {
-                channelNames.add(DTVActivity.sIpChannels.get(i).getName());
+        if (lineup == null) {
+            return;
+        }
+        ChannelLineup refreshed = lineup.refreshDvbServices(mDTVManager
+                .getServiceControl());
+        if (refreshed == lineup) {
+            return;
+        }
+        synchronized (this) {
+            /** IP list could be changed while DVB services were read. */
+            refreshed = refreshed.withIpServices(getIpChannels());
+            mListLineups.put(listIndex, refreshed);
+            ChannelLineup current = mChannelLineup;
+            if (current != null && current.getListIndex() == listIndex) {
+                remapAfterDvbChange(current, refreshed);
+                mChannelLineup = refreshed;
             }
         }
-        return channelNames;
+        Log.d(TAG, "Service list " + listIndex + " changed, "
+                + refreshed.getDvbCount() + " DVB channels");
+    }
+
+    /**
+     * DVB part of lineup is changed. Middleware index of current DVB channel
+     * can point to other service now, so it is forgotten. IP channels are
+     * moved by change of DVB channel count.
+     */
+    private void remapAfterDvbChange(ChannelLineup oldLineup,
+            ChannelLineup newLineup) {
+        int shift = newLineup.getDvbCount() - oldLineup.getDvbCount();
+        mCurrentChannelNumber = remapDvbChannel(oldLineup, shift,
+                mCurrentChannelNumber);
+        mRequestedChannelNumber = remapDvbChannel(oldLineup, shift,
+                mRequestedChannelNumber);
+        if (mCurrentChannelNumberIp >= oldLineup.getDvbCount()) {
+            mCurrentChannelNumberIp += shift;
+        }
+    }
+
+    private static int remapDvbChannel(ChannelLineup oldLineup, int shift,
+            int channelNumber) {
+        if (channelNumber < 0) {
+            return channelNumber;
+        }
+        return oldLineup.isIp(channelNumber) ? channelNumber + shift : -1;
+    }
+
+    /**
+     * DVB services are not shown when IP is the only tuner type.
+     */
+    private boolean hasDvbChannels() {
+        return !hasIpRoute() || isIpAndSomeOtherTunerType();
+    }
+
+    /**
+     * Get IP channels that are part of lineup.
+     */
+    private IpChannelSnapshot getIpChannels() {
+        return hasIpRoute() ? mIpChannels.get() : null;
+    }
+
+    /**
+     * Replace IP channel list and refresh lineup. Nothing is done if list is
+     * not changed. Current channel keeps its service if the service is still
+     * in list, state kept by channel number follows its service, state kept
+     * by URL (probe results, playlists, locks) is not touched. Threads that
+     * use old list keep using it until they read lineup again.
+     * 
+     * @param services
+     *        New IP services, null to remove all.
+     * @return Difference to previous list.
+     */
+    public synchronized IpChannelDiff setIpChannels(List<IPService> services) {
+        if (services == null) {
+            services = Collections.<IPService> emptyList();
+        }
+        IpChannelSnapshot oldChannels = mIpChannels.get();
+        IpChannelDiff diff = IpChannelDiff.compute(oldChannels.getServices(),
+                services);
+        if (diff.isEmpty()) {
+            return diff;
+        }
+        IpChannelSnapshot.publish(mIpChannels, services);
+        ChannelLineup lineup = mChannelLineup;
+        if (lineup != null
+                && lineup.getIpGeneration() == oldChannels.getGeneration()) {
+            remapChannelState(getMovedIpChannels(lineup, diff));
+        }
+        refreshChannelLineup();
+        Log.d(TAG, "IP channels changed: " + diff);
+        return diff;
+    }
+
+    /**
+     * Get new numbers of IP channels whose service moved or was removed.
+     * Channels that keep their number are not included.
+     *
+     * @return New number by old number, -1 for removed channels.
+     */
+    private static SparseIntArray getMovedIpChannels(ChannelLineup lineup,
+            IpChannelDiff diff) {
+        SparseIntArray newNumbers = new SparseIntArray();
+        int dvbCount = lineup.getDvbCount();
+        for (int i = 0; i < lineup.getIpCount(); i++) {
+            int newIndex = diff.getNewIndex(i);
+            if (newIndex != i) {
+                newNumbers.append(dvbCount + i, newIndex == -1 ? -1
+                        : dvbCount + newIndex);
+            }
+        }
+        return newNumbers;
+    }
+
+    /**
+     * Move state kept by channel number to new numbers. Current and
+     * requested channel whose service is removed keep their number.
+     * 
+     * @param newNumbers
+     *        New number by old number, -1 for removed channels. Channels
+     *        that are not in it keep their number.
+     */
+    private void remapChannelState(SparseIntArray newNumbers) {
+        if (newNumbers.size() == 0) {
+            return;
+        }
+        mCurrentChannelNumberIp = remapChannel(newNumbers,
+                mCurrentChannelNumberIp);
+        mCurrentChannelNumber = remapChannel(newNumbers,
+                mCurrentChannelNumber);
+        mRequestedChannelNumber = remapChannel(newNumbers,
+                mRequestedChannelNumber);
+        mPresentFollowingCache.remap(newNumbers);
+        mScheduleStore.remap(newNumbers);
+        mEpgTitleIndex.remap(newNumbers);
+        mReceptionStatsTap.remap(newNumbers);
+        mPlaybackWatchdog.remap(newNumbers);
+        synchronized (mScheduleFilterIDs) {
+            Integer[] channels = mScheduleFilterIDs.keySet().toArray(
+                    new Integer[mScheduleFilterIDs.size()]);
+            ArrayList<Integer> filterIDs = new ArrayList<Integer>(
+                    mScheduleFilterIDs.values());
+            mScheduleFilterIDs.clear();
+            for (int i = 0; i < channels.length; i++) {
+                int channelNumber = newNumbers.get(channels[i], channels[i]);
+                if (channelNumber == -1) {
+                    /** Service is gone, filter is released under old key. */
+                    mScheduleFilterIDs.put(channels[i], filterIDs.get(i));
+                    releaseScheduleFilter(channels[i]);
+                } else {
+                    mScheduleFilterIDs.put(channelNumber, filterIDs.get(i));
+                }
+            }
+        }
+    }
+
+    private static int remapChannel(SparseIntArray newNumbers,
+            int channelNumber) {
+        int newNumber = newNumbers.get(channelNumber, channelNumber);
+        return newNumber == -1 ? channelNumber : newNumber;
+    }
+
+    /**
+     * Use IP channel list from source and read it again whenever its files
+     * change. Only differences are applied to lineup.
+     * 
+     * @param source
+     *        Source of list, null to stop watching.
+     * @param services
+     *        Services already read from source, null to read them in
+     *        background. Zap waits until they are read.
+     */
+    public void setIpChannelSource(final IpChannelSource source,
+            List<IPService> services) {
+        mIpChannelSource = source;
+        if (source == null) {
+            mIpListWatcher.stop();
+            return;
+        }
+        /** Watching starts first so no change is missed. */
+        watchIpChannelSource(source);
+        if (services != null) {
+            setIpChannels(services);
+            return;
+        }
+        /** List is parsed on loader thread, caller can be UI thread. */
+        mIpChannelLoad = mListLoader.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (mIpChannelSource == source) {
+                    setIpChannels(source.load());
+                }
+            }
+        });
+    }
+
+    /**
+     * Watch files and directories of source, load can change them.
+     */
+    private void watchIpChannelSource(IpChannelSource source) {
+        synchronized (mIpListWatcher) {
+            if (mIpChannelSource == source) {
+                mIpListWatcher.watch(source.getFiles(),
+                        source.getDirectories());
+            }
+        }
+    }
+
+    /**
+     * Wait until IP channel list that is loaded in background is set.
+     */
+    private void awaitIpChannelLoad() {
+        Future<?> load = mIpChannelLoad;
+        if (load == null) {
+            return;
+        }
+        try {
+            load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Loading IP channels failed", e);
+        }
+    }
+
+    /**
+     * Get current IP channel list, it does not change when new list is set.
+     */
+    public IpChannelSnapshot getIpChannelSnapshot() {
+        return mIpChannels.get();
+    }
+
+    /**
+     * Probe sources of IP channels in range [firstChannel, lastChannel] that
+     * have no valid result. Range is clipped to lineup.
+     */
+    private void probeIpChannels(ChannelLineup lineup, int firstChannel,
+            int lastChannel) {
+        int first = Math.max(firstChannel, lineup.getDvbCount());
+        int last = Math.min(lastChannel, lineup.size() - 1);
+        for (int i = first; i <= last; i++) {
+            mStreamProber.probe(lineup.getIpService(i));
+        }
+    }
+
+    /**
+     * Get Size of Channel List.
+     */
+    public int getChannelListSize() {
+        return getChannelLineup().size();
+    }
+
+    /**
+     * Get Channel Names.
+     */
+    public ArrayList<String> getChannelNames() {
+        return getChannelLineup().getNames();
     }
 
     /**
@@ -503,17 +1447,29 @@ public class DVBManager {
         return mDTVManager.getSetupControl().getTimeDate();
     }
 
+    /**
+     * Get current middleware time in milliseconds from local clock mirror.
+     */
+    public long getCurrentTimeMillis() {
+        return mClockMirror.currentTimeMillis();
+    }
+
     /**
      * Get Current Channel Number.
      */
     public int getCurrentChannelNumber() throws InternalException {
         /** For IP */
-        if (mCurrentLiveRoute == mLiveRouteIp) {
+        RouteEntry liveEntry = mCurrentLiveEntry;
+        if (liveEntry != null && liveEntry.getType() == RouteFrontendType.IP) {
             return mCurrentChannelNumberIp;
         }
-        int current = (mDTVManager.getServiceControl().getActiveService(
-                mCurrentLiveRoute).getServiceIndex());
-        current = current - (ipAndSomeOtherTunerType ? 1 : 0);
+        int current = mCurrentChannelNumber;
+        if (current != -1) {
+            return current;
+        }
+        current = getChannelLineup().getChannelNumber(
+                mDTVManager.getServiceControl()
+                        .getActiveService(mCurrentLiveRoute).getServiceIndex());
         /** This is error in comedia and should be ignored. */
         if (current < 0) {
             throw new InternalException();
@@ -528,37 +1484,35 @@ public class DVBManager {
      * @throws IllegalArgumentException
      */
     public ChannelInfo getChannelInfo(int channelNumber, boolean channelChange) {
-        if (channelNumber < 0 || channelNumber >= getChannelListSize()) {
+        return getChannelInfo(getChannelLineup(), channelNumber, channelChange);
+    }
+
+    private ChannelInfo getChannelInfo(ChannelLineup lineup,
+            int channelNumber, boolean channelChange) {
+        if (channelNumber < 0 || channelNumber >= lineup.size()) {
             return null;
         }
-        int numberOfDtvChannels = getChannelListSize()
-                - (mLiveRouteIp == -1 ? 0 : DTVActivity.sIpChannels.size());
+        int displayNumber = lineup.getDisplayNumber(channelNumber);
         /** Return DTV channel. */
-        if (channelNumber < numberOfDtvChannels) {
-            String channelName = mDTVManager
-                    .getServiceControl()
-                    .getServiceDescriptor(
-                            CURRENT_LIST_INDEX,
-                            ipAndSomeOtherTunerType ? channelNumber + 1
-                                    : channelNumber).getName();
+        if (!lineup.isIp(channelNumber)) {
+            String channelName = lineup.getName(channelNumber);
             if (channelChange) {
-                return new ChannelInfo(channelNumber + 1, channelName, null,
-                        null);
+                return new ChannelInfo(displayNumber, channelName, null, null);
             } else {
-                return new ChannelInfo(channelNumber + 1, channelName,
-                        mDTVManager.getEpgControl().getPresentFollowingEvent(
-                                mEPGFilterID, channelNumber,
-                                EpgEventType.PRESENT_EVENT), mDTVManager
-                                .getEpgControl().getPresentFollowingEvent(
-                                        mEPGFilterID, channelNumber,
-                                        EpgEventType.FOLLOWING_EVENT));
+                PresentFollowingCache.Entry events = mPresentFollowingCache
+                        .get(channelNumber);
+                /** Middleware is asked only if channel is not cached yet. */
+                if (events == null) {
+                    events = refreshPresentFollowing(channelNumber);
+                }
+                return new ChannelInfo(displayNumber, channelName,
+                        events.getPresent(), events.getFollowing());
             }
         }
         /** Return IP channel. */
         else {
-            return new ChannelInfo(channelNumber + 1, DTVActivity.sIpChannels
-                    .get(channelNumber - numberOfDtvChannels).getName(), null,
-                    null);
+            return new ChannelInfo(displayNumber,
+                    lineup.getName(channelNumber), null, null);
         }
     }
 
@@ -571,6 +1525,251 @@ public class DVBManager {
         }
     }
 
+    /**
+     * Read present and following events of channel from middleware and
+     * store them in cache.
+     * 
+     * @return Cached events.
+     */
+    public PresentFollowingCache.Entry refreshPresentFollowing(
+            int channelNumber) {
+        ChannelLineup lineup = getChannelLineup();
+        /** Middleware has no events of IP services. */
+        if (channelNumber < 0 || channelNumber >= lineup.size()
+                || lineup.isIp(channelNumber)) {
+            return new PresentFollowingCache.Entry(null, null);
+        }
+        int serviceIndex = lineup.getServiceIndex(channelNumber);
+        PresentFollowingCache.Entry events = new PresentFollowingCache.Entry(
+                EpgEventInfo.from(mDTVManager.getEpgControl()
+                        .getPresentFollowingEvent(mEPGFilterID, serviceIndex,
+                                EpgEventType.PRESENT_EVENT)),
+                EpgEventInfo.from(mDTVManager.getEpgControl()
+                        .getPresentFollowingEvent(mEPGFilterID, serviceIndex,
+                                EpgEventType.FOLLOWING_EVENT)));
+        mPresentFollowingCache.put(channelNumber, events);
+        long now = getCurrentTimeMillis();
+        mEpgTitleIndex.putEvent(channelNumber, events.getPresent(), now);
+        mEpgTitleIndex.putEvent(channelNumber, events.getFollowing(), now);
+        return events;
+    }
+
+    /**
+     * Present/following events of channel are changed in middleware.
+     * Notifications are merged, cache entry of displayed channel is
+     * refreshed and UI is updated once, other channels are read again when
+     * they are needed.
+     */
+    public void presentFollowingChanged(int channelNumber) {
+        mEpgUpdateCoalescer.notifyChanged(channelNumber);
+    }
+
+    public EpgUpdateCoalescer getEpgUpdateCoalescer() {
+        return mEpgUpdateCoalescer;
+    }
+
+    public PresentFollowingCache getPresentFollowingCache() {
+        return mPresentFollowingCache;
+    }
+
+    /**
+     * Start acquisition of schedule for next days. Every channel gets its own
+     * event list, so acquisitions of other channels keep running. Events are
+     * stored and list is released when middleware reports that acquisition
+     * is finished. Oldest acquisition is dropped when
+     * {@link #MAX_SCHEDULE_ACQUISITIONS} are running.
+     */
+    public void acquireSchedule(int channelNumber) {
+        ChannelLineup lineup = getChannelLineup();
+        EPGCallBack callBack = mEpgCallBack;
+        if (callBack == null || channelNumber < 0
+                || channelNumber >= lineup.size()
+                || lineup.isIp(channelNumber)) {
+            return;
+        }
+        IEpgControl epgControl = mDTVManager.getEpgControl();
+        int filterID;
+        synchronized (mScheduleFilterIDs) {
+            if (mScheduleFilterIDs.containsKey(channelNumber)) {
+                return;
+            }
+            if (mScheduleFilterIDs.size() >= MAX_SCHEDULE_ACQUISITIONS) {
+                Integer oldest = mScheduleFilterIDs.keySet().iterator().next();
+                releaseScheduleFilter(oldest);
+            }
+            filterID = epgControl.createEventList();
+            mScheduleFilterIDs.put(channelNumber, filterID);
+        }
+        Calendar start = Calendar.getInstance();
+        start.setTimeInMillis(getCurrentTimeMillis());
+        Calendar end = (Calendar) start.clone();
+        end.setTimeInMillis(start.getTimeInMillis() + SCHEDULE_WINDOW_MILLIS);
+        EpgTimeFilter timeFilter = new EpgTimeFilter();
+        timeFilter.setTime(toTimeDate(start), toTimeDate(end));
+        epgControl.registerCallback(callBack, filterID);
+        epgControl.setFilter(filterID, timeFilter);
+        epgControl.startAcquisition(filterID,
+                lineup.getServiceIndex(channelNumber));
+    }
+
+    /**
+     * Stop acquisition of channel and release its event list. Guarded by
+     * mScheduleFilterIDs.
+     */
+    private void releaseScheduleFilter(int channelNumber) {
+        Integer filterID = mScheduleFilterIDs.remove(channelNumber);
+        if (filterID == null) {
+            return;
+        }
+        IEpgControl epgControl = mDTVManager.getEpgControl();
+        ChannelLineup lineup = getChannelLineup();
+        if (channelNumber < lineup.getDvbCount()) {
+            epgControl.stopAcquisition(filterID,
+                    lineup.getServiceIndex(channelNumber));
+        }
+        epgControl.unregisterCallback(mEpgCallBack, filterID);
+        epgControl.releaseEventList(filterID);
+    }
+
+    private void releaseScheduleFilters() {
+        synchronized (mScheduleFilterIDs) {
+            Integer[] channels = mScheduleFilterIDs.keySet().toArray(
+                    new Integer[mScheduleFilterIDs.size()]);
+            for (Integer channelNumber : channels) {
+                releaseScheduleFilter(channelNumber);
+            }
+        }
+    }
+
+    private static TimeDate toTimeDate(Calendar calendar) {
+        return new TimeDate(calendar.get(Calendar.SECOND),
+                calendar.get(Calendar.MINUTE),
+                calendar.get(Calendar.HOUR_OF_DAY),
+                calendar.get(Calendar.DAY_OF_MONTH),
+                calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.YEAR));
+    }
+
+    /**
+     * Schedule of channel is changed in middleware. All acquired events of
+     * channel are read and replace stored schedule.
+     *
+     * @param finished
+     *        True if acquisition is finished, event list is released then.
+     */
+    public void scheduleChanged(int channelNumber, boolean finished) {
+        ChannelLineup lineup = getChannelLineup();
+        if (channelNumber < 0 || channelNumber >= lineup.size()
+                || lineup.isIp(channelNumber)) {
+            return;
+        }
+        int serviceIndex = lineup.getServiceIndex(channelNumber);
+        IEpgControl epgControl = mDTVManager.getEpgControl();
+        ArrayList<EpgEventInfo> events;
+        synchronized (mScheduleFilterIDs) {
+            Integer filterID = mScheduleFilterIDs.get(channelNumber);
+            /** Acquisition was dropped or already finished. */
+            if (filterID == null) {
+                return;
+            }
+            int count = epgControl.getAvailableEventsNumber(filterID,
+                    serviceIndex);
+            events = new ArrayList<EpgEventInfo>(count);
+            for (int i = 0; i < count; i++) {
+                EpgEventInfo event = EpgEventInfo.from(epgControl
+                        .getRequestedEvent(filterID, serviceIndex, i));
+                if (event != null) {
+                    events.add(event);
+                }
+            }
+            if (finished) {
+                releaseScheduleFilter(channelNumber);
+            }
+        }
+        mScheduleStore.put(channelNumber, events);
+        mEpgTitleIndex
+                .putChannel(channelNumber, events, getCurrentTimeMillis());
+    }
+
+    public ScheduleStore getScheduleStore() {
+        return mScheduleStore;
+    }
+
+    /**
+     * Channels in range [firstChannel, lastChannel] are visible in channel
+     * list, their EPG is refreshed after current channel and its neighbours.
+     * Sources of visible IP channels and channels next to them are probed.
+     */
+    public void setVisibleChannels(int firstChannel, int lastChannel) {
+        mEpgScheduler.setVisibleChannels(firstChannel, lastChannel);
+        probeIpChannels(getChannelLineup(), firstChannel
+                - IP_PROBE_NEIGHBOURS, lastChannel + IP_PROBE_NEIGHBOURS);
+    }
+
+    public EpgAcquisitionScheduler getEpgScheduler() {
+        return mEpgScheduler;
+    }
+
+    /**
+     * Find events that did not end by words of their names.
+     * 
+     * @param query
+     *        Beginnings of words to find.
+     * @param limit
+     *        Maximum number of results.
+     * @return Events ordered by start time.
+     */
+    public List<EpgTitleIndex.Result> searchEpg(String query, int limit) {
+        return mEpgTitleIndex.search(query, getCurrentTimeMillis(), limit);
+    }
+
+    /**
+     * Restore EPG data saved by previous run in background. Data is saved
+     * to same file when DTV is stopped.
+     * 
+     * @param file
+     *        Snapshot file.
+     */
+    public void loadEpgSnapshot(final File file) {
+        mEpgSnapshotFile = file;
+        mListLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                long now = getCurrentTimeMillis();
+                if (EpgSnapshot.read(file, now, awaitChannelLineup(),
+                        mPresentFollowingCache, mScheduleStore)) {
+                    for (int channelNumber : mScheduleStore
+                            .getChannelNumbers()) {
+                        mEpgTitleIndex.putChannel(channelNumber, mScheduleStore
+                                .getEvents(channelNumber, now, Long.MAX_VALUE),
+                                now);
+                    }
+                    mStartupTrace.mark(StartupTrace.EPG_SNAPSHOT_LOADED);
+                    updateNowNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * Save EPG data in background and clear caches after that. Loader runs
+     * tasks in order, so snapshot is written before it is loaded again.
+     */
+    private void saveEpgSnapshot() {
+        final File file = mEpgSnapshotFile;
+        final ChannelLineup lineup = getChannelLineup();
+        mListLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (file != null) {
+                    EpgSnapshot.write(file, lineup, mPresentFollowingCache,
+                            mScheduleStore);
+                }
+                mPresentFollowingCache.clear();
+                mScheduleStore.clear();
+            }
+        });
+    }
+
     /**
      * Update age locked layout.
      */
@@ -589,8 +1788,16 @@ public class DVBManager {
         }
     }
 
-    public boolean isIpAndSomeOtherTunerType() {
-        return ipAndSomeOtherTunerType;
+    /**
+     * Check if there are IP and some other frontend type. In that case first
+     * element of middleware service list is dummy. Waits until frontend
+     * descriptors are read, so it is not called on UI thread.
+     */
+    private boolean isIpAndSomeOtherTunerType() {
+        return hasIpRoute()
+                && (mRouteTable.hasFrontendType(RouteFrontendType.CAB)
+                        || mRouteTable.hasFrontendType(RouteFrontendType.SAT) || mRouteTable
+                            .hasFrontendType(RouteFrontendType.TER));
     }
 
     public int getCurrentLiveRoute() {
@@ -598,19 +1805,32 @@ public class DVBManager {
     }
 
     public int getLiveRouteSat() {
-        return mLiveRouteSat;
+        return getFirstRouteId(RouteFrontendType.SAT);
     }
 
     public int getLiveRouteTer() {
-        return mLiveRouteTer;
+        return getFirstRouteId(RouteFrontendType.TER);
     }
 
     public int getLiveRouteCab() {
-        return mLiveRouteCab;
+        return getFirstRouteId(RouteFrontendType.CAB);
     }
 
     public int getLiveRouteIp() {
-        return mLiveRouteIp;
+        return getFirstRouteId(RouteFrontendType.IP);
+    }
+
+    /**
+     * Get first live route of frontend type, or -1 if there is none.
+     */
+    private int getFirstRouteId(RouteFrontendType frontendType) {
+        ArrayList<RouteEntry> routes = mRouteTable.getRoutes(frontendType,
+                false);
+        return routes.isEmpty() ? -1 : routes.get(0).getRouteId();
+    }
+
+    public RouteTable getRouteTable() {
+        return mRouteTable;
     }
 
     public int getPlaybackRouteIDMain() {
@@ -621,14 +1841,53 @@ public class DVBManager {
         return mCurrentRecordRoute;
     }
 
-    public ParentalManager getParentalManager() {
+    /**
+     * Get parental manager, it is created on first call.
+     */
+    public synchronized ParentalManager getParentalManager() {
+        if (mParentalManager == null) {
+            mParentalManager = ParentalManager.getInstance(mDTVManager);
+            if (mParentalCallback != null) {
+                mParentalManager.registerCallback(mParentalCallback);
+            }
+        }
         return mParentalManager;
     }
 
-    public TeletextSubtitleAudioManager getTeletextSubtitleAudioManager() {
+    /**
+     * Set parental callback. It is registered when parental manager is
+     * created, at latest before first service is started.
+     */
+    public synchronized void setParentalCallback(
+            IParentalCallbackDvb callback) {
+        mParentalCallback = callback;
+        if (mParentalManager != null) {
+            mParentalManager.registerCallback(callback);
+        }
+    }
+
+    public ZapLatencyTracker getZapLatencyTracker() {
+        return mZapLatencyTracker;
+    }
+
+    /**
+     * Get teletext, subtitle and audio manager, it is created on first call.
+     */
+    public synchronized TeletextSubtitleAudioManager getTeletextSubtitleAudioManager() {
+        if (mTeletextSubtitleAudioManager == null) {
+            mTeletextSubtitleAudioManager = TeletextSubtitleAudioManager
+                    .getInstance(mDTVManager.getTeletextControl(),
+                            mDTVManager.getSubtitleControl(),
+                            mDTVManager.getAudioControl(),
+                            mDTVManager.getDisplayControl());
+        }
         return mTeletextSubtitleAudioManager;
     }
 
+    public StartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
     public void setDVBStatus(DVBStatus mDVBStatus) {
         this.mDVBStatus = mDVBStatus;
     }
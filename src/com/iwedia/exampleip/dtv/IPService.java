@@ -10,29 +10,60 @@
  */
 package com.iwedia.exampleip.dtv;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
- * IP service holder.
+ * IP service holder. Service can be reachable at several URLs, first URL
+ * is the primary one and others are alternatives in order of preference.
  */
 public class IPService {
     private String mName;
-    private String mUrl;
+    private List<String> mUrls;
 
     public IPService(String mName, String mUrl) {
         super();
         this.mName = mName;
-        this.mUrl = mUrl;
+        this.mUrls = Collections.singletonList(mUrl);
+    }
+
+    /**
+     * @param name
+     *        Service name.
+     * @param urls
+     *        Primary URL followed by alternatives, must not be empty.
+     */
+    public IPService(String name, List<String> urls) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No URL for " + name);
+        }
+        this.mName = name;
+        this.mUrls = urls.size() == 1 ? Collections.singletonList(urls
+                .get(0)) : Collections.unmodifiableList(new ArrayList<String>(
+                urls));
     }
 
     public String getName() {
         return mName;
     }
 
+    /**
+     * Get primary URL.
+     */
     public String getUrl() {
-        return mUrl;
+        return mUrls.get(0);
+    }
+
+    /**
+     * Get primary URL followed by alternatives.
+     */
+    public List<String> getUrls() {
+        return mUrls;
     }
 
     @Override
     public String toString() {
-        return "IPService [mName=" + mName + ", mUrl=" + mUrl + "]";
+        return "IPService [mName=" + mName + ", mUrls=" + mUrls + "]";
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram with log-linear buckets. Every power of two range is
+ * split in 16 linear sub buckets, so recorded values are kept with at most
+ * 1/16 relative error. Values are in microseconds, values above
+ * {@link #MAX_VALUE} are clamped.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Highest power of two covered by buckets. */
+    private static final int MAX_EXPONENT = 36;
+    /** Highest value that can be recorded, 2^37-1 us or about 38 hours. */
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT
+            + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalValue = new AtomicLong();
+    private final AtomicLong mMaxValue = new AtomicLong();
+
+    /**
+     * Record one value.
+     *
+     * @param value
+     *        Value in microseconds.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        mCounts.incrementAndGet(getBucketIndex(value));
+        mTotalCount.incrementAndGet();
+        mTotalValue.addAndGet(value);
+        long max = mMaxValue.get();
+        while (value > max && !mMaxValue.compareAndSet(max, value)) {
+            max = mMaxValue.get();
+        }
+    }
+
+    private static int getBucketIndex(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Get highest value that falls into bucket.
+     */
+    private static long getBucketUpperValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Get value below which given percent of recorded values fall.
+     *
+     * @param percentile
+     *        Percentile in range [0, 100].
+     * @return Value in microseconds, 0 if nothing is recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = mTotalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+            if (count >= target) {
+                return Math.min(getBucketUpperValue(i), mMaxValue.get());
+            }
+        }
+        return mMaxValue.get();
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMax() {
+        return mMaxValue.get();
+    }
+
+    /**
+     * Get mean of recorded values in microseconds.
+     */
+    public long getMean() {
+        long total = mTotalCount.get();
+        return total == 0 ? 0 : mTotalValue.get() / total;
+    }
+
+    /**
+     * Clear recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalValue.set(0);
+        mMaxValue.set(0);
+    }
+}
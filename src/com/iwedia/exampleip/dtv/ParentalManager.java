@@ -15,14 +15,22 @@ import com.iwedia.dtv.parental.dvb.IParentalCallbackDvb;
 import com.iwedia.dtv.parental.dvb.IParentalControlDvb;
 import com.iwedia.dtv.parental.dvb.ParentalLockAge;
 import com.iwedia.dtv.types.InternalException;
+import com.iwedia.exampleip.DTVActivity;
+
+import java.util.HashSet;
 
 /**
- * Class for handling parental rate and channel lock.
+ * Class for handling parental rate and channel lock. Locks of DVB channels
+ * are kept by middleware, locks of IP channels are kept in preferences by
+ * URL of the service, so they follow the service when IP list changes.
  */
 public class ParentalManager {
+    private static final String IP_CHANNEL_LOCKS = "ip_channel_locks";
     private IParentalControlDvb mParentalControl;
     private IParentalCallbackDvb mCallback;
     private static ParentalManager sInstance;
+    /** Primary URLs of locked IP services, guarded by this. */
+    private final HashSet<String> mIpLocks;
 
     protected static ParentalManager getInstance(IDTVManager dtvManager) {
         if (sInstance == null) {
@@ -37,6 +45,8 @@ public class ParentalManager {
 
     private ParentalManager(IDTVManager dtvManager) {
         mParentalControl = dtvManager.getParentalControlDvb();
+        mIpLocks = new HashSet<String>(DTVActivity.getSharedPreferences()
+                .getStringSet(IP_CHANNEL_LOCKS, new HashSet<String>()));
     }
 
     public void registerCallback(IParentalCallbackDvb callback) {
@@ -67,21 +77,52 @@ public class ParentalManager {
         mParentalControl.setPinCode(newPin);
     }
 
+    /**
+     * Lock or unlock channel, nothing is done for channel that is not in
+     * lineup.
+     */
     public void setChannelLock(int channelIndex, boolean locked)
             throws InternalException {
-        mParentalControl
-                .setChannelLock(
-                        channelIndex
-                                + (DVBManager.getInstance()
-                                        .isIpAndSomeOtherTunerType() ? 1 : 0),
-                        locked);
+        ChannelLineup lineup = DVBManager.getInstance().getChannelLineup();
+        if (channelIndex < 0 || channelIndex >= lineup.size()) {
+            return;
+        }
+        if (!lineup.isIp(channelIndex)) {
+            mParentalControl.setChannelLock(
+                    lineup.getServiceIndex(channelIndex), locked);
+            return;
+        }
+        String url = lineup.getIpService(channelIndex).getUrl();
+        synchronized (this) {
+            if (locked ? !mIpLocks.add(url) : !mIpLocks.remove(url)) {
+                return;
+            }
+            DTVActivity.getSharedPreferences().edit()
+                    .putStringSet(IP_CHANNEL_LOCKS,
+                            new HashSet<String>(mIpLocks)).apply();
+        }
     }
 
+    /**
+     * Check if channel is locked, channel that is not in lineup is not.
+     */
     public boolean getChannelLockStatus(int channelIndex)
             throws InternalException {
-        return mParentalControl
-                .getChannelLock(channelIndex
-                        + (DVBManager.getInstance().isIpAndSomeOtherTunerType() ? 1
-                                : 0));
+        ChannelLineup lineup = DVBManager.getInstance().getChannelLineup();
+        if (channelIndex < 0 || channelIndex >= lineup.size()) {
+            return false;
+        }
+        if (!lineup.isIp(channelIndex)) {
+            return mParentalControl.getChannelLock(lineup
+                    .getServiceIndex(channelIndex));
+        }
+        return isIpServiceLocked(lineup.getIpService(channelIndex));
+    }
+
+    /**
+     * Check if IP service is locked.
+     */
+    public synchronized boolean isIpServiceLocked(IPService service) {
+        return mIpLocks.contains(service.getUrl());
     }
 }
@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.iwedia.dtv.route.broadcast.IBroadcastRouteControl;
+import com.iwedia.dtv.route.broadcast.RouteFrontendDescriptor;
+import com.iwedia.dtv.route.broadcast.RouteFrontendType;
+import com.iwedia.dtv.route.common.ICommonRouteControl;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Live and record routes for every frontend, demux and decoder (or mass
+ * storage) combination, grouped by frontend type. Routes are handed out from
+ * the least busy frontend, then demux, then decoder, so live and record on
+ * the same delivery system use different tuners when hardware has them.
+ * Routes are discovered in parallel, one task per frontend.
+ */
+public class RouteTable {
+    private static final String TAG = "RouteTable";
+    /**
+     * Single route and descriptors it is made of.
+     */
+    public static class RouteEntry {
+        private final RouteFrontendType mType;
+        private final int mFrontendId;
+        private final int mDemuxId;
+        /** Decoder for live route, mass storage for record route. */
+        private final int mSinkId;
+        private final int mRouteId;
+        private final boolean mRecord;
+
+        RouteEntry(RouteFrontendType type, int frontendId, int demuxId,
+                int sinkId, int routeId, boolean record) {
+            mType = type;
+            mFrontendId = frontendId;
+            mDemuxId = demuxId;
+            mSinkId = sinkId;
+            mRouteId = routeId;
+            mRecord = record;
+        }
+
+        public RouteFrontendType getType() {
+            return mType;
+        }
+
+        public int getFrontendId() {
+            return mFrontendId;
+        }
+
+        public int getDemuxId() {
+            return mDemuxId;
+        }
+
+        public int getSinkId() {
+            return mSinkId;
+        }
+
+        public int getRouteId() {
+            return mRouteId;
+        }
+
+        public boolean isRecord() {
+            return mRecord;
+        }
+
+        @Override
+        public String toString() {
+            return "RouteEntry [mType=" + mType + ", mFrontendId="
+                    + mFrontendId + ", mDemuxId=" + mDemuxId + ", mSinkId="
+                    + mSinkId + ", mRouteId=" + mRouteId + ", mRecord="
+                    + mRecord + "]";
+        }
+    }
+
+    private final EnumMap<RouteFrontendType, ArrayList<RouteEntry>> mLiveRoutes = new EnumMap<RouteFrontendType, ArrayList<RouteEntry>>(
+            RouteFrontendType.class);
+    private final EnumMap<RouteFrontendType, ArrayList<RouteEntry>> mRecordRoutes = new EnumMap<RouteFrontendType, ArrayList<RouteEntry>>(
+            RouteFrontendType.class);
+    /** Number of acquired routes per frontend ID. */
+    private final SparseIntArray mFrontendUsage = new SparseIntArray();
+    /** Number of acquired routes per demux ID. */
+    private final SparseIntArray mDemuxUsage = new SparseIntArray();
+    /** Number of acquired live routes per decoder ID. */
+    private final SparseIntArray mDecoderUsage = new SparseIntArray();
+    /** Number of acquired record routes per mass storage ID. */
+    private final SparseIntArray mMassStorageUsage = new SparseIntArray();
+    /** Types of frontends with known descriptors. */
+    private final EnumSet<RouteFrontendType> mFrontendTypes = EnumSet
+            .noneOf(RouteFrontendType.class);
+    /** Number of frontends of type whose routes are not discovered yet. */
+    private final EnumMap<RouteFrontendType, Integer> mPendingByType = new EnumMap<RouteFrontendType, Integer>(
+            RouteFrontendType.class);
+    /** Number of frontends whose descriptor is not read yet. */
+    private int mPendingDescriptors = 0;
+
+    /**
+     * Start discovery of routes, every frontend is discovered in separate
+     * task. Table is returned at once and filled while discovery runs, use
+     * await methods to wait for routes that are needed.
+     *
+     * @param broadcastRouteControl
+     *        Broadcast route control, or local stand-in.
+     * @param commonRouteControl
+     *        Common route control, or local stand-in.
+     * @param executor
+     *        Executor that runs discovery tasks.
+     */
+    public static RouteTable discover(
+            final IBroadcastRouteControl broadcastRouteControl,
+            final ICommonRouteControl commonRouteControl, Executor executor) {
+        final RouteTable table = new RouteTable();
+        int numberOfFrontends = broadcastRouteControl.getFrontendNumber();
+        table.mPendingDescriptors = numberOfFrontends;
+        for (int i = 0; i < numberOfFrontends; i++) {
+            final int frontendIndex = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    table.discoverFrontend(broadcastRouteControl,
+                            commonRouteControl, frontendIndex);
+                }
+            });
+        }
+        return table;
+    }
+
+    /**
+     * Read descriptor and routes of single frontend.
+     */
+    private void discoverFrontend(IBroadcastRouteControl broadcastRouteControl,
+            ICommonRouteControl commonRouteControl, int frontendIndex) {
+        EnumSet<RouteFrontendType> frontendTypes = null;
+        try {
+            RouteFrontendDescriptor frontendDescriptor = broadcastRouteControl
+                    .getFrontendDescriptor(frontendIndex);
+            frontendTypes = frontendDescriptor.getFrontendType();
+            onFrontendTypesKnown(frontendTypes);
+            addFrontend(broadcastRouteControl, commonRouteControl,
+                    frontendDescriptor);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Discovery of frontend " + frontendIndex + " failed", e);
+        } finally {
+            if (frontendTypes == null) {
+                onFrontendTypesKnown(EnumSet.noneOf(RouteFrontendType.class));
+            }
+            onFrontendDone(frontendTypes);
+        }
+    }
+
+    private synchronized void onFrontendTypesKnown(
+            EnumSet<RouteFrontendType> frontendTypes) {
+        for (RouteFrontendType type : frontendTypes) {
+            Integer pending = mPendingByType.get(type);
+            mPendingByType.put(type, pending == null ? 1 : pending + 1);
+        }
+        mFrontendTypes.addAll(frontendTypes);
+        mPendingDescriptors--;
+        notifyAll();
+    }
+
+    private synchronized void onFrontendDone(
+            EnumSet<RouteFrontendType> frontendTypes) {
+        if (frontendTypes != null) {
+            for (RouteFrontendType type : frontendTypes) {
+                mPendingByType.put(type, mPendingByType.get(type) - 1);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Add routes of single frontend.
+     */
+    private void addFrontend(IBroadcastRouteControl broadcastRouteControl,
+            ICommonRouteControl commonRouteControl,
+            RouteFrontendDescriptor frontendDescriptor) {
+        int frontendId = frontendDescriptor.getFrontendId();
+        EnumSet<RouteFrontendType> frontendTypes = frontendDescriptor
+                .getFrontendType();
+        int numberOfDemuxes = broadcastRouteControl.getDemuxNumber();
+        int numberOfDecoders = commonRouteControl.getDecoderNumber();
+        int numberOfMassStorages = broadcastRouteControl
+                .getMassStorageNumber();
+        ArrayList<RouteEntry> live = new ArrayList<RouteEntry>();
+        ArrayList<RouteEntry> record = new ArrayList<RouteEntry>();
+        for (int d = 0; d < numberOfDemuxes; d++) {
+            int demuxId = broadcastRouteControl.getDemuxDescriptor(d)
+                    .getDemuxId();
+            for (int k = 0; k < numberOfDecoders; k++) {
+                int decoderId = commonRouteControl.getDecoderDescriptor(k)
+                        .getDecoderId();
+                int route = broadcastRouteControl.getLiveRoute(frontendId,
+                        demuxId, decoderId);
+                if (route != -1) {
+                    for (RouteFrontendType type : frontendTypes) {
+                        live.add(new RouteEntry(type, frontendId, demuxId,
+                                decoderId, route, false));
+                    }
+                }
+            }
+            for (int m = 0; m < numberOfMassStorages; m++) {
+                int massStorageId = broadcastRouteControl
+                        .getMassStorageDescriptor(m).getMassStorageId();
+                int route = broadcastRouteControl.getRecordRoute(frontendId,
+                        demuxId, massStorageId);
+                if (route != -1) {
+                    for (RouteFrontendType type : frontendTypes) {
+                        record.add(new RouteEntry(type, frontendId, demuxId,
+                                massStorageId, route, true));
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            for (RouteEntry entry : live) {
+                getList(mLiveRoutes, entry.getType()).add(entry);
+            }
+            for (RouteEntry entry : record) {
+                getList(mRecordRoutes, entry.getType()).add(entry);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Check if some frontend is of given type. Waits until descriptors of
+     * all frontends are read.
+     */
+    public synchronized boolean hasFrontendType(RouteFrontendType type) {
+        boolean interrupted = false;
+        while (mPendingDescriptors > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return mFrontendTypes.contains(type);
+    }
+
+    /**
+     * Wait until there is a live route for frontend type, or until all
+     * frontends of that type are discovered.
+     *
+     * @return True if live route exists.
+     */
+    public synchronized boolean awaitLiveRoute(RouteFrontendType type) {
+        boolean interrupted = false;
+        while (!hasLiveRoute(type)
+                && (mPendingDescriptors > 0 || getPendingCount(type) > 0)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return hasLiveRoute(type);
+    }
+
+    private int getPendingCount(RouteFrontendType type) {
+        Integer pending = mPendingByType.get(type);
+        return pending == null ? 0 : pending;
+    }
+
+    private static ArrayList<RouteEntry> getList(
+            EnumMap<RouteFrontendType, ArrayList<RouteEntry>> routes,
+            RouteFrontendType type) {
+        ArrayList<RouteEntry> list = routes.get(type);
+        if (list == null) {
+            list = new ArrayList<RouteEntry>();
+            routes.put(type, list);
+        }
+        return list;
+    }
+
+    /**
+     * Check if there is a live route for frontend type.
+     */
+    public synchronized boolean hasLiveRoute(RouteFrontendType type) {
+        ArrayList<RouteEntry> list = mLiveRoutes.get(type);
+        return list != null && !list.isEmpty();
+    }
+
+    /**
+     * Get all routes of frontend type.
+     */
+    public synchronized ArrayList<RouteEntry> getRoutes(
+            RouteFrontendType type, boolean record) {
+        ArrayList<RouteEntry> list = (record ? mRecordRoutes : mLiveRoutes)
+                .get(type);
+        return list == null ? new ArrayList<RouteEntry>()
+                : new ArrayList<RouteEntry>(list);
+    }
+
+    /**
+     * Get route on least busy frontend, demux and decoder (or mass storage)
+     * without acquiring it.
+     *
+     * @return Route or null if there is no route for frontend type.
+     */
+    public synchronized RouteEntry peek(RouteFrontendType type, boolean record) {
+        ArrayList<RouteEntry> list = (record ? mRecordRoutes : mLiveRoutes)
+                .get(type);
+        if (list == null) {
+            return null;
+        }
+        SparseIntArray sinkUsage = getSinkUsage(record);
+        RouteEntry best = null;
+        int bestFrontendUsage = Integer.MAX_VALUE;
+        int bestDemuxUsage = Integer.MAX_VALUE;
+        int bestSinkUsage = Integer.MAX_VALUE;
+        for (RouteEntry entry : list) {
+            int frontendUsage = mFrontendUsage.get(entry.getFrontendId());
+            int demuxUsage = mDemuxUsage.get(entry.getDemuxId());
+            int usage = sinkUsage.get(entry.getSinkId());
+            boolean better;
+            if (frontendUsage != bestFrontendUsage) {
+                better = frontendUsage < bestFrontendUsage;
+            } else if (demuxUsage != bestDemuxUsage) {
+                better = demuxUsage < bestDemuxUsage;
+            } else {
+                better = usage < bestSinkUsage;
+            }
+            if (better) {
+                best = entry;
+                bestFrontendUsage = frontendUsage;
+                bestDemuxUsage = demuxUsage;
+                bestSinkUsage = usage;
+            }
+        }
+        return best;
+    }
+
+    private SparseIntArray getSinkUsage(boolean record) {
+        return record ? mMassStorageUsage : mDecoderUsage;
+    }
+
+    /**
+     * Acquire route on least busy frontend, demux and decoder (or mass
+     * storage).
+     *
+     * @return Route or null if there is no route for frontend type.
+     */
+    public synchronized RouteEntry acquire(RouteFrontendType type,
+            boolean record) {
+        RouteEntry entry = peek(type, record);
+        if (entry != null) {
+            increment(mFrontendUsage, entry.getFrontendId(), 1);
+            increment(mDemuxUsage, entry.getDemuxId(), 1);
+            increment(getSinkUsage(record), entry.getSinkId(), 1);
+        }
+        return entry;
+    }
+
+    /**
+     * Release route acquired with {@link #acquire(RouteFrontendType, boolean)}.
+     */
+    public synchronized void release(RouteEntry entry) {
+        if (entry == null) {
+            return;
+        }
+        increment(mFrontendUsage, entry.getFrontendId(), -1);
+        increment(mDemuxUsage, entry.getDemuxId(), -1);
+        increment(getSinkUsage(entry.isRecord()), entry.getSinkId(), -1);
+    }
+
+    private static void increment(SparseIntArray usage, int id, int delta) {
+        usage.put(id, Math.max(usage.get(id) + delta, 0));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RouteTable [mLiveRoutes=" + mLiveRoutes + ", mRecordRoutes="
+                + mRecordRoutes + "]";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Milestones of application startup with time elapsed since trace was
+ * created. Every milestone is recorded only once.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+    public static final String DVB_MANAGER_CREATED = "DVB manager created";
+    public static final String FRONTEND_TYPES_KNOWN = "Frontend types known";
+    public static final String EVENT_LIST_CREATED = "EPG event list created";
+    public static final String EPG_SNAPSHOT_LOADED = "EPG snapshot loaded";
+    public static final String STARTUP_SERVICE_READ = "Startup service read";
+    public static final String LINEUP_BUILT = "Channel lineup built";
+    public static final String LIVE_ROUTE_READY = "Live route ready";
+    public static final String FIRST_ZAP = "First zap";
+    private final long mStartNanos = System.nanoTime();
+    private final LinkedHashMap<String, Long> mMilestones = new LinkedHashMap<String, Long>();
+
+    /**
+     * Record milestone if it is not recorded yet.
+     */
+    public void mark(String milestone) {
+        long elapsed = (System.nanoTime() - mStartNanos) / 1000000;
+        synchronized (this) {
+            if (mMilestones.containsKey(milestone)) {
+                return;
+            }
+            mMilestones.put(milestone, elapsed);
+        }
+        Log.d(TAG, milestone + " +" + elapsed + "ms ["
+                + Thread.currentThread().getName() + "]");
+        if (FIRST_ZAP.equals(milestone)) {
+            Log.i(TAG, "Time to first zap: " + elapsed + "ms");
+        }
+    }
+
+    /**
+     * Get milliseconds from start to milestone.
+     *
+     * @return Elapsed time, or -1 if milestone is not reached.
+     */
+    public synchronized long getElapsedMillis(String milestone) {
+        Long elapsed = mMilestones.get(milestone);
+        return elapsed == null ? -1 : elapsed;
+    }
+
+    /**
+     * Get readable list of milestones.
+     */
+    public synchronized String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> milestone : mMilestones.entrySet()) {
+            builder.append(String.format(Locale.US, "%s: +%dms\n",
+                    milestone.getKey(), milestone.getValue()));
+        }
+        return builder.toString();
+    }
+}
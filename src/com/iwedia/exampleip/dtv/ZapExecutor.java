@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single thread executor for channel changes. Submitting a new zap cancels
+ * all zaps that are still waiting in queue, so only the zap that is running
+ * and the latest one are executed.
+ */
+public class ZapExecutor {
+    private final LinkedBlockingQueue<Runnable> mQueue = new LinkedBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor mExecutor;
+    /** Number of zaps dropped because newer zap arrived. */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Zap that runs given action when it is finished or cancelled.
+     */
+    private static class ZapTask<T> extends FutureTask<T> {
+        private final Runnable mWhenDone;
+
+        ZapTask(Callable<T> zap, Runnable whenDone) {
+            super(zap);
+            mWhenDone = whenDone;
+        }
+
+        @Override
+        protected void done() {
+            if (mWhenDone != null) {
+                mWhenDone.run();
+            }
+        }
+    }
+
+    public ZapExecutor() {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                mQueue, new NamedThreadFactory("Zap"));
+    }
+
+    /**
+     * Queue zap and drop zaps that have not started yet.
+     *
+     * @param zap
+     *        Zap to execute.
+     * @return Future with result of zap.
+     */
+    public <T> Future<T> submit(Callable<T> zap) {
+        return submit(zap, null);
+    }
+
+    /**
+     * Queue zap and drop zaps that have not started yet.
+     *
+     * @param zap
+     *        Zap to execute.
+     * @param whenDone
+     *        Run once when zap is finished or dropped, may be null.
+     * @return Future with result of zap.
+     */
+    public synchronized <T> Future<T> submit(Callable<T> zap,
+            Runnable whenDone) {
+        cancelPending();
+        FutureTask<T> task = new ZapTask<T>(zap, whenDone);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Queue zap behind zaps that are waiting, nothing is dropped. Zap is
+     * still dropped by later {@link #submit(Callable)}.
+     */
+    public <T> Future<T> append(Callable<T> zap) {
+        FutureTask<T> task = new FutureTask<T>(zap);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Cancel all zaps that have not started yet.
+     */
+    public synchronized void cancelPending() {
+        ArrayList<Runnable> pending = new ArrayList<Runnable>();
+        mQueue.drainTo(pending);
+        for (Runnable runnable : pending) {
+            ((Future<?>) runnable).cancel(false);
+        }
+        mDroppedCount.addAndGet(pending.size());
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
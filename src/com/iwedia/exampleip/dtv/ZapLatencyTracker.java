@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.dtv;
+
+import android.util.Log;
+
+import com.iwedia.dtv.service.SourceType;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures time from zap request to each stage of channel change. Times are
+ * recorded per source type in {@link LatencyHistogram} objects. Zap is
+ * measured until all stages are recorded or {@link #TRACE_TIMEOUT_MICROS}
+ * passes, so stages that come after OSD is shown are recorded too.
+ */
+public class ZapLatencyTracker {
+    private static final String TAG = "ZapLatencyTracker";
+    /** Time after zap request after which its stages are not recorded. */
+    private static final long TRACE_TIMEOUT_MICROS = 10 * 1000 * 1000;
+
+    /**
+     * Stages of channel change, in order in which they normally happen.
+     */
+    public enum Stage {
+        DESCRIPTOR_LOOKUP, ROUTE_SELECTION, START_SERVICE, FIRST_PF_EVENT, OSD_RENDER
+    }
+
+    /** Source types that are tracked. */
+    private static final SourceType[] SOURCE_TYPES = { SourceType.SAT,
+            SourceType.CAB, SourceType.TER, SourceType.IP };
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[SOURCE_TYPES.length][Stage
+            .values().length];
+    /** Zap that is measured now. */
+    private final AtomicReference<ZapTrace> mCurrentZap = new AtomicReference<ZapTrace>();
+    /** Number of zaps that failed or were dropped before OSD was shown. */
+    private final AtomicLong mDiscardedCount = new AtomicLong();
+
+    /**
+     * Timestamps of single channel change.
+     */
+    private static class ZapTrace {
+        private final int mChannelNumber;
+        private final int mSourceTypeIndex;
+        private final long mStartNanos;
+        /** 1 for every stage that is already recorded. */
+        private final AtomicIntegerArray mRecorded = new AtomicIntegerArray(
+                Stage.values().length);
+        /** Number of stages that are not recorded yet. */
+        private final AtomicInteger mRemaining = new AtomicInteger(
+                Stage.values().length);
+
+        ZapTrace(int channelNumber, int sourceTypeIndex) {
+            mChannelNumber = channelNumber;
+            mSourceTypeIndex = sourceTypeIndex;
+            mStartNanos = System.nanoTime();
+        }
+
+        /**
+         * Check if OSD of zap was shown, stages still missing after that do
+         * not make zap discarded.
+         */
+        boolean isShown() {
+            return mRecorded.get(Stage.OSD_RENDER.ordinal()) == 1;
+        }
+    }
+
+    public ZapLatencyTracker() {
+        for (int i = 0; i < SOURCE_TYPES.length; i++) {
+            for (int j = 0; j < Stage.values().length; j++) {
+                mHistograms[i][j] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private static int getSourceTypeIndex(SourceType sourceType) {
+        for (int i = 0; i < SOURCE_TYPES.length; i++) {
+            if (SOURCE_TYPES[i] == sourceType) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Start measuring zap. Zap that was measured before and whose OSD was not
+     * shown is counted as discarded.
+     *
+     * @param channelNumber
+     *        Channel that is requested.
+     * @param sourceType
+     *        Source type of channel.
+     */
+    public void startZap(int channelNumber, SourceType sourceType) {
+        int index = getSourceTypeIndex(sourceType);
+        countDiscarded(mCurrentZap.getAndSet(index == -1 ? null
+                : new ZapTrace(channelNumber, index)));
+    }
+
+    /**
+     * Check if zap to given channel is being measured and its OSD is not
+     * shown yet.
+     */
+    public boolean isTracking(int channelNumber) {
+        ZapTrace trace = mCurrentZap.get();
+        return trace != null && trace.mChannelNumber == channelNumber
+                && !trace.isShown();
+    }
+
+    private void countDiscarded(ZapTrace trace) {
+        if (trace != null && !trace.isShown()) {
+            mDiscardedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record stage of current zap. Only first occurrence of every stage is
+     * recorded, stage of channel other than the measured one is ignored.
+     * Zap is finished when all stages are recorded, stage that comes after
+     * {@link #TRACE_TIMEOUT_MICROS} finishes it without being recorded.
+     *
+     * @param channelNumber
+     *        Channel the stage belongs to.
+     */
+    public void mark(Stage stage, int channelNumber) {
+        ZapTrace trace = mCurrentZap.get();
+        if (trace == null || trace.mChannelNumber != channelNumber) {
+            return;
+        }
+        long elapsed = (System.nanoTime() - trace.mStartNanos) / 1000;
+        if (elapsed > TRACE_TIMEOUT_MICROS) {
+            if (mCurrentZap.compareAndSet(trace, null)) {
+                countDiscarded(trace);
+            }
+            return;
+        }
+        if (!trace.mRecorded.compareAndSet(stage.ordinal(), 0, 1)) {
+            return;
+        }
+        mHistograms[trace.mSourceTypeIndex][stage.ordinal()].record(elapsed);
+        if (trace.mRemaining.decrementAndGet() == 0) {
+            mCurrentZap.compareAndSet(trace, null);
+        }
+    }
+
+    /**
+     * Stop measuring zap to channel that failed or was dropped, its later
+     * stages are not recorded.
+     */
+    public void discard(int channelNumber) {
+        ZapTrace trace = mCurrentZap.get();
+        if (trace != null && trace.mChannelNumber == channelNumber
+                && mCurrentZap.compareAndSet(trace, null)) {
+            countDiscarded(trace);
+        }
+    }
+
+    /**
+     * Stop measuring any zap, used when playback is stopped.
+     */
+    public void discardAll() {
+        countDiscarded(mCurrentZap.getAndSet(null));
+    }
+
+    /**
+     * Get histogram of times from zap request to stage.
+     *
+     * @return Histogram or null if source type is not tracked.
+     */
+    public LatencyHistogram getHistogram(SourceType sourceType, Stage stage) {
+        int index = getSourceTypeIndex(sourceType);
+        return index == -1 ? null : mHistograms[index][stage.ordinal()];
+    }
+
+    /**
+     * Clear all recorded values.
+     */
+    public void reset() {
+        for (LatencyHistogram[] histograms : mHistograms) {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.reset();
+            }
+        }
+        mDiscardedCount.set(0);
+    }
+
+    /**
+     * Get readable report with count, p50, p99 and max in milliseconds.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < SOURCE_TYPES.length; i++) {
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = mHistograms[i][stage.ordinal()];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                builder.append(String.format(Locale.US,
+                        "%s %s: n=%d p50=%.1fms p99=%.1fms max=%.1fms\n",
+                        SOURCE_TYPES[i], stage, histogram.getCount(),
+                        histogram.getValueAtPercentile(50) / 1000f,
+                        histogram.getValueAtPercentile(99) / 1000f,
+                        histogram.getMax() / 1000f));
+            }
+        }
+        if (builder.length() == 0) {
+            builder.append("No zaps recorded\n");
+        }
+        builder.append("Discarded zaps: ").append(mDiscardedCount.get());
+        String report = builder.toString();
+        Log.i(TAG, report);
+        return report;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders EPG refreshes of channels. Current channel is refreshed first, then
+ * its neighbours by distance, then channels visible in channel list. At most
+ * one refresh is started per {@link #MIN_INTERVAL_MILLIS}, and no refresh is
+ * started while channel change is in progress.
+ */
+public class EpgAcquisitionScheduler {
+    private static final String TAG = "EpgAcquisitionScheduler";
+    /** Minimum time between two refreshes. */
+    public static final long MIN_INTERVAL_MILLIS = 200;
+    /** Channel is not refreshed again if its data is younger than this. */
+    public static final long MIN_DATA_AGE_MILLIS = 60000;
+    /** Number of channels on each side of current channel to refresh. */
+    public static final int NEIGHBOUR_COUNT = 3;
+    private static final int PRIORITY_CURRENT = 0;
+    private static final int PRIORITY_VISIBLE = PRIORITY_CURRENT
+            + NEIGHBOUR_COUNT + 1;
+
+    /**
+     * Performs refresh, called on scheduler thread.
+     */
+    public interface Refresher {
+        /**
+         * Refresh EPG data of channel.
+         *
+         * @return False if channel has no EPG and should not be counted.
+         */
+        public boolean refresh(int channelNumber);
+    }
+
+    private static class Request implements Comparable<Request> {
+        final int mChannelNumber;
+        final int mPriority;
+        final long mSequence;
+
+        Request(int channelNumber, int priority, long sequence) {
+            mChannelNumber = channelNumber;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            if (mSequence != another.mSequence) {
+                return mSequence < another.mSequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private final Refresher mRefresher;
+    private final Handler mHandler;
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<Request>();
+    /** Best queued priority by channel, stale queue entries are skipped. */
+    private final SparseIntArray mQueuedPriorities = new SparseIntArray();
+    /** Elapsed realtime of last refresh by channel. */
+    private final SparseArray<Long> mRefreshTimes = new SparseArray<Long>();
+    private long mSequence = 0;
+    private long mLastRefreshTime = -MIN_INTERVAL_MILLIS;
+    /** Number of zaps that are queued or running, refreshes wait for them. */
+    private int mPendingZaps = 0;
+    private boolean mDispatchScheduled = false;
+    private final AtomicLong mRefreshCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    public EpgAcquisitionScheduler(Refresher refresher) {
+        mRefresher = refresher;
+        HandlerThread thread = new HandlerThread("EpgAcquisition");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Current channel is changed, it and its neighbours are queued before
+     * anything else.
+     *
+     * @param channelNumber
+     *        Current channel.
+     * @param channelCount
+     *        Number of channels in lineup.
+     */
+    public synchronized void channelChanged(int channelNumber,
+            int channelCount) {
+        if (channelCount <= 0) {
+            return;
+        }
+        enqueue(channelNumber, PRIORITY_CURRENT);
+        for (int distance = 1; distance <= NEIGHBOUR_COUNT; distance++) {
+            enqueue((channelNumber + distance) % channelCount,
+                    PRIORITY_CURRENT + distance);
+            enqueue((channelNumber - distance + channelCount) % channelCount,
+                    PRIORITY_CURRENT + distance);
+        }
+        scheduleDispatch();
+    }
+
+    /**
+     * Channels in range [firstChannel, lastChannel] are visible in channel
+     * list.
+     */
+    public synchronized void setVisibleChannels(int firstChannel,
+            int lastChannel) {
+        for (int i = firstChannel; i <= lastChannel; i++) {
+            enqueue(i, PRIORITY_VISIBLE);
+        }
+        scheduleDispatch();
+    }
+
+    /**
+     * Zap is queued, no refresh is started until it is done.
+     */
+    public synchronized void zapQueued() {
+        mPendingZaps++;
+    }
+
+    /**
+     * Zap is finished or dropped before it started. Refreshes continue when
+     * no other zap is pending.
+     */
+    public synchronized void zapDone() {
+        if (mPendingZaps > 0) {
+            mPendingZaps--;
+        }
+        scheduleDispatch();
+    }
+
+    private boolean isPaused() {
+        return mPendingZaps > 0;
+    }
+
+    private void enqueue(int channelNumber, int priority) {
+        if (channelNumber < 0) {
+            return;
+        }
+        int queued = mQueuedPriorities.get(channelNumber, Integer.MAX_VALUE);
+        if (queued <= priority) {
+            return;
+        }
+        mQueuedPriorities.put(channelNumber, priority);
+        mQueue.add(new Request(channelNumber, priority, mSequence++));
+    }
+
+    private void scheduleDispatch() {
+        if (isPaused() || mDispatchScheduled || mQueuedPriorities.size() == 0) {
+            return;
+        }
+        mDispatchScheduled = true;
+        long delay = mLastRefreshTime + MIN_INTERVAL_MILLIS
+                - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mDispatch, Math.max(delay, 0));
+    }
+
+    private void dispatch() {
+        Request request;
+        synchronized (this) {
+            mDispatchScheduled = false;
+            if (isPaused()) {
+                return;
+            }
+            request = poll();
+            if (request == null) {
+                return;
+            }
+        }
+        boolean refreshed = false;
+        try {
+            refreshed = mRefresher.refresh(request.mChannelNumber);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Refresh of channel " + request.mChannelNumber
+                    + " failed", e);
+        }
+        synchronized (this) {
+            if (refreshed) {
+                mLastRefreshTime = SystemClock.elapsedRealtime();
+                mRefreshTimes.put(request.mChannelNumber, mLastRefreshTime);
+                mRefreshCount.incrementAndGet();
+            }
+            scheduleDispatch();
+        }
+    }
+
+    /**
+     * Take request with best priority whose data is not fresh.
+     */
+    private Request poll() {
+        long now = SystemClock.elapsedRealtime();
+        Request request;
+        while ((request = mQueue.poll()) != null) {
+            int queued = mQueuedPriorities.get(request.mChannelNumber,
+                    Integer.MAX_VALUE);
+            /** Channel was queued again with better priority. */
+            if (queued != request.mPriority) {
+                continue;
+            }
+            mQueuedPriorities.delete(request.mChannelNumber);
+            Long refreshTime = mRefreshTimes.get(request.mChannelNumber);
+            if (refreshTime != null
+                    && now - refreshTime < MIN_DATA_AGE_MILLIS) {
+                mSkippedCount.incrementAndGet();
+                continue;
+            }
+            return request;
+        }
+        return null;
+    }
+
+    /**
+     * Get number of channels waiting for refresh.
+     */
+    public synchronized int getQueueDepth() {
+        return mQueuedPriorities.size();
+    }
+
+    /**
+     * Get time since EPG data of channel was refreshed.
+     *
+     * @return Age in milliseconds or -1 if channel was never refreshed.
+     */
+    public synchronized long getDataAgeMillis(int channelNumber) {
+        Long refreshTime = mRefreshTimes.get(channelNumber);
+        return refreshTime == null ? -1 : SystemClock.elapsedRealtime()
+                - refreshTime;
+    }
+
+    /**
+     * Forget refresh times, so all channels are refreshed again.
+     */
+    public synchronized void reset() {
+        mQueue.clear();
+        mQueuedPriorities.clear();
+        mRefreshTimes.clear();
+        mHandler.removeCallbacks(mDispatch);
+        mDispatchScheduled = false;
+        mPendingZaps = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EPG acquisition: queue=" + mQueuedPriorities.size()
+                + " refreshed=" + mRefreshCount.get() + " skipped="
+                + mSkippedCount.get() + (isPaused() ? " paused" : "");
+    }
+}
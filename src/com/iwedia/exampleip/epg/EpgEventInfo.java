@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import com.iwedia.dtv.epg.EpgEvent;
+import com.iwedia.dtv.types.TimeDate;
+
+/**
+ * Immutable copy of middleware EPG event. Times are in milliseconds, in the
+ * same time base as middleware time.
+ */
+public class EpgEventInfo {
+    private final int mEventId;
+    private final String mName;
+    private final String mDescription;
+    private final long mStartTime;
+    private final long mEndTime;
+    private final int mParentalRate;
+    private final int mGenre;
+
+    public EpgEventInfo(int eventId, String name, String description,
+            long startTime, long endTime, int parentalRate, int genre) {
+        mEventId = eventId;
+        mName = name == null ? "" : name;
+        mDescription = description == null ? "" : description;
+        mStartTime = startTime;
+        mEndTime = endTime;
+        mParentalRate = parentalRate;
+        mGenre = genre;
+    }
+
+    /**
+     * Copy middleware event.
+     *
+     * @return Event info or null if event is null.
+     */
+    public static EpgEventInfo from(EpgEvent event) {
+        if (event == null) {
+            return null;
+        }
+        return new EpgEventInfo(event.getEventId(), event.getName(),
+                event.getDescription(), toMillis(event.getStartTime()),
+                toMillis(event.getEndTime()), event.getParentalRate(),
+                event.getGenre());
+    }
+
+    private static long toMillis(TimeDate timeDate) {
+        return timeDate == null ? 0 : timeDate.getCalendar().getTimeInMillis();
+    }
+
+    public int getEventId() {
+        return mEventId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public long getEndTime() {
+        return mEndTime;
+    }
+
+    public int getParentalRate() {
+        return mParentalRate;
+    }
+
+    public int getGenre() {
+        return mGenre;
+    }
+
+    @Override
+    public String toString() {
+        return "EpgEventInfo [mName=" + mName + ", mStartTime=" + mStartTime
+                + ", mEndTime=" + mEndTime + "]";
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import android.util.Log;
+
+import com.iwedia.exampleip.dtv.BinaryFile;
+import com.iwedia.exampleip.dtv.ChannelLineup;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binary snapshot of present/following and schedule EPG data, so events can
+ * be shown right after application start, before middleware acquires them
+ * again. Strings are stored once in a string table and events reference them
+ * by index. Entries carry service key of their channel and snapshot carries
+ * fingerprint of lineup it was written with, so events are restored to same
+ * services when lineup was renumbered in the meantime.
+ */
+public class EpgSnapshot {
+    private static final String TAG = "EpgSnapshot";
+    private static final int MAGIC = 0x45504753;
+    private static final int VERSION = 2;
+    private static final int HAS_PRESENT = 1;
+    private static final int HAS_FOLLOWING = 2;
+
+    private EpgSnapshot() {
+    }
+
+    /**
+     * Write snapshot. File is replaced only when it is written completely.
+     *
+     * @param lineup
+     *        Lineup that channel numbers of caches belong to.
+     * @return True if snapshot is written.
+     */
+    public static boolean write(File file, final ChannelLineup lineup,
+            PresentFollowingCache presentFollowing, ScheduleStore schedule) {
+        final ArrayList<String> strings = new ArrayList<String>();
+        final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        final int[] pfChannels = getChannelNumbers(
+                presentFollowing.getChannelNumbers(), lineup);
+        final ArrayList<PresentFollowingCache.Entry> pfEntries = new ArrayList<PresentFollowingCache.Entry>();
+        for (int channelNumber : pfChannels) {
+            PresentFollowingCache.Entry entry = presentFollowing
+                    .get(channelNumber);
+            pfEntries.add(entry);
+            addString(lineup.getServiceKey(channelNumber), strings,
+                    stringIndexes);
+            if (entry != null) {
+                addStrings(entry.getPresent(), strings, stringIndexes);
+                addStrings(entry.getFollowing(), strings, stringIndexes);
+            }
+        }
+        final int[] scheduleChannels = getChannelNumbers(
+                schedule.getChannelNumbers(), lineup);
+        final ArrayList<List<EpgEventInfo>> scheduleEvents = new ArrayList<List<EpgEventInfo>>();
+        for (int channelNumber : scheduleChannels) {
+            List<EpgEventInfo> events = schedule.getEvents(channelNumber,
+                    Long.MIN_VALUE, Long.MAX_VALUE);
+            scheduleEvents.add(events);
+            addString(lineup.getServiceKey(channelNumber), strings,
+                    stringIndexes);
+            for (EpgEventInfo event : events) {
+                addStrings(event, strings, stringIndexes);
+            }
+        }
+        return BinaryFile.write(file, new BinaryFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(lineup.getFingerprint());
+                out.writeInt(strings.size());
+                for (String string : strings) {
+                    byte[] bytes = string.getBytes("UTF-8");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                out.writeInt(pfChannels.length);
+                for (int i = 0; i < pfChannels.length; i++) {
+                    PresentFollowingCache.Entry entry = pfEntries.get(i);
+                    EpgEventInfo present = entry == null ? null : entry
+                            .getPresent();
+                    EpgEventInfo following = entry == null ? null : entry
+                            .getFollowing();
+                    writeChannel(out, lineup, pfChannels[i], stringIndexes);
+                    out.writeByte((present != null ? HAS_PRESENT : 0)
+                            | (following != null ? HAS_FOLLOWING : 0));
+                    if (present != null) {
+                        writeEvent(out, present, stringIndexes);
+                    }
+                    if (following != null) {
+                        writeEvent(out, following, stringIndexes);
+                    }
+                }
+                out.writeInt(scheduleChannels.length);
+                for (int i = 0; i < scheduleChannels.length; i++) {
+                    List<EpgEventInfo> events = scheduleEvents.get(i);
+                    writeChannel(out, lineup, scheduleChannels[i],
+                            stringIndexes);
+                    out.writeInt(events.size());
+                    for (EpgEventInfo event : events) {
+                        writeEvent(out, event, stringIndexes);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Get channel numbers that are part of lineup.
+     */
+    private static int[] getChannelNumbers(int[] channelNumbers,
+            ChannelLineup lineup) {
+        int count = 0;
+        int[] valid = new int[channelNumbers.length];
+        for (int channelNumber : channelNumbers) {
+            if (channelNumber >= 0 && channelNumber < lineup.size()) {
+                valid[count++] = channelNumber;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(valid, 0, result, 0, count);
+        return result;
+    }
+
+    private static void addStrings(EpgEventInfo event, List<String> strings,
+            HashMap<String, Integer> stringIndexes) {
+        if (event == null) {
+            return;
+        }
+        addString(event.getName(), strings, stringIndexes);
+        addString(event.getDescription(), strings, stringIndexes);
+    }
+
+    private static void addString(String string, List<String> strings,
+            HashMap<String, Integer> stringIndexes) {
+        if (!stringIndexes.containsKey(string)) {
+            stringIndexes.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+
+    private static void writeChannel(DataOutputStream out,
+            ChannelLineup lineup, int channelNumber,
+            HashMap<String, Integer> stringIndexes) throws IOException {
+        out.writeInt(channelNumber);
+        out.writeInt(stringIndexes.get(lineup.getServiceKey(channelNumber)));
+    }
+
+    private static void writeEvent(DataOutputStream out, EpgEventInfo event,
+            HashMap<String, Integer> stringIndexes) throws IOException {
+        out.writeInt(event.getEventId());
+        out.writeInt(stringIndexes.get(event.getName()));
+        out.writeInt(stringIndexes.get(event.getDescription()));
+        out.writeLong(event.getStartTime());
+        out.writeLong(event.getEndTime());
+        out.writeInt(event.getParentalRate());
+        out.writeInt(event.getGenre());
+    }
+
+    /**
+     * Read snapshot into caches. Events that ended before given time are
+     * dropped, following event that already started becomes present event.
+     * Events of services that are not part of lineup are dropped.
+     *
+     * @param file
+     *        Snapshot file.
+     * @param now
+     *        Current middleware time in milliseconds.
+     * @param lineup
+     *        Lineup that channel numbers of caches belong to.
+     * @return True if snapshot is read.
+     */
+    public static boolean read(final File file, final long now,
+            final ChannelLineup lineup,
+            final PresentFollowingCache presentFollowing,
+            final ScheduleStore schedule) {
+        Boolean result = BinaryFile.read(file,
+                new BinaryFile.Reader<Boolean>() {
+                    @Override
+                    public Boolean read(MappedByteBuffer buffer)
+                            throws IOException {
+                        if (buffer.getInt() != MAGIC
+                                || buffer.getInt() != VERSION) {
+                            Log.w(TAG, "Unknown snapshot format " + file);
+                            return null;
+                        }
+                        readEvents(buffer, now, lineup, presentFollowing,
+                                schedule);
+                        return Boolean.TRUE;
+                    }
+                });
+        return result != null;
+    }
+
+    private static void readEvents(MappedByteBuffer buffer, long now,
+            ChannelLineup lineup, PresentFollowingCache presentFollowing,
+            ScheduleStore schedule) throws IOException {
+        /**
+         * Stored channel numbers are used when lineup is unchanged, otherwise
+         * channels are found by service key.
+         */
+        HashMap<String, Integer> channels = null;
+        if (buffer.getLong() != lineup.getFingerprint()) {
+            channels = new HashMap<String, Integer>();
+            for (int i = 0; i < lineup.size(); i++) {
+                channels.put(lineup.getServiceKey(i), i);
+            }
+        }
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, "UTF-8");
+        }
+        int pfCount = buffer.getInt();
+        for (int i = 0; i < pfCount; i++) {
+            int channelNumber = readChannel(buffer, strings, lineup, channels);
+            int flags = buffer.get();
+            EpgEventInfo present = (flags & HAS_PRESENT) != 0 ? readEvent(
+                    buffer, strings) : null;
+            EpgEventInfo following = (flags & HAS_FOLLOWING) != 0 ? readEvent(
+                    buffer, strings) : null;
+            if (channelNumber == -1) {
+                continue;
+            }
+            if (present != null && present.getEndTime() <= now) {
+                present = null;
+            }
+            if (following != null && following.getEndTime() <= now) {
+                following = null;
+            }
+            if (present == null && following != null
+                    && following.getStartTime() <= now) {
+                present = following;
+                following = null;
+            }
+            /** Entry is not restored if present event is unknown. */
+            if (present != null
+                    && presentFollowing.get(channelNumber) == null) {
+                presentFollowing.put(channelNumber,
+                        new PresentFollowingCache.Entry(present, following));
+            }
+        }
+        int scheduleCount = buffer.getInt();
+        for (int i = 0; i < scheduleCount; i++) {
+            int channelNumber = readChannel(buffer, strings, lineup, channels);
+            int eventCount = buffer.getInt();
+            ArrayList<EpgEventInfo> events = new ArrayList<EpgEventInfo>(
+                    eventCount);
+            for (int j = 0; j < eventCount; j++) {
+                EpgEventInfo event = readEvent(buffer, strings);
+                if (event.getEndTime() > now) {
+                    events.add(event);
+                }
+            }
+            if (channelNumber != -1 && !events.isEmpty()
+                    && !schedule.hasSchedule(channelNumber)) {
+                schedule.put(channelNumber, events);
+            }
+        }
+    }
+
+    /**
+     * Read channel of entry.
+     *
+     * @param channels
+     *        Channel numbers by service key, null if stored channel numbers
+     *        belong to lineup.
+     * @return Channel number in lineup or -1 if service is not in lineup.
+     */
+    private static int readChannel(MappedByteBuffer buffer, String[] strings,
+            ChannelLineup lineup, HashMap<String, Integer> channels) {
+        int channelNumber = buffer.getInt();
+        String serviceKey = strings[buffer.getInt()];
+        if (channels == null) {
+            boolean valid = channelNumber >= 0
+                    && channelNumber < lineup.size();
+            return valid ? channelNumber : -1;
+        }
+        Integer found = channels.get(serviceKey);
+        return found == null ? -1 : found;
+    }
+
+    private static EpgEventInfo readEvent(MappedByteBuffer buffer,
+            String[] strings) {
+        int eventId = buffer.getInt();
+        String name = strings[buffer.getInt()];
+        String description = strings[buffer.getInt()];
+        long startTime = buffer.getLong();
+        long endTime = buffer.getLong();
+        int parentalRate = buffer.getInt();
+        int genre = buffer.getInt();
+        return new EpgEventInfo(eventId, name, description, startTime,
+                endTime, parentalRate, genre);
+    }
+}
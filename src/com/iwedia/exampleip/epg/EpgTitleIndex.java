@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Inverted index of words in EPG event names. Every word of a query is
+ * matched as prefix of words in event names, results are ordered by start
+ * time. Number of indexed events is limited, events that start last are
+ * dropped first. Events that ended are removed as time advances.
+ */
+public class EpgTitleIndex {
+    /** Default limit of indexed events. */
+    public static final int DEFAULT_MAX_EVENTS = 50000;
+    private final int mMaxEvents;
+    /** Events by word. */
+    private final TreeMap<String, HashSet<Result>> mPostings = new TreeMap<String, HashSet<Result>>();
+    /** Events by channel and event id. */
+    private final HashMap<Long, Result> mEvents = new HashMap<Long, Result>();
+    /** Events by channel. */
+    private final SparseArray<HashSet<Result>> mByChannel = new SparseArray<HashSet<Result>>();
+    /** Events ordered by start time, for expiry and eviction. */
+    private final TreeSet<Result> mByStartTime = new TreeSet<Result>(
+            START_TIME_ORDER);
+
+    private static final Comparator<Result> START_TIME_ORDER = new Comparator<Result>() {
+        @Override
+        public int compare(Result lhs, Result rhs) {
+            long lhsStart = lhs.mEvent.getStartTime();
+            long rhsStart = rhs.mEvent.getStartTime();
+            if (lhsStart != rhsStart) {
+                return lhsStart < rhsStart ? -1 : 1;
+            }
+            if (lhs.mKey != rhs.mKey) {
+                return lhs.mKey < rhs.mKey ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Event found by search.
+     */
+    public static class Result {
+        private final int mChannelNumber;
+        private final EpgEventInfo mEvent;
+        private final long mKey;
+        private final String[] mWords;
+
+        Result(int channelNumber, EpgEventInfo event) {
+            mChannelNumber = channelNumber;
+            mEvent = event;
+            mKey = key(channelNumber, event.getEventId());
+            mWords = tokenize(event.getName());
+        }
+
+        public int getChannelNumber() {
+            return mChannelNumber;
+        }
+
+        public EpgEventInfo getEvent() {
+            return mEvent;
+        }
+    }
+
+    public EpgTitleIndex() {
+        this(DEFAULT_MAX_EVENTS);
+    }
+
+    public EpgTitleIndex(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    private static long key(int channelNumber, int eventId) {
+        return ((long) channelNumber << 32) | (eventId & 0xffffffffL);
+    }
+
+    /**
+     * Split text in lower case words.
+     */
+    private static String[] tokenize(String text) {
+        ArrayList<String> words = new ArrayList<String>();
+        String lowerCase = text.toLowerCase(Locale.getDefault());
+        int start = -1;
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            boolean wordChar = i < lowerCase.length()
+                    && Character.isLetterOrDigit(lowerCase.charAt(i));
+            if (wordChar && start == -1) {
+                start = i;
+            } else if (!wordChar && start != -1) {
+                words.add(lowerCase.substring(start, i));
+                start = -1;
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Replace indexed events of channel.
+     *
+     * @param channelNumber
+     *        Channel the events belong to.
+     * @param events
+     *        All known events of channel.
+     * @param now
+     *        Current time in milliseconds, ended events are not indexed.
+     */
+    public synchronized void putChannel(int channelNumber,
+            List<EpgEventInfo> events, long now) {
+        HashSet<Result> channelEvents = mByChannel.get(channelNumber);
+        if (channelEvents != null) {
+            for (Result result : new ArrayList<Result>(channelEvents)) {
+                remove(result);
+            }
+        }
+        for (EpgEventInfo event : events) {
+            add(channelNumber, event, now);
+        }
+        trim(now);
+    }
+
+    /**
+     * Add or replace single event.
+     */
+    public synchronized void putEvent(int channelNumber, EpgEventInfo event,
+            long now) {
+        add(channelNumber, event, now);
+        trim(now);
+    }
+
+    private void add(int channelNumber, EpgEventInfo event, long now) {
+        if (event == null || event.getEndTime() <= now) {
+            return;
+        }
+        Result result = new Result(channelNumber, event);
+        Result old = mEvents.get(result.mKey);
+        if (old != null) {
+            remove(old);
+        }
+        mEvents.put(result.mKey, result);
+        mByStartTime.add(result);
+        HashSet<Result> channelEvents = mByChannel.get(channelNumber);
+        if (channelEvents == null) {
+            channelEvents = new HashSet<Result>();
+            mByChannel.put(channelNumber, channelEvents);
+        }
+        channelEvents.add(result);
+        for (String word : result.mWords) {
+            HashSet<Result> postings = mPostings.get(word);
+            if (postings == null) {
+                postings = new HashSet<Result>();
+                mPostings.put(word, postings);
+            }
+            postings.add(result);
+        }
+    }
+
+    private void remove(Result result) {
+        mEvents.remove(result.mKey);
+        mByStartTime.remove(result);
+        HashSet<Result> channelEvents = mByChannel.get(result.mChannelNumber);
+        if (channelEvents != null) {
+            channelEvents.remove(result);
+            if (channelEvents.isEmpty()) {
+                mByChannel.remove(result.mChannelNumber);
+            }
+        }
+        for (String word : result.mWords) {
+            HashSet<Result> postings = mPostings.get(word);
+            if (postings != null) {
+                postings.remove(result);
+                if (postings.isEmpty()) {
+                    mPostings.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove ended events and events over limit.
+     */
+    private void trim(long now) {
+        expire(now);
+        while (mByStartTime.size() > mMaxEvents) {
+            remove(mByStartTime.last());
+        }
+    }
+
+    /**
+     * Remove events that ended before given time.
+     */
+    public synchronized void expire(long now) {
+        ArrayList<Result> expired = new ArrayList<Result>();
+        for (Result result : mByStartTime) {
+            /** Events that did not start yet did not end. */
+            if (result.mEvent.getStartTime() >= now) {
+                break;
+            }
+            if (result.mEvent.getEndTime() <= now) {
+                expired.add(result);
+            }
+        }
+        for (Result result : expired) {
+            remove(result);
+        }
+    }
+
+    /**
+     * Find events that did not end, whose names contain words starting with
+     * every word of query.
+     *
+     * @param query
+     *        Text entered by the user.
+     * @param now
+     *        Current time in milliseconds.
+     * @param limit
+     *        Maximum number of results.
+     * @return Events ordered by start time.
+     */
+    public synchronized List<Result> search(String query, long now, int limit) {
+        expire(now);
+        String[] words = tokenize(query);
+        ArrayList<Result> results = new ArrayList<Result>();
+        if (words.length == 0) {
+            return results;
+        }
+        HashSet<Result> matches = null;
+        for (String word : words) {
+            HashSet<Result> wordMatches = new HashSet<Result>();
+            SortedMap<String, HashSet<Result>> tail = mPostings.tailMap(word);
+            for (Map.Entry<String, HashSet<Result>> entry : tail.entrySet()) {
+                if (!entry.getKey().startsWith(word)) {
+                    break;
+                }
+                wordMatches.addAll(entry.getValue());
+            }
+            if (matches == null) {
+                matches = wordMatches;
+            } else {
+                matches.retainAll(wordMatches);
+            }
+            if (matches.isEmpty()) {
+                return results;
+            }
+        }
+        results.addAll(matches);
+        Collections.sort(results, START_TIME_ORDER);
+        if (results.size() > limit) {
+            return new ArrayList<Result>(results.subList(0, limit));
+        }
+        return results;
+    }
+
+    /**
+     * Get number of indexed events.
+     */
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    /**
+     * Get number of distinct indexed words.
+     */
+    public synchronized int getWordCount() {
+        return mPostings.size();
+    }
+
+    public synchronized void clear() {
+        mPostings.clear();
+        mEvents.clear();
+        mByChannel.clear();
+        mByStartTime.clear();
+    }
+
+    /**
+     * Move events to new channel numbers, called when channel numbers
+     * change.
+     *
+     * @param newNumbers
+     *        New number by old number, -1 for removed channels. Channels
+     *        that are not in it keep their number.
+     */
+    public synchronized void remap(SparseIntArray newNumbers) {
+        ArrayList<Result> moved = new ArrayList<Result>();
+        for (int i = 0; i < newNumbers.size(); i++) {
+            HashSet<Result> channelEvents = mByChannel.get(newNumbers
+                    .keyAt(i));
+            if (channelEvents != null) {
+                moved.addAll(channelEvents);
+            }
+        }
+        /** Events are removed first, so moved events do not collide. */
+        for (Result result : moved) {
+            remove(result);
+        }
+        for (Result result : moved) {
+            int channelNumber = newNumbers.get(result.mChannelNumber);
+            if (channelNumber != -1) {
+                add(channelNumber, result.mEvent, Long.MIN_VALUE);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.SparseBooleanArray;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges EPG change notifications that arrive within one frame window.
+ * Every channel is applied at most once per window, and only if it is
+ * displayed. Notifications of channels that are not displayed are dropped
+ * and the channel is reported as stale, so its data can be read again when
+ * it is needed.
+ */
+public class EpgUpdateCoalescer {
+    /** Window in which notifications are merged. */
+    public static final long FRAME_WINDOW_MILLIS = 16;
+
+    /**
+     * Receiver of merged notifications. Methods are called on coalescer
+     * thread.
+     */
+    public interface Listener {
+        /** Check if EPG data of channel is visible to the user. */
+        public boolean isDisplayed(int channelNumber);
+
+        /** Channel is displayed and its EPG data is changed. */
+        public void applyChange(int channelNumber);
+
+        /** Channel is not displayed and its EPG data is changed. */
+        public void markStale(int channelNumber);
+
+        /** All changes of one window are applied. */
+        public void changesApplied(int appliedCount);
+    }
+
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    /** Channels changed in current window. */
+    private SparseBooleanArray mPending = new SparseBooleanArray();
+    private boolean mFlushScheduled = false;
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mAppliedCount = new AtomicLong();
+    private final AtomicLong mHiddenCount = new AtomicLong();
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public EpgUpdateCoalescer(Listener listener) {
+        mListener = listener;
+        mThread = new HandlerThread("EpgUpdates");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * EPG data of channel is changed. Can be called from any thread.
+     */
+    public void notifyChanged(int channelNumber) {
+        mReceivedCount.incrementAndGet();
+        synchronized (this) {
+            mPending.put(channelNumber, true);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlush, FRAME_WINDOW_MILLIS);
+    }
+
+    private void flush() {
+        SparseBooleanArray pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new SparseBooleanArray();
+            mFlushScheduled = false;
+        }
+        int applied = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            int channelNumber = pending.keyAt(i);
+            if (mListener.isDisplayed(channelNumber)) {
+                mListener.applyChange(channelNumber);
+                applied++;
+            } else {
+                mListener.markStale(channelNumber);
+                mHiddenCount.incrementAndGet();
+            }
+        }
+        mAppliedCount.addAndGet(applied);
+        if (applied > 0) {
+            mListener.changesApplied(applied);
+        }
+    }
+
+    /**
+     * Get number of notifications received.
+     */
+    public long getReceivedCount() {
+        return mReceivedCount.get();
+    }
+
+    /**
+     * Get number of channel changes that were applied.
+     */
+    public long getAppliedCount() {
+        return mAppliedCount.get();
+    }
+
+    /**
+     * Get number of channel changes dropped because channel was not
+     * displayed.
+     */
+    public long getHiddenCount() {
+        return mHiddenCount.get();
+    }
+
+    @Override
+    public String toString() {
+        long received = getReceivedCount();
+        long applied = getAppliedCount();
+        long hidden = getHiddenCount();
+        return "EPG updates: received=" + received + " applied=" + applied
+                + " hidden=" + hidden + " merged="
+                + Math.max(received - applied - hidden, 0);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+/**
+ * Present and following events of channels, kept in memory so channel info
+ * can be shown without asking middleware. Entries are replaced when
+ * middleware reports that present/following events are changed.
+ */
+public class PresentFollowingCache {
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+
+    /**
+     * Present and following event of one channel.
+     */
+    public static class Entry {
+        private final EpgEventInfo mPresent;
+        private final EpgEventInfo mFollowing;
+
+        public Entry(EpgEventInfo present, EpgEventInfo following) {
+            mPresent = present;
+            mFollowing = following;
+        }
+
+        /**
+         * Get present event, null if there is no present event.
+         */
+        public EpgEventInfo getPresent() {
+            return mPresent;
+        }
+
+        /**
+         * Get following event, null if there is no following event.
+         */
+        public EpgEventInfo getFollowing() {
+            return mFollowing;
+        }
+    }
+
+    /**
+     * Get cached events of channel.
+     *
+     * @return Entry or null if channel is not cached.
+     */
+    public synchronized Entry get(int channelNumber) {
+        return mEntries.get(channelNumber);
+    }
+
+    /**
+     * Get channels that have cached events, in ascending order.
+     */
+    public synchronized int[] getChannelNumbers() {
+        int[] channelNumbers = new int[mEntries.size()];
+        for (int i = 0; i < channelNumbers.length; i++) {
+            channelNumbers[i] = mEntries.keyAt(i);
+        }
+        return channelNumbers;
+    }
+
+    public synchronized void put(int channelNumber, Entry entry) {
+        mEntries.put(channelNumber, entry);
+    }
+
+    /**
+     * Remove channel, it will be read from middleware on next use.
+     */
+    public synchronized void invalidate(int channelNumber) {
+        mEntries.remove(channelNumber);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Move entries to new channel numbers, called when channel numbers
+     * change.
+     *
+     * @param newNumbers
+     *        New number by old number, -1 for removed channels. Channels
+     *        that are not in it keep their number.
+     */
+    public synchronized void remap(SparseIntArray newNumbers) {
+        int size = mEntries.size();
+        int[] channelNumbers = new int[size];
+        Entry[] entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            channelNumbers[i] = mEntries.keyAt(i);
+            entries[i] = mEntries.valueAt(i);
+        }
+        mEntries.clear();
+        for (int i = 0; i < size; i++) {
+            int channelNumber = newNumbers.get(channelNumbers[i],
+                    channelNumbers[i]);
+            if (channelNumber != -1) {
+                mEntries.put(channelNumber, entries[i]);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.epg;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Schedule EPG events of all channels. Events of every channel are kept in
+ * arrays sorted by start time, so events in a time window are found with
+ * binary search. Channel schedules are immutable and replaced as a whole
+ * when middleware reports a change, queries do not block ingestion.
+ */
+public class ScheduleStore {
+    private final SparseArray<ChannelSchedule> mSchedules = new SparseArray<ChannelSchedule>();
+
+    private static final Comparator<EpgEventInfo> START_TIME_ORDER = new Comparator<EpgEventInfo>() {
+        @Override
+        public int compare(EpgEventInfo lhs, EpgEventInfo rhs) {
+            if (lhs.getStartTime() != rhs.getStartTime()) {
+                return lhs.getStartTime() < rhs.getStartTime() ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    /**
+     * Events of one channel sorted by start time.
+     */
+    private static class ChannelSchedule {
+        private final long[] mStartTimes;
+        private final long[] mEndTimes;
+        /**
+         * Highest end time of events up to index, does not decrease even if
+         * middleware reports overlapping events.
+         */
+        private final long[] mMaxEndTimes;
+        private final EpgEventInfo[] mEvents;
+
+        ChannelSchedule(EpgEventInfo[] events) {
+            Arrays.sort(events, START_TIME_ORDER);
+            mEvents = events;
+            mStartTimes = new long[events.length];
+            mEndTimes = new long[events.length];
+            mMaxEndTimes = new long[events.length];
+            long maxEnd = Long.MIN_VALUE;
+            for (int i = 0; i < events.length; i++) {
+                mStartTimes[i] = events[i].getStartTime();
+                mEndTimes[i] = events[i].getEndTime();
+                maxEnd = Math.max(maxEnd, mEndTimes[i]);
+                mMaxEndTimes[i] = maxEnd;
+            }
+        }
+
+        /**
+         * Add events that overlap [from, to) to list.
+         */
+        void collect(long from, long to, List<EpgEventInfo> result) {
+            int first = firstGreater(mMaxEndTimes, from);
+            int last = firstGreaterOrEqual(mStartTimes, to);
+            for (int i = first; i < last; i++) {
+                if (mEndTimes[i] > from) {
+                    result.add(mEvents[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get index of first value greater than key in sorted array.
+     */
+    private static int firstGreater(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get index of first value greater than or equal to key in sorted
+     * array.
+     */
+    private static int firstGreaterOrEqual(long[] values, long key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Replace schedule of channel.
+     *
+     * @param channelNumber
+     *        Channel the events belong to.
+     * @param events
+     *        All known events of channel, in any order.
+     */
+    public void put(int channelNumber, List<EpgEventInfo> events) {
+        ChannelSchedule schedule = new ChannelSchedule(
+                events.toArray(new EpgEventInfo[events.size()]));
+        synchronized (this) {
+            mSchedules.put(channelNumber, schedule);
+        }
+    }
+
+    /**
+     * Check if schedule of channel is stored.
+     */
+    public synchronized boolean hasSchedule(int channelNumber) {
+        return mSchedules.get(channelNumber) != null;
+    }
+
+    public synchronized void remove(int channelNumber) {
+        mSchedules.remove(channelNumber);
+    }
+
+    public synchronized void clear() {
+        mSchedules.clear();
+    }
+
+    /**
+     * Move schedules to new channel numbers, called when channel numbers
+     * change.
+     *
+     * @param newNumbers
+     *        New number by old number, -1 for removed channels. Channels
+     *        that are not in it keep their number.
+     */
+    public synchronized void remap(SparseIntArray newNumbers) {
+        int size = mSchedules.size();
+        int[] channelNumbers = new int[size];
+        ChannelSchedule[] schedules = new ChannelSchedule[size];
+        for (int i = 0; i < size; i++) {
+            channelNumbers[i] = mSchedules.keyAt(i);
+            schedules[i] = mSchedules.valueAt(i);
+        }
+        mSchedules.clear();
+        for (int i = 0; i < size; i++) {
+            int channelNumber = newNumbers.get(channelNumbers[i],
+                    channelNumbers[i]);
+            if (channelNumber != -1) {
+                mSchedules.put(channelNumber, schedules[i]);
+            }
+        }
+    }
+
+    /**
+     * Get events of channel that overlap time window.
+     *
+     * @param channelNumber
+     *        Channel to search.
+     * @param from
+     *        Start of window in milliseconds.
+     * @param to
+     *        End of window in milliseconds, exclusive.
+     * @return Events sorted by start time.
+     */
+    public List<EpgEventInfo> getEvents(int channelNumber, long from, long to) {
+        ChannelSchedule schedule;
+        synchronized (this) {
+            schedule = mSchedules.get(channelNumber);
+        }
+        if (schedule == null) {
+            return Collections.emptyList();
+        }
+        ArrayList<EpgEventInfo> result = new ArrayList<EpgEventInfo>();
+        schedule.collect(from, to, result);
+        return result;
+    }
+
+    /**
+     * Get events of channels in range [firstChannel, lastChannel] that
+     * overlap time window, for EPG grid.
+     *
+     * @param from
+     *        Start of window in milliseconds.
+     * @param to
+     *        End of window in milliseconds, exclusive.
+     * @return Events sorted by start time, by channel. Channels without
+     *         events in window are not present.
+     */
+    public SparseArray<List<EpgEventInfo>> query(int firstChannel,
+            int lastChannel, long from, long to) {
+        int count = 0;
+        int[] channels;
+        ChannelSchedule[] schedules;
+        synchronized (this) {
+            channels = new int[mSchedules.size()];
+            schedules = new ChannelSchedule[mSchedules.size()];
+            for (int i = 0; i < mSchedules.size(); i++) {
+                int channelNumber = mSchedules.keyAt(i);
+                if (channelNumber >= firstChannel
+                        && channelNumber <= lastChannel) {
+                    channels[count] = channelNumber;
+                    schedules[count] = mSchedules.valueAt(i);
+                    count++;
+                }
+            }
+        }
+        SparseArray<List<EpgEventInfo>> result = new SparseArray<List<EpgEventInfo>>(
+                count);
+        for (int i = 0; i < count; i++) {
+            ArrayList<EpgEventInfo> events = new ArrayList<EpgEventInfo>();
+            schedules[i].collect(from, to, events);
+            if (!events.isEmpty()) {
+                result.append(channels[i], events);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get channels that have schedule, in ascending order.
+     */
+    public synchronized int[] getChannelNumbers() {
+        int[] channelNumbers = new int[mSchedules.size()];
+        for (int i = 0; i < channelNumbers.length; i++) {
+            channelNumbers[i] = mSchedules.keyAt(i);
+        }
+        return channelNumbers;
+    }
+
+    /**
+     * Get number of channels with schedule.
+     */
+    public synchronized int getChannelCount() {
+        return mSchedules.size();
+    }
+
+    /**
+     * Get number of stored events of all channels.
+     */
+    public synchronized int getEventCount() {
+        int count = 0;
+        for (int i = 0; i < mSchedules.size(); i++) {
+            count += mSchedules.valueAt(i).mEvents.length;
+        }
+        return count;
+    }
+}
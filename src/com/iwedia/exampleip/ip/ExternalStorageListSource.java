@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * IP channel lists found on external storages. Storages are searched again
+ * on every load, so lists added after the scan are found too. Lists whose
+ * size and modification time did not change since last load are not parsed
+ * again.
+ */
+public class ExternalStorageListSource implements IpChannelSource {
+    private final File mMediaPath;
+    private final ExternalStorageScanner mScanner;
+    /** Lists found by last search. */
+    private volatile List<File> mLists;
+    /** Directories searched by last search. */
+    private volatile List<File> mDirectories;
+    /** Services of lists by path, guarded by this. */
+    private final HashMap<String, ParsedList> mParsedLists = new HashMap<String, ParsedList>();
+
+    /**
+     * Services of list and state of file they were read from.
+     */
+    private static class ParsedList {
+        final long mLength;
+        final long mLastModified;
+        final ArrayList<IPService> mServices;
+
+        ParsedList(long length, long lastModified,
+                ArrayList<IPService> services) {
+            mLength = length;
+            mLastModified = lastModified;
+            mServices = services;
+        }
+    }
+
+    /**
+     * @param mediaPath
+     *        Directory with mounted storages.
+     * @param listFileName
+     *        Name of IP channel list files.
+     * @param maxDepth
+     *        Number of directory levels below storage root to search.
+     * @param lists
+     *        Lists found by scan.
+     * @param directories
+     *        Directories searched by scan.
+     */
+    public ExternalStorageListSource(File mediaPath, String listFileName,
+            int maxDepth, List<File> lists, List<File> directories) {
+        mMediaPath = mediaPath;
+        mScanner = new ExternalStorageScanner(listFileName, maxDepth);
+        mLists = lists;
+        mDirectories = directories;
+    }
+
+    @Override
+    public List<File> getFiles() {
+        return mLists;
+    }
+
+    @Override
+    public List<File> getDirectories() {
+        return mDirectories;
+    }
+
+    @Override
+    public synchronized List<IPService> load() {
+        ArrayList<File> lists = new ArrayList<File>();
+        ArrayList<File> directories = new ArrayList<File>();
+        mScanner.findLists(mMediaPath, lists, directories);
+        HashMap<String, ParsedList> parsedLists = new HashMap<String, ParsedList>();
+        ArrayList<ArrayList<IPService>> results = new ArrayList<ArrayList<IPService>>();
+        for (File list : lists) {
+            long length = list.length();
+            long lastModified = list.lastModified();
+            ParsedList parsed = mParsedLists.get(list.getPath());
+            if (parsed == null || parsed.mLength != length
+                    || parsed.mLastModified != lastModified) {
+                ArrayList<IPService> services = new ArrayList<IPService>();
+                ExternalStorageScanner.readList(list, services);
+                parsed = new ParsedList(length, lastModified, services);
+            }
+            parsedLists.put(list.getPath(), parsed);
+            results.add(parsed.mServices);
+        }
+        /** Lists that are gone are forgotten. */
+        mParsedLists.clear();
+        mParsedLists.putAll(parsedLists);
+        mLists = lists;
+        mDirectories = directories;
+        return ExternalStorageScanner.merge(results);
+    }
+}
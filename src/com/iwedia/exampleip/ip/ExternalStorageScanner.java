@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.iwedia.exampleip.dtv.IPService;
+import com.iwedia.exampleip.dtv.NamedThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds IP channel lists on external storages in background. Every storage
+ * is scanned in its own task, directories are visited down to configured
+ * depth. Services found in all lists are merged in storage order, services
+ * with URL that is already known are dropped. Progress is reported while
+ * directories are visited, at most every {@link #PROGRESS_INTERVAL_MILLIS}.
+ */
+public class ExternalStorageScanner {
+    private static final String TAG = "ExternalStorageScanner";
+    /** Default number of directory levels below storage root to visit. */
+    public static final int DEFAULT_MAX_DEPTH = 3;
+    private static final int THREAD_COUNT = 4;
+    /** Minimum time between progress reports of visited directories. */
+    public static final long PROGRESS_INTERVAL_MILLIS = 200;
+    private final int mMaxDepth;
+    private final String mListFileName;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Receiver of scan progress, called on scanner threads.
+     */
+    public interface Listener {
+        /**
+         * Directories are visited or storage is scanned.
+         *
+         * @param scannedCount
+         *        Number of storages scanned so far.
+         * @param storageCount
+         *        Number of storages.
+         * @param directoryCount
+         *        Number of directories visited so far.
+         * @param listCount
+         *        Number of lists found so far.
+         */
+        public void onProgress(int scannedCount, int storageCount,
+                int directoryCount, int listCount);
+
+        /**
+         * All storages are scanned.
+         *
+         * @param services
+         *        Services of all lists without duplicate URLs.
+         * @param lists
+         *        Lists found, in storage order.
+         * @param directories
+         *        Directories that were searched, media directory first.
+         */
+        public void onFinished(List<IPService> services, List<File> lists,
+                List<File> directories);
+    }
+
+    /**
+     * Counters of running scan.
+     */
+    private static class Progress {
+        final Listener mListener;
+        final int mStorageCount;
+        final AtomicInteger mScannedCount = new AtomicInteger();
+        final AtomicInteger mDirectoryCount = new AtomicInteger();
+        final AtomicInteger mListCount = new AtomicInteger();
+        /** Time of last report. */
+        private final AtomicLong mReportTime = new AtomicLong();
+
+        Progress(Listener listener, int storageCount) {
+            mListener = listener;
+            mStorageCount = storageCount;
+        }
+
+        /**
+         * Report counters to listener. Report that is not forced is dropped
+         * if previous one was sent less than
+         * {@link #PROGRESS_INTERVAL_MILLIS} ago.
+         */
+        void report(boolean force) {
+            long now = SystemClock.elapsedRealtime();
+            if (force) {
+                mReportTime.set(now);
+            } else {
+                long last = mReportTime.get();
+                if (now - last < PROGRESS_INTERVAL_MILLIS
+                        || !mReportTime.compareAndSet(last, now)) {
+                    return;
+                }
+            }
+            mListener.onProgress(mScannedCount.get(), mStorageCount,
+                    mDirectoryCount.get(), mListCount.get());
+        }
+    }
+
+    /**
+     * @param listFileName
+     *        Name of IP channel list files, M3U playlists are found too.
+     * @param maxDepth
+     *        Number of directory levels below storage root to visit.
+     */
+    public ExternalStorageScanner(String listFileName, int maxDepth) {
+        mListFileName = listFileName;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Start scan of all storages mounted in directory.
+     *
+     * @param mediaPath
+     *        Directory with mounted storages.
+     */
+    public void scan(File mediaPath, final Listener listener) {
+        final File[] storages = mediaPath.listFiles();
+        final ArrayList<File> directories = new ArrayList<File>();
+        directories.add(mediaPath);
+        if (storages == null || storages.length == 0) {
+            listener.onFinished(new ArrayList<IPService>(),
+                    new ArrayList<File>(), directories);
+            return;
+        }
+        final ArrayList<ArrayList<IPService>> results = new ArrayList<ArrayList<IPService>>();
+        final ArrayList<ArrayList<File>> lists = new ArrayList<ArrayList<File>>();
+        final ArrayList<ArrayList<File>> storageDirectories = new ArrayList<ArrayList<File>>();
+        for (int i = 0; i < storages.length; i++) {
+            results.add(new ArrayList<IPService>());
+            lists.add(new ArrayList<File>());
+            storageDirectories.add(new ArrayList<File>());
+        }
+        final Progress progress = new Progress(listener, storages.length);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(THREAD_COUNT, storages.length),
+                new NamedThreadFactory("StorageScan"));
+        for (int i = 0; i < storages.length; i++) {
+            final int storageIndex = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scanDirectory(storages[storageIndex], 0,
+                            results.get(storageIndex), lists.get(storageIndex),
+                            storageDirectories.get(storageIndex), progress);
+                    int scanned = progress.mScannedCount.incrementAndGet();
+                    progress.report(true);
+                    if (scanned == storages.length) {
+                        ArrayList<File> found = new ArrayList<File>();
+                        for (ArrayList<File> storageLists : lists) {
+                            found.addAll(storageLists);
+                        }
+                        for (ArrayList<File> searched : storageDirectories) {
+                            directories.addAll(searched);
+                        }
+                        listener.onFinished(merge(results), found,
+                                directories);
+                    }
+                }
+            });
+        }
+        /** Threads end when all storages are scanned. */
+        executor.shutdown();
+    }
+
+    /**
+     * Stop scan, lists that are being read are finished.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Find lists on all storages mounted in directory on calling thread,
+     * lists are not read.
+     *
+     * @param lists
+     *        Receives lists found, in storage order.
+     * @param directories
+     *        Receives directories that were searched, media directory first.
+     */
+    public void findLists(File mediaPath, List<File> lists,
+            List<File> directories) {
+        directories.add(mediaPath);
+        File[] storages = mediaPath.listFiles();
+        if (storages == null) {
+            return;
+        }
+        for (File storage : storages) {
+            scanDirectory(storage, 0, null, lists, directories, null);
+        }
+    }
+
+    /**
+     * Search directory for lists.
+     *
+     * @param services
+     *        Receives services of lists found, null if lists are not read.
+     * @param progress
+     *        Counters to update, null if progress is not reported.
+     */
+    private void scanDirectory(File directory, int depth,
+            ArrayList<IPService> services, List<File> lists,
+            List<File> directories, Progress progress) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        directories.add(directory);
+        if (progress != null) {
+            progress.mDirectoryCount.incrementAndGet();
+            progress.report(false);
+        }
+        for (File file : files) {
+            if (mCancelled) {
+                return;
+            }
+            if (file.isDirectory()) {
+                if (depth < mMaxDepth && !file.isHidden()) {
+                    scanDirectory(file, depth + 1, services, lists,
+                            directories, progress);
+                }
+            } else if (isChannelList(file)) {
+                lists.add(file);
+                if (progress != null) {
+                    progress.mListCount.incrementAndGet();
+                    progress.report(false);
+                }
+                if (services != null) {
+                    readList(file, services);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse list and add its services.
+     */
+    static void readList(final File file,
+            final ArrayList<IPService> services) {
+        try {
+            PlaylistParser.parse(file, new PlaylistParser.Listener() {
+                @Override
+                public void onService(IPService service) {
+                    services.add(service);
+                }
+
+                @Override
+                public void onMalformedLine(int lineNumber, String line,
+                        String reason) {
+                    Log.w(TAG, file + ":" + lineNumber + " " + reason + ": "
+                            + line);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isChannelList(File file) {
+        String name = file.getName();
+        if (name.equalsIgnoreCase(mListFileName)) {
+            return true;
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot == -1) {
+            return false;
+        }
+        String extension = name.substring(dot + 1);
+        return extension.equalsIgnoreCase("m3u")
+                || extension.equalsIgnoreCase("m3u8");
+    }
+
+    /**
+     * Merge services of all storages, first service with an URL is kept.
+     */
+    static List<IPService> merge(List<ArrayList<IPService>> results) {
+        LinkedHashMap<String, IPService> servicesByUrl = new LinkedHashMap<String, IPService>();
+        for (ArrayList<IPService> services : results) {
+            for (IPService service : services) {
+                if (!servicesByUrl.containsKey(service.getUrl())) {
+                    servicesByUrl.put(service.getUrl(), service);
+                }
+            }
+        }
+        return new ArrayList<IPService>(servicesByUrl.values());
+    }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.iwedia.exampleip.dtv.NamedThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps HLS playlists of channels the user is likely to watch. Master
+ * playlist is resolved to media playlist of variant that fits measured
+ * throughput, so middleware can skip the master playlist round trip. Media
+ * playlists of live streams are valid for one target duration, master
+ * playlists for {@link #MASTER_TTL_MILLIS}.
+ */
+public class HlsManifestCache {
+    private static final String TAG = "HlsManifestCache";
+    /** Time for which master playlist is valid. */
+    public static final long MASTER_TTL_MILLIS = 5 * 60 * 1000;
+    /** Time for which media playlist without target duration is valid. */
+    private static final long DEFAULT_MEDIA_TTL_MILLIS = 6000;
+    private static final int TIMEOUT_MILLIS = 3000;
+    private static final int THREAD_COUNT = 2;
+    /** Part of measured throughput that variant bandwidth may use. */
+    private static final float BANDWIDTH_FRACTION = 0.8f;
+    /** Bandwidth assumed for variant selection until first sample. */
+    private static final long DEFAULT_BANDWIDTH = 1500000;
+    /** Part of segment that is downloaded for throughput sample. */
+    private static final int SAMPLE_BYTES = 256 * 1024;
+    /** Smallest segment download that is used as throughput sample. */
+    private static final int MIN_SAMPLE_BYTES = 16 * 1024;
+    /** Minimum time between two throughput samples. */
+    private static final long SAMPLE_INTERVAL_MILLIS = 60 * 1000;
+    /** Weight of new throughput sample in moving average. */
+    private static final float THROUGHPUT_WEIGHT = 0.3f;
+    private static final String HEADER = "#EXTM3U";
+    private static final String STREAM_INF = "#EXT-X-STREAM-INF:";
+    private static final String TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+    private static final String END_LIST = "#EXT-X-ENDLIST";
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(
+            THREAD_COUNT, new NamedThreadFactory("HlsPrefetch"));
+    /** Fetched playlists by URL. */
+    private final HashMap<String, Playlist> mPlaylists = new HashMap<String, Playlist>();
+    /** URLs that are being fetched. */
+    private final HashSet<String> mPending = new HashSet<String>();
+    /** Moving average of download throughput, 0 if nothing is measured. */
+    private long mThroughputBitsPerSecond = 0;
+    /** Time of last throughput sample, 0 if none was taken. */
+    private long mLastSampleTime = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    /** Resolves of master playlist to media playlist. */
+    private long mResolvedCount = 0;
+
+    /**
+     * Variant stream of master playlist.
+     */
+    private static class Variant {
+        final long mBandwidth;
+        final String mUrl;
+
+        Variant(long bandwidth, String url) {
+            mBandwidth = bandwidth;
+            mUrl = url;
+        }
+    }
+
+    /**
+     * Parsed master or media playlist.
+     */
+    private static class Playlist {
+        /** Variants sorted by bandwidth, empty for media playlist. */
+        final ArrayList<Variant> mVariants;
+        /** Newest segment of media playlist, null for master playlist. */
+        final String mSegmentUrl;
+        final long mExpiryTime;
+
+        Playlist(ArrayList<Variant> variants, String segmentUrl,
+                long expiryTime) {
+            mVariants = variants;
+            mSegmentUrl = segmentUrl;
+            mExpiryTime = expiryTime;
+        }
+
+        boolean isMaster() {
+            return !mVariants.isEmpty();
+        }
+    }
+
+    /**
+     * Check if URL points to HLS playlist.
+     */
+    public static boolean isHls(String url) {
+        if (url == null) {
+            return false;
+        }
+        String lower = url.trim().toLowerCase(Locale.US);
+        int query = lower.indexOf('?');
+        if (query != -1) {
+            lower = lower.substring(0, query);
+        }
+        return (lower.startsWith("http://") || lower.startsWith("https://"))
+                && lower.endsWith(".m3u8");
+    }
+
+    /**
+     * Get URL that should be given to the player. Cached master playlist is
+     * replaced with media playlist of best variant for measured throughput,
+     * or of a conservative variant until first sample is taken. Playlists
+     * that are not cached are fetched in background and URL is returned
+     * unchanged.
+     */
+    public String resolve(String url) {
+        if (!isHls(url)) {
+            return url;
+        }
+        Playlist master = getValid(url);
+        if (master == null) {
+            synchronized (this) {
+                mMissCount++;
+            }
+            prefetch(url);
+            return url;
+        }
+        if (!master.isMaster()) {
+            synchronized (this) {
+                mHitCount++;
+            }
+            return url;
+        }
+        Variant variant = selectVariant(master.mVariants);
+        synchronized (this) {
+            mHitCount++;
+            mResolvedCount++;
+        }
+        /** Media playlist is kept warm for next zap to this channel. */
+        prefetch(variant.mUrl);
+        return variant.mUrl;
+    }
+
+    /**
+     * Fetch playlist in background if it is not cached. Media playlist of
+     * best variant is fetched after master playlist, and newest segment of
+     * media playlist is sampled for throughput when sample is due.
+     */
+    public void prefetch(final String url) {
+        if (!isHls(url)) {
+            return;
+        }
+        synchronized (this) {
+            if (getValid(url) != null || !mPending.add(url)) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Playlist playlist = null;
+                try {
+                    playlist = fetch(url);
+                } catch (IOException e) {
+                    Log.d(TAG, "Fetch of " + url + " failed: " + e);
+                }
+                synchronized (HlsManifestCache.this) {
+                    mPending.remove(url);
+                    if (playlist != null) {
+                        mPlaylists.put(url, playlist);
+                    }
+                }
+                if (playlist == null) {
+                    return;
+                }
+                if (playlist.isMaster()) {
+                    prefetch(selectVariant(playlist.mVariants).mUrl);
+                } else if (playlist.mSegmentUrl != null && isSampleDue()) {
+                    try {
+                        sampleThroughput(playlist.mSegmentUrl);
+                    } catch (IOException e) {
+                        Log.d(TAG, "Sample of " + playlist.mSegmentUrl
+                                + " failed: " + e);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized Playlist getValid(String url) {
+        Playlist playlist = mPlaylists.get(url);
+        if (playlist != null
+                && SystemClock.elapsedRealtime() >= playlist.mExpiryTime) {
+            mPlaylists.remove(url);
+            return null;
+        }
+        return playlist;
+    }
+
+    /**
+     * Download and parse playlist.
+     */
+    private Playlist fetch(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url)
+                .openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        try {
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                throw new IOException("HTTP " + code);
+            }
+            /** Final URL after redirects is base for relative URIs. */
+            URI base = URI.create(connection.getURL().toString());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    connection.getInputStream(), "UTF-8"));
+            return parse(base, reader);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Check if throughput sample should be taken now and mark it as taken.
+     */
+    private synchronized boolean isSampleDue() {
+        long now = SystemClock.elapsedRealtime();
+        if (mLastSampleTime != 0
+                && now - mLastSampleTime < SAMPLE_INTERVAL_MILLIS) {
+            return false;
+        }
+        mLastSampleTime = now;
+        return true;
+    }
+
+    /**
+     * Download start of segment and add it to throughput average. Clock is
+     * started when first bytes arrive, so connection setup and server
+     * response time do not lower the sample.
+     */
+    private void sampleThroughput(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url)
+                .openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Range", "bytes=0-"
+                + (SAMPLE_BYTES - 1));
+        try {
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                throw new IOException("HTTP " + code);
+            }
+            InputStream input = connection.getInputStream();
+            byte[] buffer = new byte[8192];
+            if (input.read(buffer) <= 0) {
+                return;
+            }
+            long start = SystemClock.elapsedRealtime();
+            long bytes = 0;
+            int count;
+            /** Server that ignores range is cut off after sample size. */
+            while (bytes < SAMPLE_BYTES && (count = input.read(buffer)) != -1) {
+                bytes += count;
+            }
+            if (bytes >= MIN_SAMPLE_BYTES) {
+                recordThroughput(bytes, SystemClock.elapsedRealtime() - start);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Playlist parse(URI base, BufferedReader reader)
+            throws IOException {
+        String line = reader.readLine();
+        if (line == null || !line.trim().startsWith(HEADER)) {
+            throw new IOException("Not a HLS playlist");
+        }
+        ArrayList<Variant> variants = new ArrayList<Variant>();
+        long targetDurationMillis = -1;
+        boolean ended = false;
+        long pendingBandwidth = -1;
+        String segmentUrl = null;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith(STREAM_INF)) {
+                pendingBandwidth = parseBandwidth(line
+                        .substring(STREAM_INF.length()));
+            } else if (line.startsWith(TARGET_DURATION)) {
+                try {
+                    targetDurationMillis = Long.parseLong(line.substring(
+                            TARGET_DURATION.length()).trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    targetDurationMillis = -1;
+                }
+            } else if (line.startsWith(END_LIST)) {
+                ended = true;
+            } else if (pendingBandwidth != -1 && line.length() != 0
+                    && !line.startsWith("#")) {
+                variants.add(new Variant(pendingBandwidth, base.resolve(line)
+                        .toString()));
+                pendingBandwidth = -1;
+            } else if (line.length() != 0 && !line.startsWith("#")) {
+                segmentUrl = base.resolve(line).toString();
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!variants.isEmpty()) {
+            sortByBandwidth(variants);
+            return new Playlist(variants, null, now + MASTER_TTL_MILLIS);
+        }
+        long ttl;
+        if (ended) {
+            ttl = MASTER_TTL_MILLIS;
+        } else if (targetDurationMillis > 0) {
+            ttl = targetDurationMillis;
+        } else {
+            ttl = DEFAULT_MEDIA_TTL_MILLIS;
+        }
+        return new Playlist(variants, segmentUrl, now + ttl);
+    }
+
+    /**
+     * Read BANDWIDTH attribute, 0 if it is missing.
+     */
+    private static long parseBandwidth(String attributes) {
+        for (String attribute : attributes.split(",")) {
+            int equals = attribute.indexOf('=');
+            if (equals != -1
+                    && attribute.substring(0, equals).trim()
+                            .equals("BANDWIDTH")) {
+                try {
+                    return Long.parseLong(attribute.substring(equals + 1)
+                            .trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static void sortByBandwidth(ArrayList<Variant> variants) {
+        for (int i = 1; i < variants.size(); i++) {
+            Variant variant = variants.get(i);
+            int j = i - 1;
+            while (j >= 0 && variants.get(j).mBandwidth > variant.mBandwidth) {
+                variants.set(j + 1, variants.get(j));
+                j--;
+            }
+            variants.set(j + 1, variant);
+        }
+    }
+
+    /**
+     * Pick variant with highest bandwidth that fits measured throughput,
+     * or {@link #DEFAULT_BANDWIDTH} if nothing is measured yet, lowest one if
+     * none fits.
+     */
+    private Variant selectVariant(ArrayList<Variant> variants) {
+        long throughput = getThroughputBitsPerSecond();
+        long available;
+        if (throughput == 0) {
+            available = DEFAULT_BANDWIDTH;
+        } else {
+            available = (long) (throughput * BANDWIDTH_FRACTION);
+        }
+        Variant selected = variants.get(0);
+        for (Variant variant : variants) {
+            if (variant.mBandwidth <= available) {
+                selected = variant;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Add download to throughput average.
+     *
+     * @param bytes
+     *        Number of bytes downloaded.
+     * @param millis
+     *        Time download took.
+     */
+    private synchronized void recordThroughput(long bytes, long millis) {
+        if (bytes <= 0) {
+            return;
+        }
+        long sample = bytes * 8 * 1000 / Math.max(millis, 1);
+        if (mThroughputBitsPerSecond == 0) {
+            mThroughputBitsPerSecond = sample;
+        } else {
+            mThroughputBitsPerSecond += (long) ((sample - mThroughputBitsPerSecond) * THROUGHPUT_WEIGHT);
+        }
+    }
+
+    public synchronized long getThroughputBitsPerSecond() {
+        return mThroughputBitsPerSecond;
+    }
+
+    /**
+     * Forget playlist and playlists of its variants, so player is given the
+     * URL unchanged on next resolve.
+     */
+    public synchronized void invalidate(String url) {
+        Playlist playlist = mPlaylists.remove(url);
+        if (playlist == null) {
+            return;
+        }
+        for (Variant variant : playlist.mVariants) {
+            mPlaylists.remove(variant.mUrl);
+        }
+    }
+
+    /**
+     * Forget all playlists.
+     */
+    public synchronized void clear() {
+        mPlaylists.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HLS playlists: cached=" + mPlaylists.size() + " hits="
+                + mHitCount + " misses=" + mMissCount + " resolved="
+                + mResolvedCount + " throughput="
+                + mThroughputBitsPerSecond / 1000 + "kbps";
+    }
+}
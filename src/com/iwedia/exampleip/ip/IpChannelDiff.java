@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Difference between two IP channel lists. Services are matched by primary
+ * URL, services that share an URL are matched in order of appearance.
+ * Matched service with other name or other alternative URLs is changed,
+ * unmatched services are added or removed.
+ */
+public class IpChannelDiff {
+    private final int mAddedCount;
+    private final int mRemovedCount;
+    private final int mChangedCount;
+    private final int mMovedCount;
+    /** Index in new list by index in old list, -1 for removed services. */
+    private final int[] mNewIndexes;
+
+    private IpChannelDiff(int addedCount, int removedCount, int changedCount,
+            int movedCount, int[] newIndexes) {
+        mAddedCount = addedCount;
+        mRemovedCount = removedCount;
+        mChangedCount = changedCount;
+        mMovedCount = movedCount;
+        mNewIndexes = newIndexes;
+    }
+
+    /**
+     * Compare lists.
+     *
+     * @param oldServices
+     *        Current list.
+     * @param newServices
+     *        List that replaces it.
+     */
+    public static IpChannelDiff compute(List<IPService> oldServices,
+            List<IPService> newServices) {
+        /** Old indexes by key, key is URL with number of its occurrence. */
+        HashMap<String, Integer> oldIndexes = new HashMap<String, Integer>(
+                oldServices.size() * 2);
+        HashMap<String, Integer> occurrences = new HashMap<String, Integer>();
+        for (int i = 0; i < oldServices.size(); i++) {
+            oldIndexes.put(key(oldServices.get(i).getUrl(), occurrences), i);
+        }
+        occurrences.clear();
+        int[] newIndexes = new int[oldServices.size()];
+        for (int i = 0; i < newIndexes.length; i++) {
+            newIndexes[i] = -1;
+        }
+        int added = 0;
+        int changed = 0;
+        int moved = 0;
+        for (int i = 0; i < newServices.size(); i++) {
+            IPService service = newServices.get(i);
+            Integer oldIndex = oldIndexes.get(key(service.getUrl(),
+                    occurrences));
+            if (oldIndex == null) {
+                added++;
+                continue;
+            }
+            newIndexes[oldIndex] = i;
+            IPService oldService = oldServices.get(oldIndex);
+            if (!service.getName().equals(oldService.getName())
+                    || !service.getUrls().equals(oldService.getUrls())) {
+                changed++;
+            }
+            if (oldIndex != i) {
+                moved++;
+            }
+        }
+        int removed = oldServices.size() - (newServices.size() - added);
+        return new IpChannelDiff(added, removed, changed, moved, newIndexes);
+    }
+
+    private static String key(String url, HashMap<String, Integer> occurrences) {
+        Integer count = occurrences.get(url);
+        int occurrence = count == null ? 0 : count;
+        occurrences.put(url, occurrence + 1);
+        return occurrence == 0 ? url : url + '\n' + occurrence;
+    }
+
+    /**
+     * Check if lists are equal.
+     */
+    public boolean isEmpty() {
+        return mAddedCount == 0 && mRemovedCount == 0 && mChangedCount == 0
+                && mMovedCount == 0;
+    }
+
+    public int getAddedCount() {
+        return mAddedCount;
+    }
+
+    public int getRemovedCount() {
+        return mRemovedCount;
+    }
+
+    public int getChangedCount() {
+        return mChangedCount;
+    }
+
+    /**
+     * Get number of kept services that are at other index in new list.
+     */
+    public int getMovedCount() {
+        return mMovedCount;
+    }
+
+    /**
+     * Get index of service in new list.
+     *
+     * @param oldIndex
+     *        Index in old list.
+     * @return Index in new list, or -1 if service is removed.
+     */
+    public int getNewIndex(int oldIndex) {
+        if (oldIndex < 0 || oldIndex >= mNewIndexes.length) {
+            return -1;
+        }
+        return mNewIndexes[oldIndex];
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + mAddedCount + " removed=" + mRemovedCount
+                + " changed=" + mChangedCount + " moved=" + mMovedCount;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.util.Log;
+
+import com.iwedia.exampleip.dtv.BinaryFile;
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compiled form of IP channel list. Parsed services are written to binary
+ * file that keeps size and modification time of source file, a string table
+ * with every distinct string stored once and its offset table, and a
+ * service table with name index, URL count and URL indexes of every
+ * service. While source file is not changed, list
+ * is read from compiled file through memory mapping instead of parsing text.
+ */
+public class IpChannelListCache {
+    private static final String TAG = "IpChannelListCache";
+    private static final int MAGIC = 0x49504c43;
+    /** Version 2 stores alternative URLs. */
+    private static final int VERSION = 2;
+
+    private IpChannelListCache() {
+    }
+
+    /**
+     * Load IP services of source file.
+     *
+     * @param source
+     *        IP channel list in text form.
+     * @param compiled
+     *        Compiled list, written again if it does not match source.
+     * @return Services, empty list if source can not be read.
+     */
+    public static ArrayList<IPService> load(File source, File compiled) {
+        ArrayList<IPService> services = read(compiled, source.length(),
+                source.lastModified());
+        if (services != null) {
+            return services;
+        }
+        final ArrayList<IPService> parsed = new ArrayList<IPService>();
+        try {
+            PlaylistParser.parse(source, new PlaylistParser.Listener() {
+                @Override
+                public void onService(IPService service) {
+                    parsed.add(service);
+                }
+
+                @Override
+                public void onMalformedLine(int lineNumber, String line,
+                        String reason) {
+                    Log.w(TAG, lineNumber + " " + reason + ": " + line);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return parsed;
+        }
+        write(compiled, source.length(), source.lastModified(), parsed);
+        return parsed;
+    }
+
+    /**
+     * Read compiled list.
+     *
+     * @return Services or null if file does not exist or belongs to other
+     *         version of source.
+     */
+    private static ArrayList<IPService> read(final File compiled,
+            final long sourceLength, final long sourceModified) {
+        return BinaryFile.read(compiled,
+                new BinaryFile.Reader<ArrayList<IPService>>() {
+                    @Override
+                    public ArrayList<IPService> read(MappedByteBuffer buffer)
+                            throws IOException {
+                        if (buffer.getInt() != MAGIC
+                                || buffer.getInt() != VERSION
+                                || buffer.getLong() != sourceLength
+                                || buffer.getLong() != sourceModified) {
+                            return null;
+                        }
+                        return readServices(compiled, buffer);
+                    }
+                });
+    }
+
+    private static ArrayList<IPService> readServices(File compiled,
+            MappedByteBuffer buffer) throws IOException {
+        int serviceCount = buffer.getInt();
+        int stringCount = buffer.getInt();
+        int[] offsets = new int[stringCount + 1];
+        for (int i = 0; i <= stringCount; i++) {
+            offsets[i] = buffer.getInt();
+        }
+        int stringsStart = buffer.position();
+        byte[] bytes = new byte[offsets[stringCount]];
+        buffer.get(bytes);
+        String[] strings = new String[stringCount];
+        for (int i = 0; i < stringCount; i++) {
+            strings[i] = new String(bytes, offsets[i], offsets[i + 1]
+                    - offsets[i], "UTF-8");
+        }
+        ArrayList<IPService> services = new ArrayList<IPService>(serviceCount);
+        buffer.position(stringsStart + bytes.length);
+        for (int i = 0; i < serviceCount; i++) {
+            String name = strings[buffer.getInt()];
+            int urlCount = buffer.getInt();
+            if (urlCount <= 0 || urlCount > buffer.remaining() / 4) {
+                Log.w(TAG, "Compiled list is corrupted " + compiled);
+                return null;
+            }
+            if (urlCount == 1) {
+                services.add(new IPService(name, strings[buffer.getInt()]));
+                continue;
+            }
+            ArrayList<String> urls = new ArrayList<String>(urlCount);
+            for (int j = 0; j < urlCount; j++) {
+                urls.add(strings[buffer.getInt()]);
+            }
+            services.add(new IPService(name, urls));
+        }
+        return services;
+    }
+
+    /**
+     * Write compiled list. File is replaced only when it is written
+     * completely.
+     */
+    private static void write(File compiled, final long sourceLength,
+            final long sourceModified, final List<IPService> services) {
+        final ArrayList<byte[]> strings = new ArrayList<byte[]>();
+        HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        int tableSize = 0;
+        for (IPService service : services) {
+            tableSize += 2 + service.getUrls().size();
+        }
+        final int[] serviceTable = new int[tableSize];
+        try {
+            int position = 0;
+            for (IPService service : services) {
+                serviceTable[position++] = getStringIndex(service.getName(),
+                        strings, stringIndexes);
+                serviceTable[position++] = service.getUrls().size();
+                for (String url : service.getUrls()) {
+                    serviceTable[position++] = getStringIndex(url, strings,
+                            stringIndexes);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        BinaryFile.write(compiled, new BinaryFile.Writer() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceModified);
+                out.writeInt(services.size());
+                out.writeInt(strings.size());
+                int offset = 0;
+                for (byte[] bytes : strings) {
+                    out.writeInt(offset);
+                    offset += bytes.length;
+                }
+                out.writeInt(offset);
+                for (byte[] bytes : strings) {
+                    out.write(bytes);
+                }
+                for (int value : serviceTable) {
+                    out.writeInt(value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get index of string in string table, string is added if it is not
+     * there yet.
+     */
+    private static int getStringIndex(String value, ArrayList<byte[]> strings,
+            HashMap<String, Integer> stringIndexes) throws IOException {
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            stringIndexes.put(value, index);
+            strings.add(value.getBytes("UTF-8"));
+        }
+        return index;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Watches IP channel list files for changes. Directories of the files are
+ * observed, so lists that are replaced by rename or deleted and created
+ * again are noticed too. Searched directories are observed for new entries,
+ * so lists and directories added after the search are noticed. Events that
+ * come close together are reported once, after {@link #SETTLE_MILLIS}
+ * without new events.
+ */
+public class IpChannelListWatcher {
+    private static final String TAG = "IpChannelListWatcher";
+    /** Time without events after which change is reported. */
+    public static final long SETTLE_MILLIS = 500;
+    private static final int EVENTS = FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM
+            | FileObserver.DELETE;
+    /** Events of searched directory that report any entry. */
+    private static final int ENTRY_EVENTS = FileObserver.CREATE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM
+            | FileObserver.DELETE;
+    private final Listener mListener;
+    private final Handler mHandler;
+    /** Observers must be referenced or they stop when collected. */
+    private final ArrayList<FileObserver> mObservers = new ArrayList<FileObserver>();
+    private final Runnable mNotify = new Runnable() {
+        @Override
+        public void run() {
+            mListener.onListsChanged();
+        }
+    };
+
+    /**
+     * Receiver of changes, called on watcher thread.
+     */
+    public interface Listener {
+        public void onListsChanged();
+    }
+
+    public IpChannelListWatcher(Listener listener) {
+        mListener = listener;
+        HandlerThread thread = new HandlerThread("IpListWatcher");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Watch files and directories instead of those watched before.
+     *
+     * @param files
+     *        List files whose changes are reported.
+     * @param directories
+     *        Searched directories whose new and removed entries are
+     *        reported.
+     */
+    public synchronized void watch(List<File> files, List<File> directories) {
+        stopObservers();
+        HashMap<String, HashSet<String>> namesByDirectory = new HashMap<String, HashSet<String>>();
+        for (File file : files) {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (directory == null) {
+                continue;
+            }
+            HashSet<String> names = namesByDirectory.get(directory.getPath());
+            if (names == null) {
+                names = new HashSet<String>();
+                namesByDirectory.put(directory.getPath(), names);
+            }
+            names.add(file.getName());
+        }
+        HashSet<String> searched = new HashSet<String>();
+        for (File directory : directories) {
+            String path = directory.getAbsolutePath();
+            searched.add(path);
+            if (!namesByDirectory.containsKey(path)) {
+                namesByDirectory.put(path, new HashSet<String>());
+            }
+        }
+        /** One observer per directory, observers of same path share watch. */
+        for (String directory : namesByDirectory.keySet()) {
+            final HashSet<String> names = namesByDirectory.get(directory);
+            final boolean search = searched.contains(directory);
+            FileObserver observer = new FileObserver(directory, search ? EVENTS
+                    | ENTRY_EVENTS : EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (path != null
+                            && (names.contains(path) || search
+                                    && (event & ENTRY_EVENTS) != 0)) {
+                        changed();
+                    }
+                }
+            };
+            observer.startWatching();
+            mObservers.add(observer);
+        }
+        Log.d(TAG, "Watching " + files.size() + " lists and "
+                + searched.size() + " searched directories in "
+                + namesByDirectory.size() + " directories");
+    }
+
+    /**
+     * Called on observer thread.
+     */
+    private void changed() {
+        mHandler.removeCallbacks(mNotify);
+        mHandler.postDelayed(mNotify, SETTLE_MILLIS);
+    }
+
+    /**
+     * Stop watching all files.
+     */
+    public synchronized void stop() {
+        stopObservers();
+        mHandler.removeCallbacks(mNotify);
+    }
+
+    private void stopObservers() {
+        for (FileObserver observer : mObservers) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable list of IP channels. Every published list gets a higher
+ * generation, so holders of data derived from a list can check if it is
+ * still current by comparing one number.
+ */
+public class IpChannelSnapshot {
+    /** List with no channels, generation 0. */
+    public static final IpChannelSnapshot EMPTY = new IpChannelSnapshot(
+            Collections.<IPService> emptyList(), 0);
+    private final List<IPService> mServices;
+    private final long mGeneration;
+
+    private IpChannelSnapshot(List<IPService> services, long generation) {
+        mServices = services;
+        mGeneration = generation;
+    }
+
+    /**
+     * Publish new list in reference. Readers of reference see either old or
+     * new list, never a list that is being built.
+     *
+     * @param reference
+     *        Reference holding current snapshot.
+     * @param services
+     *        New services, null for empty list. List is copied.
+     * @return Published snapshot.
+     */
+    public static IpChannelSnapshot publish(
+            AtomicReference<IpChannelSnapshot> reference,
+            List<IPService> services) {
+        List<IPService> copy = services == null || services.isEmpty() ? Collections
+                .<IPService> emptyList() : Collections
+                .unmodifiableList(new ArrayList<IPService>(services));
+        while (true) {
+            IpChannelSnapshot current = reference.get();
+            IpChannelSnapshot next = new IpChannelSnapshot(copy,
+                    current.mGeneration + 1);
+            if (reference.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Get unmodifiable list of services.
+     */
+    public List<IPService> getServices() {
+        return mServices;
+    }
+
+    public IPService get(int index) {
+        return mServices.get(index);
+    }
+
+    public int size() {
+        return mServices.size();
+    }
+
+    public long getGeneration() {
+        return mGeneration;
+    }
+}
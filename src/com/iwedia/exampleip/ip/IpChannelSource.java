@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Files IP channel list is read from.
+ */
+public interface IpChannelSource {
+    /**
+     * Get files that are read, list is read again when one of them changes.
+     */
+    public List<File> getFiles();
+
+    /**
+     * Get directories in which new lists can appear, list is read again when
+     * an entry is added to or removed from one of them. Subdirectories are
+     * not watched unless they are included.
+     */
+    public List<File> getDirectories();
+
+    /**
+     * Read services from files.
+     */
+    public List<IPService> load();
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches stream of IP channel that is played. If stream is not received
+ * within {@link #CHECK_INTERVAL_MILLIS} after zap, or stops later, channel
+ * is zapped again. Service with several sources is switched to next source,
+ * service with one source is retried with exponential backoff. Recovery is
+ * abandoned after {@link #MAX_ATTEMPTS} failed attempts in a row.
+ */
+public class IpPlaybackWatchdog {
+    private static final String TAG = "IpPlaybackWatchdog";
+    /** Time in which stream must arrive, also period of checks. */
+    public static final long CHECK_INTERVAL_MILLIS = 1000;
+    /** Delay before first retry, doubled for each next one. */
+    public static final long FIRST_RETRY_DELAY_MILLIS = 250;
+    public static final long MAX_RETRY_DELAY_MILLIS = 8000;
+    public static final int MAX_ATTEMPTS = 6;
+
+    /**
+     * Checks and zaps stream, called on watchdog thread.
+     */
+    public interface Player {
+        /**
+         * Check if stream from URL is received. Call may block.
+         */
+        public boolean isReceiving(String url);
+
+        /**
+         * Zap channel to URL again.
+         */
+        public void retry(int channelNumber, String url);
+
+        /**
+         * Channel could not be recovered.
+         */
+        public void gaveUp(int channelNumber);
+    }
+
+    private final Player mPlayer;
+    private final SourceRacer mSourceRacer;
+    private final Handler mHandler;
+    /** Watched channel, guarded by this. */
+    private int mChannelNumber = -1;
+    private IPService mService = null;
+    private String mUrl = null;
+    /** Incremented for each watched zap, stale checks are dropped. */
+    private long mGeneration = 0;
+    /** Failed attempts in a row. */
+    private int mAttempt = 0;
+    /** Failures by primary URL of service. */
+    private final HashMap<String, Integer> mFailureCounts = new HashMap<String, Integer>();
+    private final AtomicLong mRetryCount = new AtomicLong();
+    private final AtomicLong mFailoverCount = new AtomicLong();
+    private final AtomicLong mRecoveredCount = new AtomicLong();
+    private final AtomicLong mGiveUpCount = new AtomicLong();
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            retry();
+        }
+    };
+
+    /**
+     * @param sourceRacer
+     *        Racer that orders sources and records their failures.
+     */
+    public IpPlaybackWatchdog(SourceRacer sourceRacer, Player player) {
+        mSourceRacer = sourceRacer;
+        mPlayer = player;
+        HandlerThread thread = new HandlerThread("IpWatchdog");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * IP channel is zapped, start watching its stream.
+     *
+     * @param url
+     *        Source of service that is played.
+     */
+    public synchronized void watch(int channelNumber, IPService service,
+            String url) {
+        cancel();
+        mChannelNumber = channelNumber;
+        mService = service;
+        mUrl = url;
+        mHandler.postDelayed(mCheck, CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Stop watching, called when other channel is zapped or playback stops.
+     */
+    public synchronized void stop() {
+        cancel();
+        mChannelNumber = -1;
+        mService = null;
+        mUrl = null;
+    }
+
+    /**
+     * Follow watched channel to its new number, called when channel numbers
+     * change. Watched channel that is removed keeps its number.
+     *
+     * @param newNumbers
+     *        New number by old number, -1 for removed channels.
+     */
+    public synchronized void remap(SparseIntArray newNumbers) {
+        int channelNumber = newNumbers.get(mChannelNumber, mChannelNumber);
+        if (channelNumber != -1) {
+            mChannelNumber = channelNumber;
+        }
+    }
+
+    private void cancel() {
+        mGeneration++;
+        mAttempt = 0;
+        mHandler.removeCallbacks(mCheck);
+        mHandler.removeCallbacks(mRetry);
+    }
+
+    private void check() {
+        long generation;
+        String url;
+        synchronized (this) {
+            if (mService == null) {
+                return;
+            }
+            generation = mGeneration;
+            url = mUrl;
+        }
+        /** Check can block, so it runs without lock. */
+        boolean receiving = mPlayer.isReceiving(url);
+        int channelNumber;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            if (receiving) {
+                if (mAttempt > 0) {
+                    mRecoveredCount.incrementAndGet();
+                    Log.d(TAG, "Channel " + mChannelNumber + " recovered on "
+                            + url + " after " + mAttempt + " attempts");
+                }
+                mAttempt = 0;
+                mHandler.postDelayed(mCheck, CHECK_INTERVAL_MILLIS);
+                return;
+            }
+            String key = mService.getUrl();
+            Integer count = mFailureCounts.get(key);
+            mFailureCounts.put(key, count == null ? 1 : count + 1);
+            mSourceRacer.recordFailure(url);
+            mAttempt++;
+            if (mAttempt <= MAX_ATTEMPTS) {
+                mHandler.postDelayed(mRetry, getRetryDelay(mAttempt));
+                return;
+            }
+            Log.w(TAG, "Giving up on channel " + mChannelNumber);
+            mGiveUpCount.incrementAndGet();
+            channelNumber = mChannelNumber;
+            stop();
+        }
+        mPlayer.gaveUp(channelNumber);
+    }
+
+    private void retry() {
+        int channelNumber;
+        String url;
+        synchronized (this) {
+            if (mService == null) {
+                return;
+            }
+            channelNumber = mChannelNumber;
+            url = getNextSource(mService.getUrls(), mUrl);
+            if (!url.equals(mUrl)) {
+                mFailoverCount.incrementAndGet();
+            }
+            mRetryCount.incrementAndGet();
+            Log.d(TAG, "Channel " + channelNumber + " attempt " + mAttempt
+                    + " on " + url);
+            mUrl = url;
+            mHandler.postDelayed(mCheck, CHECK_INTERVAL_MILLIS);
+        }
+        mPlayer.retry(channelNumber, url);
+    }
+
+    /**
+     * Get delay before attempt, doubled from
+     * {@link #FIRST_RETRY_DELAY_MILLIS} up to {@link #MAX_RETRY_DELAY_MILLIS}.
+     */
+    static long getRetryDelay(int attempt) {
+        long delay = FIRST_RETRY_DELAY_MILLIS;
+        for (int i = 1; i < attempt && delay < MAX_RETRY_DELAY_MILLIS; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * Get best source other than the failed one, or failed one if service
+     * has no other.
+     */
+    private String getNextSource(List<String> urls, String failedUrl) {
+        for (String url : mSourceRacer.order(urls)) {
+            if (!url.equals(failedUrl)) {
+                return url;
+            }
+        }
+        return failedUrl;
+    }
+
+    /**
+     * Get number of failures of service since start.
+     */
+    public synchronized int getFailureCount(IPService service) {
+        Integer count = mFailureCounts.get(service.getUrl());
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Get failure counts by primary URL of service.
+     */
+    public synchronized HashMap<String, Integer> getFailureCounts() {
+        return new HashMap<String, Integer>(mFailureCounts);
+    }
+
+    @Override
+    public synchronized String toString() {
+        int failures = 0;
+        for (Integer count : mFailureCounts.values()) {
+            failures += count;
+        }
+        return "IP watchdog: "
+                + (mService == null ? "idle" : "channel " + mChannelNumber
+                        + " attempt " + mAttempt) + " failures=" + failures
+                + " services=" + mFailureCounts.size() + " retries="
+                + mRetryCount.get() + " failovers=" + mFailoverCount.get()
+                + " recovered=" + mRecoveredCount.get() + " gaveUp="
+                + mGiveUpCount.get();
+    }
+}
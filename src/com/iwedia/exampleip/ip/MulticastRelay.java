@@ -0,0 +1,664 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.iwedia.exampleip.dtv.NamedThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local relay for multicast IP channels. Relay stays joined to groups of
+ * current channel and channels the user is likely to switch to, and keeps
+ * last TS packets of every group in a ring buffer together with positions
+ * of random access points. Player gets a local HTTP URL and receives PAT,
+ * PMT and packets from last random access point, so it does not wait for
+ * IGMP join and next I-frame. Received packets are copied into direct
+ * buffers without any allocation.
+ */
+public class MulticastRelay {
+    private static final String TAG = "MulticastRelay";
+    public static final int TS_PACKET_SIZE = 188;
+    /** Packets kept per group, around 6 seconds of 4 Mbit/s stream. */
+    public static final int DEFAULT_BUFFER_PACKETS = 16384;
+    /** Groups joined at the same time. */
+    public static final int DEFAULT_MAX_GROUPS = 3;
+    static final byte TS_SYNC_BYTE = 0x47;
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int MAX_DATAGRAM_SIZE = 2048;
+    /** Random access points remembered per group. */
+    private static final int RAP_INDEX_SIZE = 64;
+    private static final int RECEIVE_TIMEOUT_MILLIS = 1000;
+    /** Packets sent to player in one write. */
+    private static final int SEND_CHUNK_PACKETS = 64;
+    private static final String LOCALHOST = "127.0.0.1";
+    private final int mBufferPackets;
+    private final int mMaxGroups;
+    /** Joined groups by "address:port". */
+    private final HashMap<String, Group> mGroups = new HashMap<String, Group>();
+    private final ExecutorService mExecutor = Executors
+            .newCachedThreadPool(new NamedThreadFactory("MulticastRelay"));
+    private final AtomicInteger mClientCount = new AtomicInteger();
+    private ServerSocket mServerSocket = null;
+    private volatile boolean mRunning = false;
+
+    /**
+     * Receives one group and keeps its packets.
+     */
+    private class Group implements Runnable {
+        final String mKey;
+        final InetAddress mAddress;
+        final int mPort;
+        final ByteBuffer mRing;
+        /** View used only by receiving thread. */
+        private final ByteBuffer mWriteView;
+        /** Number of packets written since join. */
+        volatile long mWritten = 0;
+        /** Elapsed realtime of last datagram, 0 before first one. */
+        volatile long mReceiveTime = 0;
+        /** Packet numbers of random access points, guarded by this. */
+        private final long[] mRaps = new long[RAP_INDEX_SIZE];
+        private int mRapCount = 0;
+        /** Latest PAT and PMT packets, guarded by this. */
+        private final byte[] mPat = new byte[TS_PACKET_SIZE];
+        private final byte[] mPmt = new byte[TS_PACKET_SIZE];
+        private boolean mHasPat = false;
+        private boolean mHasPmt = false;
+        private int mPmtPid = -1;
+        /** Video PID from PMT, or PCR PID if there is no video, or -1. */
+        private int mRapPid = -1;
+        volatile boolean mStopped = false;
+        private MulticastSocket mSocket = null;
+
+        Group(String key, InetAddress address, int port) {
+            mKey = key;
+            mAddress = address;
+            mPort = port;
+            mRing = ByteBuffer.allocateDirect(mBufferPackets * TS_PACKET_SIZE);
+            mWriteView = mRing.duplicate();
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                /** Bound to group, unicast to same port is not taken. */
+                MulticastSocket socket = new MulticastSocket(
+                        new InetSocketAddress(mAddress, mPort));
+                synchronized (this) {
+                    mSocket = socket;
+                }
+                socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+                socket.joinGroup(mAddress);
+                Log.d(TAG, "Joined " + mKey);
+                while (!mStopped) {
+                    packet.setLength(buffer.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    mReceiveTime = SystemClock.elapsedRealtime();
+                    int length = packet.getLength();
+                    int offset = getPayloadOffset(buffer, length);
+                    for (; offset + TS_PACKET_SIZE <= length; offset += TS_PACKET_SIZE) {
+                        if (buffer[offset] == TS_SYNC_BYTE) {
+                            write(buffer, offset);
+                        }
+                    }
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                if (!mStopped) {
+                    Log.e(TAG, "Receiving " + mKey + " failed", e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void write(byte[] buffer, int offset) {
+            long written = mWritten;
+            int pid = getPid(buffer, offset);
+            boolean unitStart = (buffer[offset + 1] & 0x40) != 0;
+            if (unitStart && (pid == 0 || pid == mPmtPid)) {
+                keepTable(buffer, offset, pid);
+            }
+            mWriteView.position((int) (written % mBufferPackets)
+                    * TS_PACKET_SIZE);
+            mWriteView.put(buffer, offset, TS_PACKET_SIZE);
+            if (pid == mRapPid && isRandomAccessPoint(buffer, offset)) {
+                synchronized (this) {
+                    mRaps[mRapCount % RAP_INDEX_SIZE] = written;
+                    mRapCount++;
+                }
+            }
+            /** Volatile write publishes packet to readers. */
+            mWritten = written + 1;
+        }
+
+        private synchronized void keepTable(byte[] buffer, int offset, int pid) {
+            if (pid == 0) {
+                System.arraycopy(buffer, offset, mPat, 0, TS_PACKET_SIZE);
+                mHasPat = true;
+                int pmtPid = getFirstPmtPid(buffer, offset);
+                if (pmtPid != mPmtPid) {
+                    mPmtPid = pmtPid;
+                    mRapPid = -1;
+                }
+            } else {
+                System.arraycopy(buffer, offset, mPmt, 0, TS_PACKET_SIZE);
+                mHasPmt = true;
+                mRapPid = getRapPid(buffer, offset);
+            }
+        }
+
+        /**
+         * Get packet number of latest random access point that is still in
+         * buffer.
+         *
+         * @return Packet number, or -1 if there is none.
+         */
+        synchronized long getLatestRap() {
+            if (mRapCount == 0) {
+                return -1;
+            }
+            long rap = mRaps[(mRapCount - 1) % RAP_INDEX_SIZE];
+            return mWritten - rap < mBufferPackets ? rap : -1;
+        }
+
+        /**
+         * Copy PAT and PMT to buffer.
+         *
+         * @return Number of bytes copied, 0 if tables are not received yet.
+         */
+        synchronized int copyTables(byte[] buffer) {
+            if (!mHasPat || !mHasPmt) {
+                return 0;
+            }
+            System.arraycopy(mPat, 0, buffer, 0, TS_PACKET_SIZE);
+            System.arraycopy(mPmt, 0, buffer, TS_PACKET_SIZE, TS_PACKET_SIZE);
+            return 2 * TS_PACKET_SIZE;
+        }
+
+        boolean isReady() {
+            synchronized (this) {
+                if (!mHasPat || !mHasPmt) {
+                    return false;
+                }
+            }
+            return getLatestRap() != -1;
+        }
+
+        void stop() {
+            mStopped = true;
+            close();
+        }
+
+        private synchronized void close() {
+            if (mSocket != null) {
+                try {
+                    mSocket.leaveGroup(mAddress);
+                } catch (IOException e) {
+                }
+                mSocket.close();
+                mSocket = null;
+            }
+            notifyAll();
+        }
+    }
+
+    public MulticastRelay() {
+        this(DEFAULT_BUFFER_PACKETS, DEFAULT_MAX_GROUPS);
+    }
+
+    /**
+     * @param bufferPackets
+     *        Number of TS packets kept per group.
+     * @param maxGroups
+     *        Number of groups joined at the same time.
+     */
+    public MulticastRelay(int bufferPackets, int maxGroups) {
+        mBufferPackets = bufferPackets;
+        mMaxGroups = maxGroups;
+    }
+
+    /**
+     * Open local HTTP server.
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mServerSocket = new ServerSocket(0, 4, InetAddress.getByName(LOCALHOST));
+        mRunning = true;
+        final ServerSocket serverSocket = mServerSocket;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        });
+    }
+
+    /**
+     * Close server, leave all groups and disconnect players.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mServerSocket = null;
+        }
+        for (Group group : mGroups.values()) {
+            group.stop();
+        }
+        mGroups.clear();
+    }
+
+    /**
+     * Stay joined to groups of given URLs and leave other groups. URLs that
+     * are not multicast are ignored.
+     *
+     * @param urls
+     *        URLs by priority, only first {@link #DEFAULT_MAX_GROUPS} groups
+     *        are joined.
+     */
+    public synchronized void setGroups(List<String> urls) {
+        if (!mRunning) {
+            return;
+        }
+        HashMap<String, InetAddress> wanted = new HashMap<String, InetAddress>();
+        HashMap<String, Integer> ports = new HashMap<String, Integer>();
+        for (String url : urls) {
+            if (wanted.size() >= mMaxGroups) {
+                break;
+            }
+            URI uri = parseMulticastUrl(url);
+            if (uri == null) {
+                continue;
+            }
+            try {
+                String key = getKey(uri);
+                InetAddress address = InetAddress.getByName(uri.getHost());
+                /** Unicast streams are left to the player. */
+                if (address.isMulticastAddress() && !wanted.containsKey(key)) {
+                    wanted.put(key, address);
+                    ports.put(key, uri.getPort());
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Bad group " + url + ": " + e);
+            }
+        }
+        Iterator<Map.Entry<String, Group>> iterator = mGroups.entrySet()
+                .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Group> entry = iterator.next();
+            if (!wanted.containsKey(entry.getKey())) {
+                entry.getValue().stop();
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<String, InetAddress> entry : wanted.entrySet()) {
+            String key = entry.getKey();
+            if (!mGroups.containsKey(key)) {
+                Group group = new Group(key, entry.getValue(), ports.get(key));
+                mGroups.put(key, group);
+                mExecutor.execute(group);
+            }
+        }
+    }
+
+    /**
+     * Get local URL for multicast URL.
+     *
+     * @return Local URL, or null if group is not joined or no random access
+     *         point is received yet.
+     */
+    public String getLocalUrl(String url) {
+        URI uri = parseMulticastUrl(url);
+        if (uri == null) {
+            return null;
+        }
+        String key = getKey(uri);
+        Group group;
+        int port;
+        synchronized (this) {
+            group = mGroups.get(key);
+            if (!mRunning || group == null) {
+                return null;
+            }
+            port = mServerSocket.getLocalPort();
+        }
+        return group.isReady() ? "http://" + LOCALHOST + ":" + port + "/"
+                + key : null;
+    }
+
+    /**
+     * Get time when last datagram of group was received.
+     *
+     * @return Elapsed realtime, 0 if group is joined but nothing is received
+     *         yet, or -1 if group is not joined.
+     */
+    public long getReceiveTime(String url) {
+        URI uri = parseMulticastUrl(url);
+        if (uri == null) {
+            return -1;
+        }
+        Group group;
+        synchronized (this) {
+            group = mRunning ? mGroups.get(getKey(uri)) : null;
+        }
+        return group == null ? -1 : group.mReceiveTime;
+    }
+
+    /**
+     * Check if URL is rtp:// or udp:// URL of multicast group.
+     */
+    public static boolean isMulticast(String url) {
+        URI uri = parseMulticastUrl(url);
+        if (uri == null) {
+            return false;
+        }
+        try {
+            return InetAddress.getByName(uri.getHost()).isMulticastAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parse rtp:// or udp:// URL with host and port, null for other URLs.
+     */
+    static URI parseMulticastUrl(String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            URI uri = new URI(url.trim());
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme()
+                    .toLowerCase(Locale.US);
+            if ((scheme.equals("rtp") || scheme.equals("udp"))
+                    && uri.getHost() != null && uri.getPort() > 0) {
+                return uri;
+            }
+        } catch (URISyntaxException e) {
+        }
+        return null;
+    }
+
+    private static String getKey(URI uri) {
+        return uri.getHost() + ":" + uri.getPort();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (mRunning) {
+            try {
+                final Socket socket = serverSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mClientCount.incrementAndGet();
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            Log.d(TAG, "Player disconnected: " + e);
+                        } finally {
+                            mClientCount.decrementAndGet();
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                            }
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.e(TAG, "Accept failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer HTTP request of player and send group from last random access
+     * point until player or group is gone.
+     */
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "US-ASCII"));
+        String requestLine = reader.readLine();
+        String line;
+        while ((line = reader.readLine()) != null && line.length() != 0) {
+            /** Headers are not needed. */
+        }
+        String[] parts = requestLine == null ? new String[0] : requestLine
+                .split(" ");
+        Group group = null;
+        if (parts.length >= 2 && parts[1].startsWith("/")) {
+            synchronized (this) {
+                group = mGroups.get(parts[1].substring(1));
+            }
+        }
+        OutputStream output = socket.getOutputStream();
+        if (group == null) {
+            output.write("HTTP/1.0 404 Not Found\r\n\r\n".getBytes("US-ASCII"));
+            return;
+        }
+        output.write(("HTTP/1.0 200 OK\r\nContent-Type: video/mp2t\r\n"
+                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        byte[] chunk = new byte[SEND_CHUNK_PACKETS * TS_PACKET_SIZE];
+        ByteBuffer readView = group.mRing.duplicate();
+        long position = -1;
+        while (mRunning && !group.mStopped) {
+            long written = group.mWritten;
+            if (position == -1 || written - position >= mBufferPackets) {
+                /** Start, or player is too slow: continue from latest RAP. */
+                position = group.getLatestRap();
+                if (position != -1) {
+                    int tables = group.copyTables(chunk);
+                    output.write(chunk, 0, tables);
+                }
+            }
+            if (position == -1 || position >= written) {
+                synchronized (group) {
+                    if (group.mWritten == written && !group.mStopped) {
+                        try {
+                            group.wait(RECEIVE_TIMEOUT_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                continue;
+            }
+            int slot = (int) (position % mBufferPackets);
+            int count = (int) Math.min(Math.min(written - position,
+                    SEND_CHUNK_PACKETS), mBufferPackets - slot);
+            readView.position(slot * TS_PACKET_SIZE);
+            readView.get(chunk, 0, count * TS_PACKET_SIZE);
+            /**
+             * Packets overwritten while they were copied are dropped. Slot of
+             * position is being overwritten once mBufferPackets packets
+             * follow it.
+             */
+            if (group.mWritten - position >= mBufferPackets) {
+                continue;
+            }
+            output.write(chunk, 0, count * TS_PACKET_SIZE);
+            position += count;
+        }
+    }
+
+    /**
+     * Get offset of TS payload, datagram can be plain TS or RTP.
+     */
+    static int getPayloadOffset(byte[] buffer, int length) {
+        if (length == 0 || buffer[0] == TS_SYNC_BYTE) {
+            return 0;
+        }
+        /** RTP version 2. */
+        if ((buffer[0] & 0xC0) != 0x80 || length < RTP_HEADER_SIZE) {
+            return length;
+        }
+        int offset = RTP_HEADER_SIZE + (buffer[0] & 0x0F) * 4;
+        if ((buffer[0] & 0x10) != 0 && offset + 4 <= length) {
+            int extensionWords = ((buffer[offset + 2] & 0xFF) << 8)
+                    | (buffer[offset + 3] & 0xFF);
+            offset += 4 + extensionWords * 4;
+        }
+        return offset;
+    }
+
+    static int getPid(byte[] buffer, int offset) {
+        return ((buffer[offset + 1] & 0x1F) << 8) | (buffer[offset + 2] & 0xFF);
+    }
+
+    /**
+     * Check random_access_indicator of adaptation field.
+     */
+    private static boolean isRandomAccessPoint(byte[] buffer, int offset) {
+        int adaptationControl = (buffer[offset + 3] >> 4) & 0x03;
+        return (adaptationControl & 0x02) != 0
+                && (buffer[offset + 4] & 0xFF) > 0
+                && (buffer[offset + 5] & 0x40) != 0;
+    }
+
+    /**
+     * Get PID of first video stream in PMT that starts in packet, PCR PID if
+     * PMT has no video stream. Random access indicator of audio or PCR only
+     * packets does not mark a point where decoding can start.
+     *
+     * @return PID, or -1 if PMT does not fit in packet.
+     */
+    private static int getRapPid(byte[] buffer, int offset) {
+        int position = getSectionOffset(buffer, offset);
+        if (position + 12 > offset + TS_PACKET_SIZE) {
+            return -1;
+        }
+        int sectionLength = ((buffer[position + 1] & 0x0F) << 8)
+                | (buffer[position + 2] & 0xFF);
+        int end = Math.min(position + 3 + sectionLength - 4, offset
+                + TS_PACKET_SIZE - 4);
+        int pcrPid = ((buffer[position + 8] & 0x1F) << 8)
+                | (buffer[position + 9] & 0xFF);
+        int programInfoLength = ((buffer[position + 10] & 0x0F) << 8)
+                | (buffer[position + 11] & 0xFF);
+        int stream = position + 12 + programInfoLength;
+        while (stream + 5 <= end) {
+            if (isVideoStreamType(buffer[stream] & 0xFF)) {
+                return ((buffer[stream + 1] & 0x1F) << 8)
+                        | (buffer[stream + 2] & 0xFF);
+            }
+            int infoLength = ((buffer[stream + 3] & 0x0F) << 8)
+                    | (buffer[stream + 4] & 0xFF);
+            stream += 5 + infoLength;
+        }
+        /** PID 0x1FFF means program has no PCR. */
+        return pcrPid == 0x1FFF ? -1 : pcrPid;
+    }
+
+    /**
+     * Check if stream type of PMT is MPEG-1/2, MPEG-4, H.264 or HEVC video.
+     */
+    private static boolean isVideoStreamType(int streamType) {
+        switch (streamType) {
+            case 0x01:
+            case 0x02:
+            case 0x10:
+            case 0x1B:
+            case 0x24:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get offset of section that starts in packet, after adaptation field
+     * and pointer field.
+     */
+    private static int getSectionOffset(byte[] buffer, int offset) {
+        int position = offset + 4;
+        if ((buffer[offset + 3] & 0x20) != 0) {
+            position += 1 + (buffer[position] & 0xFF);
+        }
+        /** Pointer field. */
+        return position + 1 + (buffer[position] & 0xFF);
+    }
+
+    /**
+     * Get PID of first program in PAT that starts in packet.
+     *
+     * @return PID, or -1 if PAT has no program.
+     */
+    private static int getFirstPmtPid(byte[] buffer, int offset) {
+        int position = getSectionOffset(buffer, offset);
+        if (position + 3 > offset + TS_PACKET_SIZE) {
+            return -1;
+        }
+        int sectionLength = ((buffer[position + 1] & 0x0F) << 8)
+                | (buffer[position + 2] & 0xFF);
+        int end = Math.min(position + 3 + sectionLength - 4, offset
+                + TS_PACKET_SIZE - 4);
+        for (int program = position + 8; program + 4 <= end; program += 4) {
+            int number = ((buffer[program] & 0xFF) << 8)
+                    | (buffer[program + 1] & 0xFF);
+            /** Program 0 points to network PID. */
+            if (number != 0) {
+                return ((buffer[program + 2] & 0x1F) << 8)
+                        | (buffer[program + 3] & 0xFF);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        ArrayList<String> groups = new ArrayList<String>();
+        for (Group group : mGroups.values()) {
+            groups.add(group.mKey + (group.isReady() ? " ready" : ""));
+        }
+        return "IP relay: " + (mRunning ? "groups=" + groups + " players="
+                + mClientCount.get() : "off");
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import com.iwedia.exampleip.dtv.IPService;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Streaming parser of IP channel lists. Extended M3U playlists with
+ * #EXTINF entries and the simple "name#url" format, one service per line,
+ * are accepted, also mixed in one file. Alternative URLs of a service are
+ * written as "name#url1#url2", or as several URL lines after one #EXTINF.
+ * File is read line by line and services are passed to listener as they
+ * are found. Malformed lines are reported and skipped.
+ */
+public class PlaylistParser {
+    private static final String EXTINF = "#EXTINF:";
+    private static final char BOM = '\uFEFF';
+
+    /**
+     * Receiver of parsed entries.
+     */
+    public interface Listener {
+        /** Service is parsed. */
+        public void onService(IPService service);
+
+        /**
+         * Line can not be parsed and is skipped.
+         *
+         * @param lineNumber
+         *        Number of line, starting from 1.
+         * @param line
+         *        Content of line.
+         * @param reason
+         *        Why line is rejected.
+         */
+        public void onMalformedLine(int lineNumber, String line, String reason);
+    }
+
+    /**
+     * Counters of one parse.
+     */
+    public static class Result {
+        private int mServiceCount;
+        private int mMalformedCount;
+
+        public int getServiceCount() {
+            return mServiceCount;
+        }
+
+        public int getMalformedCount() {
+            return mMalformedCount;
+        }
+    }
+
+    private PlaylistParser() {
+    }
+
+    /**
+     * Parse file in UTF-8.
+     */
+    public static Result parse(File file, Listener listener)
+            throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file),
+                "UTF-8");
+        try {
+            return parse(reader, listener);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse playlist from reader. Reader is not closed.
+     */
+    public static Result parse(Reader reader, Listener listener)
+            throws IOException {
+        BufferedReader lines = new BufferedReader(reader, 16 * 1024);
+        Result result = new Result();
+        /** Name from #EXTINF line, waiting for its URL lines. */
+        String pendingName = null;
+        ArrayList<String> pendingUrls = new ArrayList<String>();
+        String pendingLine = null;
+        int pendingLineNumber = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            int start = 0;
+            int end = line.length();
+            if (lineNumber == 1 && end > 0 && line.charAt(0) == BOM) {
+                start = 1;
+            }
+            while (start < end && line.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && line.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (start == end) {
+                continue;
+            }
+            if (line.startsWith(EXTINF, start)) {
+                flush(listener, result, pendingName, pendingUrls,
+                        pendingLineNumber, pendingLine);
+                /** Title follows first comma outside of quoted attributes. */
+                int comma = findTitleComma(line, start + EXTINF.length(), end);
+                if (comma == -1) {
+                    malformed(listener, result, lineNumber, line,
+                            "No title in #EXTINF");
+                    pendingName = null;
+                    continue;
+                }
+                pendingName = line.substring(comma + 1, end).trim();
+                pendingLine = line;
+                pendingLineNumber = lineNumber;
+                continue;
+            }
+            if (line.charAt(start) == '#') {
+                /** #EXTM3U header, other directives and comments. */
+                continue;
+            }
+            int separator = line.indexOf('#', start);
+            int scheme = line.indexOf("://", start);
+            boolean named = separator != -1 && separator < end
+                    && (scheme == -1 || separator < scheme);
+            if (pendingName != null && !named) {
+                /** URL lines after #EXTINF are URLs of one service. */
+                String url = line.substring(start, end);
+                if (url.indexOf("://") <= 0) {
+                    malformed(listener, result, lineNumber, line,
+                            "Invalid URL");
+                } else {
+                    pendingUrls.add(url);
+                }
+                continue;
+            }
+            flush(listener, result, pendingName, pendingUrls,
+                    pendingLineNumber, pendingLine);
+            pendingName = null;
+            String name;
+            ArrayList<String> urls = new ArrayList<String>(1);
+            if (!named) {
+                /** Plain M3U entry without title. */
+                name = line.substring(start, end);
+                urls.add(name);
+            } else {
+                name = line.substring(start, separator).trim();
+                splitUrls(line, separator + 1, end, urls);
+            }
+            if (name.length() == 0) {
+                malformed(listener, result, lineNumber, line, "No name");
+                continue;
+            }
+            if (urls.isEmpty() || urls.get(0).indexOf("://") <= 0) {
+                malformed(listener, result, lineNumber, line,
+                        "Invalid URL");
+                continue;
+            }
+            result.mServiceCount++;
+            listener.onService(new IPService(name, urls));
+        }
+        flush(listener, result, pendingName, pendingUrls, pendingLineNumber,
+                pendingLine);
+        return result;
+    }
+
+    /**
+     * Pass service of pending #EXTINF entry to listener. URL list is
+     * cleared.
+     */
+    private static void flush(Listener listener, Result result, String name,
+            ArrayList<String> urls, int lineNumber, String line) {
+        if (name == null) {
+            return;
+        }
+        if (urls.isEmpty()) {
+            malformed(listener, result, lineNumber, line,
+                    "No URL after #EXTINF");
+            return;
+        }
+        result.mServiceCount++;
+        listener.onService(new IPService(name, urls));
+        urls.clear();
+    }
+
+    /**
+     * Split "url1#url2" into URLs. '#' starts next URL only if text after
+     * it has a scheme, otherwise it is part of URL.
+     */
+    private static void splitUrls(String line, int from, int end,
+            ArrayList<String> urls) {
+        int start = from;
+        int position = from;
+        while (position < end) {
+            int separator = line.indexOf('#', position);
+            if (separator == -1 || separator >= end) {
+                break;
+            }
+            int next = line.indexOf('#', separator + 1);
+            int nextEnd = next == -1 || next > end ? end : next;
+            int scheme = line.indexOf("://", separator + 1);
+            if (scheme != -1 && scheme < nextEnd) {
+                addUrl(line.substring(start, separator), urls);
+                start = separator + 1;
+            }
+            position = separator + 1;
+        }
+        addUrl(line.substring(start, end), urls);
+    }
+
+    private static void addUrl(String url, ArrayList<String> urls) {
+        url = url.trim();
+        if (url.length() != 0) {
+            urls.add(url);
+        }
+    }
+
+    /**
+     * Find comma that separates #EXTINF attributes from title.
+     */
+    private static int findTitleComma(String line, int from, int end) {
+        boolean quoted = false;
+        for (int i = from; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void malformed(Listener listener, Result result,
+            int lineNumber, String line, String reason) {
+        result.mMalformedCount++;
+        listener.onMalformedLine(lineNumber, line, reason);
+    }
+}
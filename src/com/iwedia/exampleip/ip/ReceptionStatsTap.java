@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.iwedia.exampleip.dtv.NamedThreadFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures reception of rtp:// and udp:// stream of IP channel that is
+ * played. Tap joins the same group as the player and only reads copies of
+ * datagrams. RTP sequence gaps, reordering and interarrival jitter (RFC
+ * 3550), TS continuity counter errors and bitrate are summed into one
+ * {@link Sample} per {@link #SAMPLE_INTERVAL_MILLIS}, last
+ * {@link #HISTORY_SIZE} samples are kept per channel. Nothing is allocated
+ * per datagram.
+ * <p>
+ * Only multicast URLs are tapped. Socket of tap is bound to the group, so
+ * unicast datagrams for the same port, which are delivered to one socket
+ * only, stay with the player.
+ */
+public class ReceptionStatsTap {
+    private static final String TAG = "ReceptionStatsTap";
+    public static final long SAMPLE_INTERVAL_MILLIS = 1000;
+    /** Samples kept per channel, 5 minutes. */
+    public static final int HISTORY_SIZE = 300;
+    /** Channels whose history is kept. */
+    public static final int MAX_CHANNELS = 16;
+    private static final int MAX_DATAGRAM_SIZE = 2048;
+    /** RTP clock of MPEG-2 TS payload. */
+    private static final int RTP_CLOCK_RATE = 90000;
+    /** Sequence jumps larger than this are restart of sender. */
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int PID_COUNT = 8192;
+    private static final int NULL_PID = 0x1FFF;
+    private final ExecutorService mExecutor = Executors
+            .newSingleThreadExecutor(new NamedThreadFactory("StatsTap"));
+    /** History by channel number, guarded by this. */
+    private final SparseArray<History> mHistories = new SparseArray<History>();
+    /** Running tap, guarded by this. */
+    private Tap mTap = null;
+
+    /**
+     * Reception during one interval.
+     */
+    public static class Sample {
+        private final long mTime;
+        private final int mPacketCount;
+        private final int mLostCount;
+        private final int mReorderedCount;
+        private final int mDuplicateCount;
+        private final int mCcErrorCount;
+        private final int mJitterMicros;
+        private final long mBitsPerSecond;
+
+        Sample(long time, int packetCount, int lostCount, int reorderedCount,
+                int duplicateCount, int ccErrorCount, int jitterMicros,
+                long bitsPerSecond) {
+            mTime = time;
+            mPacketCount = packetCount;
+            mLostCount = lostCount;
+            mReorderedCount = reorderedCount;
+            mDuplicateCount = duplicateCount;
+            mCcErrorCount = ccErrorCount;
+            mJitterMicros = jitterMicros;
+            mBitsPerSecond = bitsPerSecond;
+        }
+
+        /**
+         * Get elapsed realtime at end of interval.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * Get number of datagrams received.
+         */
+        public int getPacketCount() {
+            return mPacketCount;
+        }
+
+        /**
+         * Get number of RTP packets missing from sequence. Packet that
+         * arrives late is subtracted in interval in which it arrives.
+         */
+        public int getLostCount() {
+            return mLostCount;
+        }
+
+        public int getReorderedCount() {
+            return mReorderedCount;
+        }
+
+        public int getDuplicateCount() {
+            return mDuplicateCount;
+        }
+
+        /**
+         * Get number of TS continuity counter errors.
+         */
+        public int getCcErrorCount() {
+            return mCcErrorCount;
+        }
+
+        /**
+         * Get RTP interarrival jitter at end of interval, 0 for plain UDP.
+         */
+        public int getJitterMicros() {
+            return mJitterMicros;
+        }
+
+        /**
+         * Get bitrate of TS packets.
+         */
+        public long getBitsPerSecond() {
+            return mBitsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "packets=" + mPacketCount + " lost=" + mLostCount
+                    + " reordered=" + mReorderedCount + " duplicates="
+                    + mDuplicateCount + " ccErrors=" + mCcErrorCount
+                    + " jitter=" + mJitterMicros / 1000f + "ms bitrate="
+                    + mBitsPerSecond / 1000 + "kbps";
+        }
+    }
+
+    /**
+     * Ring of samples of one channel.
+     */
+    private static class History {
+        final long[] mTimes = new long[HISTORY_SIZE];
+        final int[] mPacketCounts = new int[HISTORY_SIZE];
+        final int[] mLostCounts = new int[HISTORY_SIZE];
+        final int[] mReorderedCounts = new int[HISTORY_SIZE];
+        final int[] mDuplicateCounts = new int[HISTORY_SIZE];
+        final int[] mCcErrorCounts = new int[HISTORY_SIZE];
+        final int[] mJitterMicros = new int[HISTORY_SIZE];
+        final long[] mBitrates = new long[HISTORY_SIZE];
+        /** Number of samples ever added. */
+        int mCount = 0;
+        long mTotalLostCount = 0;
+        long mTotalCcErrorCount = 0;
+
+        Sample get(int index) {
+            int i = index % HISTORY_SIZE;
+            return new Sample(mTimes[i], mPacketCounts[i], mLostCounts[i],
+                    mReorderedCounts[i], mDuplicateCounts[i],
+                    mCcErrorCounts[i], mJitterMicros[i], mBitrates[i]);
+        }
+
+        long getLastTime() {
+            return mCount == 0 ? 0 : mTimes[(mCount - 1) % HISTORY_SIZE];
+        }
+    }
+
+    /**
+     * Receives stream of one channel, counters are used only by receiving
+     * thread.
+     */
+    private class Tap implements Runnable {
+        /** Guarded by outer object. */
+        int mChannelNumber;
+        final String mUrl;
+        final URI mUri;
+        volatile boolean mStopped = false;
+        /** Elapsed realtime of last datagram, 0 before first one. */
+        volatile long mReceiveTime = 0;
+        private MulticastSocket mSocket = null;
+        /** Last continuity counter by PID, -1 before first packet. */
+        private final byte[] mContinuity = new byte[PID_COUNT];
+        /** Highest RTP sequence number, -1 before first packet. */
+        private int mMaxSequence = -1;
+        private boolean mHasTransit = false;
+        private int mLastTransit = 0;
+        /** RFC 3550 jitter estimate in RTP clock units, scaled by 16. */
+        private int mJitter = 0;
+        private long mSampleStart;
+        private int mPacketCount = 0;
+        private int mLostCount = 0;
+        private int mReorderedCount = 0;
+        private int mDuplicateCount = 0;
+        private int mCcErrorCount = 0;
+        private long mTsBytes = 0;
+
+        Tap(int channelNumber, String url, URI uri) {
+            mChannelNumber = channelNumber;
+            mUrl = url;
+            mUri = uri;
+            for (int i = 0; i < PID_COUNT; i++) {
+                mContinuity[i] = -1;
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            InetAddress group = null;
+            try {
+                InetAddress address = InetAddress.getByName(mUri.getHost());
+                MulticastSocket socket = new MulticastSocket(
+                        new InetSocketAddress(address, mUri.getPort()));
+                synchronized (this) {
+                    if (mStopped) {
+                        socket.close();
+                        return;
+                    }
+                    mSocket = socket;
+                }
+                socket.setSoTimeout((int) SAMPLE_INTERVAL_MILLIS);
+                group = address;
+                socket.joinGroup(group);
+                mSampleStart = SystemClock.elapsedRealtime();
+                while (!mStopped) {
+                    packet.setLength(buffer.length);
+                    try {
+                        socket.receive(packet);
+                        mReceiveTime = SystemClock.elapsedRealtime();
+                        receive(buffer, packet.getLength(), System.nanoTime());
+                    } catch (SocketTimeoutException e) {
+                        /** Silence is recorded as empty sample. */
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    if (now - mSampleStart >= SAMPLE_INTERVAL_MILLIS) {
+                        addSample(now);
+                    }
+                }
+            } catch (IOException e) {
+                if (!mStopped) {
+                    Log.e(TAG, "Tapping " + mUrl + " failed", e);
+                }
+            } finally {
+                close(group);
+            }
+        }
+
+        private void receive(byte[] buffer, int length, long arrivalNanos) {
+            mPacketCount++;
+            int offset = MulticastRelay.getPayloadOffset(buffer, length);
+            if (offset > 0 && offset < length) {
+                receiveRtp(buffer, arrivalNanos);
+            }
+            int packetSize = MulticastRelay.TS_PACKET_SIZE;
+            for (; offset + packetSize <= length; offset += packetSize) {
+                if (buffer[offset] == MulticastRelay.TS_SYNC_BYTE) {
+                    mTsBytes += packetSize;
+                    checkContinuity(buffer, offset);
+                }
+            }
+        }
+
+        /**
+         * Count sequence gaps as in RFC 3550 appendix A.1 and update jitter
+         * as in appendix A.8.
+         */
+        private void receiveRtp(byte[] buffer, long arrivalNanos) {
+            int sequence = ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+            int timestamp = ((buffer[4] & 0xFF) << 24)
+                    | ((buffer[5] & 0xFF) << 16) | ((buffer[6] & 0xFF) << 8)
+                    | (buffer[7] & 0xFF);
+            if (mMaxSequence == -1) {
+                mMaxSequence = sequence;
+            } else {
+                int delta = (sequence - mMaxSequence) & 0xFFFF;
+                if (delta == 0) {
+                    mDuplicateCount++;
+                } else if (delta < MAX_DROPOUT) {
+                    mLostCount += delta - 1;
+                    mMaxSequence = sequence;
+                } else if (delta > 0x10000 - MAX_MISORDER) {
+                    /** Late packet fills gap counted before. */
+                    mReorderedCount++;
+                    mLostCount--;
+                } else {
+                    /** Sender restarted, jitter is measured again. */
+                    mMaxSequence = sequence;
+                    mHasTransit = false;
+                }
+            }
+            /** Only differences of transit matter, so wrapping is fine. */
+            int arrival = (int) (arrivalNanos / 1000
+                    * (RTP_CLOCK_RATE / 1000) / 1000);
+            int transit = arrival - timestamp;
+            if (mHasTransit) {
+                int d = Math.abs(transit - mLastTransit);
+                mJitter += d - ((mJitter + 8) >> 4);
+            }
+            mLastTransit = transit;
+            mHasTransit = true;
+        }
+
+        /**
+         * Continuity counter of PID must grow by one for each packet with
+         * payload, one duplicate packet is allowed.
+         */
+        private void checkContinuity(byte[] buffer, int offset) {
+            int pid = MulticastRelay.getPid(buffer, offset);
+            int control = (buffer[offset + 3] >> 4) & 0x03;
+            if (pid == NULL_PID || (control & 0x01) == 0) {
+                return;
+            }
+            int counter = buffer[offset + 3] & 0x0F;
+            int last = mContinuity[pid];
+            boolean discontinuity = (control & 0x02) != 0
+                    && (buffer[offset + 4] & 0xFF) > 0
+                    && (buffer[offset + 5] & 0x80) != 0;
+            if (last != -1 && !discontinuity && counter != last
+                    && counter != ((last + 1) & 0x0F)) {
+                mCcErrorCount++;
+            }
+            mContinuity[pid] = (byte) counter;
+        }
+
+        private void addSample(long now) {
+            long elapsed = now - mSampleStart;
+            int jitterMicros = (int) ((long) mJitter * 1000000
+                    / (16 * RTP_CLOCK_RATE));
+            addToHistory(this, now, jitterMicros, mTsBytes * 8 * 1000
+                    / elapsed);
+            mSampleStart = now;
+            mPacketCount = 0;
+            mLostCount = 0;
+            mReorderedCount = 0;
+            mDuplicateCount = 0;
+            mCcErrorCount = 0;
+            mTsBytes = 0;
+        }
+
+        void stop() {
+            mStopped = true;
+            synchronized (this) {
+                if (mSocket != null) {
+                    mSocket.close();
+                }
+            }
+        }
+
+        private synchronized void close(InetAddress group) {
+            if (mSocket == null) {
+                return;
+            }
+            if (group != null) {
+                try {
+                    mSocket.leaveGroup(group);
+                } catch (IOException e) {
+                }
+            }
+            mSocket.close();
+            mSocket = null;
+        }
+    }
+
+    /**
+     * Start measuring stream of channel, tap of previous channel is stopped.
+     *
+     * @return False if URL is not multicast rtp:// or udp:// URL and is not
+     *         tapped.
+     */
+    public synchronized boolean start(int channelNumber, String url) {
+        if (mTap != null && mTap.mChannelNumber == channelNumber
+                && mTap.mUrl.equals(url)) {
+            return true;
+        }
+        stop();
+        URI uri = MulticastRelay.parseMulticastUrl(url);
+        if (uri == null || !MulticastRelay.isMulticast(url)) {
+            return false;
+        }
+        mTap = new Tap(channelNumber, url, uri);
+        mExecutor.execute(mTap);
+        return true;
+    }
+
+    /**
+     * Get time when last datagram of URL was received.
+     *
+     * @return Elapsed realtime, 0 if URL is tapped but nothing is received
+     *         yet, or -1 if URL is not tapped.
+     */
+    public synchronized long getReceiveTime(String url) {
+        if (mTap == null || !mTap.mUrl.equals(url)) {
+            return -1;
+        }
+        return mTap.mReceiveTime;
+    }
+
+    /**
+     * Stop measuring, history is kept.
+     */
+    public synchronized void stop() {
+        if (mTap != null) {
+            mTap.stop();
+            mTap = null;
+        }
+    }
+
+    private synchronized void addToHistory(Tap tap, long now,
+            int jitterMicros, long bitsPerSecond) {
+        if (tap != mTap) {
+            return;
+        }
+        History history = mHistories.get(tap.mChannelNumber);
+        if (history == null) {
+            if (mHistories.size() >= MAX_CHANNELS) {
+                removeOldestHistory();
+            }
+            history = new History();
+            mHistories.put(tap.mChannelNumber, history);
+        }
+        int i = history.mCount % HISTORY_SIZE;
+        history.mTimes[i] = now;
+        history.mPacketCounts[i] = tap.mPacketCount;
+        history.mLostCounts[i] = tap.mLostCount;
+        history.mReorderedCounts[i] = tap.mReorderedCount;
+        history.mDuplicateCounts[i] = tap.mDuplicateCount;
+        history.mCcErrorCounts[i] = tap.mCcErrorCount;
+        history.mJitterMicros[i] = jitterMicros;
+        history.mBitrates[i] = bitsPerSecond;
+        history.mCount++;
+        history.mTotalLostCount += tap.mLostCount;
+        history.mTotalCcErrorCount += tap.mCcErrorCount;
+    }
+
+    private void removeOldestHistory() {
+        int oldest = 0;
+        for (int i = 1; i < mHistories.size(); i++) {
+            if (mHistories.valueAt(i).getLastTime() < mHistories.valueAt(
+                    oldest).getLastTime()) {
+                oldest = i;
+            }
+        }
+        mHistories.removeAt(oldest);
+    }
+
+    /**
+     * Get samples of channel, oldest first.
+     *
+     * @return Samples, empty if channel was never tapped.
+     */
+    public synchronized List<Sample> getHistory(int channelNumber) {
+        History history = mHistories.get(channelNumber);
+        if (history == null) {
+            return new ArrayList<Sample>();
+        }
+        int first = Math.max(0, history.mCount - HISTORY_SIZE);
+        ArrayList<Sample> samples = new ArrayList<Sample>(history.mCount
+                - first);
+        for (int i = first; i < history.mCount; i++) {
+            samples.add(history.get(i));
+        }
+        return samples;
+    }
+
+    /**
+     * Get latest sample of channel, null if there is none.
+     */
+    public synchronized Sample getLatest(int channelNumber) {
+        History history = mHistories.get(channelNumber);
+        if (history == null || history.mCount == 0) {
+            return null;
+        }
+        return history.get(history.mCount - 1);
+    }
+
+    /**
+     * Move histories and running tap to new channel numbers, called when
+     * channel numbers change. Running tap of removed channel keeps its
+     * number.
+     *
+     * @param newNumbers
+     *        New number by old number, -1 for removed channels. Channels
+     *        that are not in it keep their number.
+     */
+    public synchronized void remap(SparseIntArray newNumbers) {
+        int size = mHistories.size();
+        int[] channelNumbers = new int[size];
+        ArrayList<History> histories = new ArrayList<History>(size);
+        for (int i = 0; i < size; i++) {
+            channelNumbers[i] = mHistories.keyAt(i);
+            histories.add(mHistories.valueAt(i));
+        }
+        mHistories.clear();
+        for (int i = 0; i < size; i++) {
+            int channelNumber = newNumbers.get(channelNumbers[i],
+                    channelNumbers[i]);
+            if (channelNumber != -1) {
+                mHistories.put(channelNumber, histories.get(i));
+            }
+        }
+        if (mTap != null) {
+            int channelNumber = newNumbers.get(mTap.mChannelNumber,
+                    mTap.mChannelNumber);
+            if (channelNumber != -1) {
+                mTap.mChannelNumber = channelNumber;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mTap == null) {
+            return "IP reception: off";
+        }
+        History history = mHistories.get(mTap.mChannelNumber);
+        Sample latest = getLatest(mTap.mChannelNumber);
+        return "IP reception: channel " + mTap.mChannelNumber
+                + (latest == null ? "" : " " + latest + " totalLost="
+                        + history.mTotalLostCount + " totalCcErrors="
+                        + history.mTotalCcErrorCount);
+    }
+}
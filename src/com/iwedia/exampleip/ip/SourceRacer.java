@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.SystemClock;
+
+import com.iwedia.exampleip.dtv.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks source of IP service with several URLs. Connection attempts are
+ * started one after another with {@link #ATTEMPT_DELAY_MILLIS} between
+ * them, or at once when previous attempt fails, and first source that
+ * responds wins. Latency of every source is remembered, so sources that
+ * were fast are tried first next time and sources that failed last. Race
+ * that is no longer needed is abandoned within {@link #ABANDON_CHECK_MILLIS}
+ * after {@link #abandonRaces()} or interrupt of racing thread.
+ */
+public class SourceRacer {
+    /** Time given to one attempt before next one is started. */
+    public static final long ATTEMPT_DELAY_MILLIS = 250;
+    /** Longest time race can take. */
+    public static final long RACE_TIMEOUT_MILLIS = 3000;
+    /** Longest time abandoned race keeps racing thread blocked. */
+    public static final long ABANDON_CHECK_MILLIS = 50;
+    /** Weight of new latency sample in moving average. */
+    private static final float LATENCY_WEIGHT = 0.25f;
+    private final StreamProber mProber;
+    private final ExecutorService mExecutor = Executors
+            .newCachedThreadPool(new NamedThreadFactory("SourceRace"));
+    /** Statistics by URL, guarded by this. */
+    private final HashMap<String, SourceStats> mStats = new HashMap<String, SourceStats>();
+    private final AtomicLong mRaceCount = new AtomicLong();
+    /** Races won by other source than the one tried first. */
+    private final AtomicLong mOvertakeCount = new AtomicLong();
+    private final AtomicLong mAbandonedCount = new AtomicLong();
+    /** Races started before latest change of generation are abandoned. */
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    /**
+     * Connection statistics of one source.
+     */
+    public static class SourceStats {
+        /** Moving average of latency, -1 if source never responded. */
+        private long mLatencyMillis = -1;
+        private int mSuccessCount = 0;
+        private int mFailureCount = 0;
+        private boolean mLastFailed = false;
+
+        public long getLatencyMillis() {
+            return mLatencyMillis;
+        }
+
+        public int getSuccessCount() {
+            return mSuccessCount;
+        }
+
+        public int getFailureCount() {
+            return mFailureCount;
+        }
+    }
+
+    /**
+     * @param prober
+     *        Prober used for connection attempts.
+     */
+    public SourceRacer(StreamProber prober) {
+        mProber = prober;
+    }
+
+    /**
+     * Record result of connection to source.
+     */
+    public synchronized void record(String url, StreamProber.Result result) {
+        /** Source that can not be probed keeps its statistics. */
+        if (result.isUnknown()) {
+            return;
+        }
+        if (!result.isReachable()) {
+            recordFailure(url);
+            return;
+        }
+        SourceStats stats = getOrCreateStats(url);
+        stats.mSuccessCount++;
+        stats.mLastFailed = false;
+        if (stats.mLatencyMillis == -1) {
+            stats.mLatencyMillis = result.getLatencyMillis();
+        } else {
+            stats.mLatencyMillis += (long) ((result.getLatencyMillis() - stats.mLatencyMillis) * LATENCY_WEIGHT);
+        }
+    }
+
+    /**
+     * Record that source failed, so it is tried last.
+     */
+    public synchronized void recordFailure(String url) {
+        SourceStats stats = getOrCreateStats(url);
+        stats.mFailureCount++;
+        stats.mLastFailed = true;
+    }
+
+    private SourceStats getOrCreateStats(String url) {
+        SourceStats stats = mStats.get(url);
+        if (stats == null) {
+            stats = new SourceStats();
+            mStats.put(url, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Get statistics of source, null if it was never tried.
+     */
+    public synchronized SourceStats getStats(String url) {
+        return mStats.get(url);
+    }
+
+    /**
+     * Sort sources in order they should be tried. Sources that responded
+     * come first by latency, then sources that were not tried in list
+     * order, then sources whose last attempt failed.
+     */
+    public synchronized List<String> order(List<String> urls) {
+        ArrayList<String> ordered = new ArrayList<String>(urls);
+        /** Insertion sort is stable and lists are short. */
+        for (int i = 1; i < ordered.size(); i++) {
+            String url = ordered.get(i);
+            long rank = getRank(url);
+            int j = i - 1;
+            while (j >= 0 && getRank(ordered.get(j)) > rank) {
+                ordered.set(j + 1, ordered.get(j));
+                j--;
+            }
+            ordered.set(j + 1, url);
+        }
+        return ordered;
+    }
+
+    private long getRank(String url) {
+        SourceStats stats = mStats.get(url);
+        if (stats == null || stats.mLatencyMillis == -1 && !stats.mLastFailed) {
+            return Long.MAX_VALUE / 2;
+        }
+        if (stats.mLastFailed) {
+            return Long.MAX_VALUE;
+        }
+        return stats.mLatencyMillis;
+    }
+
+    /**
+     * Get source that would be tried first.
+     */
+    public String getPreferred(List<String> urls) {
+        return order(urls).get(0);
+    }
+
+    /**
+     * Race connection attempts to sources, blocks until one responds, all
+     * fail or race is abandoned.
+     *
+     * @param urls
+     *        Sources of one service.
+     * @return First source that responded, or null if none did or race was
+     *         abandoned.
+     */
+    public String race(List<String> urls) {
+        long generation = mGeneration.get();
+        List<String> ordered = order(urls);
+        mRaceCount.incrementAndGet();
+        CompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(
+                mExecutor);
+        ArrayList<Future<Attempt>> futures = new ArrayList<Future<Attempt>>();
+        long now = SystemClock.elapsedRealtime();
+        long deadline = now + RACE_TIMEOUT_MILLIS;
+        long nextAttempt = now + ATTEMPT_DELAY_MILLIS;
+        int started = 0;
+        int finished = 0;
+        try {
+            futures.add(completion.submit(new Attempt(ordered.get(started++))));
+            while (finished < started) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (mGeneration.get() != generation) {
+                    mAbandonedCount.incrementAndGet();
+                    return null;
+                }
+                now = SystemClock.elapsedRealtime();
+                if (now >= deadline) {
+                    return null;
+                }
+                /** Slow attempt keeps running, next one starts. */
+                if (now >= nextAttempt && started < ordered.size()) {
+                    futures.add(completion.submit(new Attempt(ordered
+                            .get(started++))));
+                    nextAttempt = now + ATTEMPT_DELAY_MILLIS;
+                }
+                long wait = Math.min(deadline - now, ABANDON_CHECK_MILLIS);
+                if (started < ordered.size()) {
+                    wait = Math.min(wait, Math.max(nextAttempt - now, 0));
+                }
+                Future<Attempt> done = completion.poll(wait,
+                        TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                finished++;
+                Attempt attempt = done.get();
+                if (attempt.mResult.isReachable()) {
+                    if (!attempt.mUrl.equals(ordered.get(0))) {
+                        mOvertakeCount.incrementAndGet();
+                    }
+                    return attempt.mUrl;
+                }
+                /** Failed attempt is replaced at once. */
+                if (started < ordered.size()) {
+                    futures.add(completion.submit(new Attempt(ordered
+                            .get(started++))));
+                    nextAttempt = SystemClock.elapsedRealtime()
+                            + ATTEMPT_DELAY_MILLIS;
+                }
+            }
+            return null;
+        } catch (InterruptedException e) {
+            mAbandonedCount.incrementAndGet();
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            /**
+             * Attempts that are still running are interrupted, those that
+             * finish anyway are recorded.
+             */
+            for (Future<Attempt> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Abandon races that are running, called when newer zap is requested.
+     * Their racing threads return null.
+     */
+    public void abandonRaces() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Connection attempt to one source.
+     */
+    private class Attempt implements Callable<Attempt> {
+        final String mUrl;
+        StreamProber.Result mResult;
+
+        Attempt(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        public Attempt call() {
+            mResult = mProber.probeNow(mUrl);
+            /** Failure caused by abandoned race says nothing of source. */
+            if (mResult.isReachable() || !Thread.interrupted()) {
+                record(mUrl, mResult);
+            }
+            return this;
+        }
+    }
+
+    @Override
+    public String toString() {
+        int sources;
+        synchronized (this) {
+            sources = mStats.size();
+        }
+        return "IP source races: races=" + mRaceCount.get() + " overtaken="
+                + mOvertakeCount.get() + " abandoned=" + mAbandonedCount.get()
+                + " sources=" + sources;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2014 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.exampleip.ip;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.iwedia.exampleip.dtv.IPService;
+import com.iwedia.exampleip.dtv.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks in background if IP services can be received. HTTP URLs are
+ * checked by fetching beginning of the playlist or stream, multicast rtp://
+ * and udp:// URLs by joining the group and waiting for first packet. Other
+ * URLs can not be checked without taking their stream from the player, their
+ * state is reported as unknown and they are never dead. URLs are probed on
+ * request only. Results are kept for {@link #getTtlMillis()}, at most
+ * {@link #getMaxInFlight()} probes run at the same time.
+ * <p>
+ * {@link #probeNow(String)} can be checked by hand against local stand-ins:
+ * an HTTP server on 127.0.0.1 for http:// URLs, and a sender of datagrams to
+ * a multicast group with loopback enabled for udp:// URLs. Unicast UDP on
+ * 127.0.0.1 is reported as unknown, because probing it would take datagrams
+ * from the player.
+ */
+public class StreamProber {
+    private static final String TAG = "StreamProber";
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+    /** Bytes read from HTTP response to check it. */
+    private static final int HTTP_PEEK_SIZE = 512;
+    private static final int DATAGRAM_SIZE = 2048;
+    private static final String HLS_HEADER = "#EXTM3U";
+    private final int mMaxInFlight;
+    private final long mTtlMillis;
+    private final int mTimeoutMillis;
+    private final ExecutorService mExecutor;
+    /** Latest result by URL. */
+    private final HashMap<String, Result> mResults = new HashMap<String, Result>();
+    /** URLs that are queued or being probed. */
+    private final HashSet<String> mPending = new HashSet<String>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+    private final AtomicLong mProbeCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    /**
+     * Receiver of probe results, called on prober threads.
+     */
+    public interface Listener {
+        public void onProbed(String url, Result result);
+    }
+
+    /**
+     * Outcome of single probe.
+     */
+    public static class Result {
+        private final boolean mReachable;
+        private final boolean mUnknown;
+        private final long mLatencyMillis;
+        private final long mProbeTime;
+        private final String mReason;
+
+        Result(boolean reachable, boolean unknown, long latencyMillis,
+                long probeTime, String reason) {
+            mReachable = reachable;
+            mUnknown = unknown;
+            mLatencyMillis = latencyMillis;
+            mProbeTime = probeTime;
+            mReason = reason;
+        }
+
+        public boolean isReachable() {
+            return mReachable;
+        }
+
+        /**
+         * Check if URL can not be probed, it is neither reachable nor dead.
+         */
+        public boolean isUnknown() {
+            return mUnknown;
+        }
+
+        /**
+         * Get time from start of probe to first response, -1 if stream is
+         * not reachable.
+         */
+        public long getLatencyMillis() {
+            return mLatencyMillis;
+        }
+
+        /**
+         * Get elapsed realtime when probe finished.
+         */
+        public long getProbeTime() {
+            return mProbeTime;
+        }
+
+        /**
+         * Get reason of failure or why URL can not be probed, null if stream
+         * is reachable.
+         */
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            if (mUnknown) {
+                return "unknown: " + mReason;
+            }
+            return mReachable ? "reachable in " + mLatencyMillis + "ms"
+                    : "unreachable: " + mReason;
+        }
+    }
+
+    public StreamProber() {
+        this(DEFAULT_MAX_IN_FLIGHT, DEFAULT_TTL_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param maxInFlight
+     *        Maximum number of probes running at the same time.
+     * @param ttlMillis
+     *        Time for which result is valid.
+     * @param timeoutMillis
+     *        Time to wait for connection and first data.
+     */
+    public StreamProber(int maxInFlight, long ttlMillis, int timeoutMillis) {
+        mMaxInFlight = maxInFlight;
+        mTtlMillis = ttlMillis;
+        mTimeoutMillis = timeoutMillis;
+        mExecutor = Executors.newFixedThreadPool(maxInFlight,
+                new NamedThreadFactory("StreamProbe"));
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    /**
+     * Queue probes of all URLs of service without valid result.
+     */
+    public void probe(IPService service) {
+        for (String url : service.getUrls()) {
+            probe(url);
+        }
+    }
+
+    /**
+     * Queue probe of URL, nothing is done if URL has valid result or is
+     * already queued.
+     */
+    public void probe(final String url) {
+        if (url == null) {
+            return;
+        }
+        synchronized (this) {
+            if (getResult(url) != null || !mPending.add(url)) {
+                return;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Result result = probeNow(url);
+                synchronized (StreamProber.this) {
+                    mPending.remove(url);
+                    mResults.put(url, result);
+                }
+                for (Listener listener : mListeners) {
+                    listener.onProbed(url, result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Probe URL on calling thread. Result is not stored.
+     */
+    public Result probeNow(String url) {
+        mProbeCount.incrementAndGet();
+        long start = SystemClock.elapsedRealtime();
+        String failure;
+        try {
+            URI uri = new URI(url.trim());
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme()
+                    .toLowerCase(Locale.US);
+            if (scheme.equals("http") || scheme.equals("https")) {
+                failure = probeHttp(uri);
+            } else if (scheme.equals("rtp") || scheme.equals("udp")) {
+                InetAddress group = uri.getHost() == null ? null : InetAddress
+                        .getByName(uri.getHost());
+                if (group == null || !group.isMulticastAddress()) {
+                    return unknown("unicast " + scheme);
+                }
+                failure = probeMulticast(group, uri.getPort());
+            } else {
+                return unknown("unsupported scheme " + scheme);
+            }
+        } catch (URISyntaxException e) {
+            failure = "malformed URL";
+        } catch (IOException e) {
+            failure = e.toString();
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (failure != null) {
+            mFailedCount.incrementAndGet();
+            Log.d(TAG, url + " " + failure);
+            return new Result(false, false, -1, now, failure);
+        }
+        return new Result(true, false, now - start, now, null);
+    }
+
+    private Result unknown(String reason) {
+        return new Result(false, true, -1, SystemClock.elapsedRealtime(),
+                reason);
+    }
+
+    /**
+     * Fetch beginning of HTTP resource, HLS playlist must start with its
+     * header.
+     *
+     * @return Failure reason, or null if resource is reachable.
+     */
+    private String probeHttp(URI uri) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                uri.toString()).openConnection();
+        connection.setConnectTimeout(mTimeoutMillis);
+        connection.setReadTimeout(mTimeoutMillis);
+        connection.setRequestProperty("Range", "bytes=0-"
+                + (HTTP_PEEK_SIZE - 1));
+        try {
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                return "HTTP " + code;
+            }
+            InputStream input = connection.getInputStream();
+            byte[] buffer = new byte[HTTP_PEEK_SIZE];
+            int length = input.read(buffer);
+            if (length <= 0) {
+                return "empty response";
+            }
+            String path = uri.getPath() == null ? "" : uri.getPath()
+                    .toLowerCase(Locale.US);
+            if (path.endsWith(".m3u8")
+                    && !new String(buffer, 0, length, "UTF-8").trim()
+                            .startsWith(HLS_HEADER)) {
+                return "not a HLS playlist";
+            }
+            return null;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Join multicast group and wait for first datagram. Socket is bound to
+     * group address, so datagrams for other groups and unicast datagrams for
+     * the port stay with their receivers.
+     *
+     * @return Failure reason, or null if datagram is received.
+     */
+    private String probeMulticast(InetAddress group, int port)
+            throws IOException {
+        if (port <= 0) {
+            return "missing port";
+        }
+        MulticastSocket socket = new MulticastSocket(new InetSocketAddress(
+                group, port));
+        try {
+            socket.setSoTimeout(mTimeoutMillis);
+            socket.joinGroup(group);
+            try {
+                socket.receive(new DatagramPacket(new byte[DATAGRAM_SIZE],
+                        DATAGRAM_SIZE));
+            } finally {
+                socket.leaveGroup(group);
+            }
+            return null;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Get result of URL that is not older than TTL.
+     *
+     * @return Result, or null if URL is not probed or result expired.
+     */
+    public synchronized Result getResult(String url) {
+        Result result = mResults.get(url);
+        if (result == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - result.getProbeTime() > mTtlMillis) {
+            mResults.remove(url);
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Check if latest valid probe of URL failed. URLs that are not probed or
+     * can not be probed are not dead.
+     */
+    public boolean isDead(String url) {
+        Result result = getResult(url);
+        return result != null && !result.isReachable() && !result.isUnknown();
+    }
+
+    /**
+     * Forget result of URL so it is probed again on next request.
+     */
+    public synchronized void invalidate(String url) {
+        mResults.remove(url);
+    }
+
+    /**
+     * Forget all results.
+     */
+    public synchronized void clear() {
+        mResults.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        int dead = 0;
+        for (Result result : mResults.values()) {
+            if (!result.isReachable() && !result.isUnknown()) {
+                dead++;
+            }
+        }
+        return "IP probes: cached=" + mResults.size() + " dead=" + dead
+                + " pending=" + mPending.size() + " probed="
+                + mProbeCount.get() + " failed=" + mFailedCount.get();
+    }
+}